@@ -0,0 +1,165 @@
+/* 
+ * Copyright 2008 The Apache Software Foundation or its licensors, as
+ * applicable.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A licence was granted to the ASF by Florian Sager on 30 November 2008
+ */
+
+package de.agitos.dkim;
+
+import java.util.Enumeration;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * The ARC sets (RFC 8617) a message already carries, a forwarding relay seals the message with the next
+ * instance. The ARC-Seal of the next instance covers the headers of all sets in the order of their
+ * instances, canonicalized relaxed; if the chain failed validation, it covers its own set only.
+ */
+
+public class ARCChain {
+
+	public static String AUTHENTICATIONRESULTSHEADER = "ARC-Authentication-Results";
+	public static String MESSAGESIGNATUREHEADER = "ARC-Message-Signature";
+	public static String SEALHEADER = "ARC-Seal";
+
+	public static String NONE = "none";
+	public static String PASS = "pass";
+	public static String FAIL = "fail";
+
+	private static int MAXINSTANCES = 50;
+
+	private static Pattern INSTANCE = Pattern.compile("(?:^|;)\\s*i\\s*=\\s*(\\d+)\\s*(?:;|$)");
+	private static Pattern CHAINVALIDATION = Pattern.compile("(?:^|;)\\s*cv\\s*=\\s*([A-Za-z]+)");
+
+	// per instance: authentication results, message signature and seal
+	private TreeMap<Integer, String[]> sets = new TreeMap<Integer, String[]>();
+	private boolean complete = true;
+
+	public ARCChain(Enumeration<?> headerLines) throws DKIMSignerException {
+
+		while (headerLines.hasMoreElements()) {
+			String header = (String) headerLines.nextElement();
+			String[] headerParts = DKIMUtil.splitHeader(header);
+			String name = headerParts[0].trim();
+			int index;
+			if (name.equalsIgnoreCase(AUTHENTICATIONRESULTSHEADER)) {
+				index = 0;
+			} else if (name.equalsIgnoreCase(MESSAGESIGNATUREHEADER)) {
+				index = 1;
+			} else if (name.equalsIgnoreCase(SEALHEADER)) {
+				index = 2;
+			} else {
+				continue;
+			}
+
+			Matcher matcher = INSTANCE.matcher(headerParts[1]);
+			if (!matcher.find() || matcher.group(1).length() > 2) {
+				complete = false;
+				continue;
+			}
+			Integer instance = Integer.valueOf(matcher.group(1));
+			String[] set = sets.get(instance);
+			if (set == null) {
+				set = new String[3];
+				sets.put(instance, set);
+			}
+			if (set[index] != null) {
+				complete = false;
+			}
+			set[index] = header;
+		}
+
+		// the instances must be numbered from 1 without gaps
+		int expected = 1;
+		for (Integer instance : sets.keySet()) {
+			String[] set = sets.get(instance);
+			complete &= instance.intValue() == expected++ && set[0] != null && set[1] != null && set[2] != null;
+		}
+	}
+
+	public int size() {
+		return sets.size();
+	}
+
+	// false if a set is missing, incomplete or duplicated
+	public boolean isComplete() {
+		return complete;
+	}
+
+	public int getNextInstance() throws DKIMSignerException {
+
+		int instance = sets.isEmpty() ? 1 : sets.lastKey().intValue() + 1;
+		if (instance > MAXINSTANCES) {
+			throw new DKIMSignerException("The ARC chain has reached the maximum of "+MAXINSTANCES+" instances");
+		}
+		return instance;
+	}
+
+	// the cv= tag of the last seal, null if the chain is empty
+	public String getChainValidation() {
+
+		String seal = sets.isEmpty() ? null : sets.get(sets.lastKey())[2];
+		if (seal == null) {
+			return null;
+		}
+		Matcher matcher = CHAINVALIDATION.matcher(seal.substring(seal.indexOf(':') + 1));
+		return matcher.find() ? matcher.group(1).toLowerCase() : null;
+	}
+
+	/*
+	 * Checks the validation result of this chain as determined by the relay before it is sealed:
+	 * none without a chain, otherwise pass or fail; a chain that failed once can't pass again.
+	 */
+	public void checkChainValidation(String chainValidation) throws DKIMSignerException {
+
+		if (sets.isEmpty()) {
+			if (!NONE.equals(chainValidation)) {
+				throw new DKIMSignerException("The message has no ARC chain, the chain validation has to be "+NONE);
+			}
+		} else if (FAIL.equals(chainValidation)) {
+			return;
+		} else if (!PASS.equals(chainValidation)) {
+			throw new DKIMSignerException("The validation of an existing ARC chain has to be "+PASS+" or "+FAIL);
+		} else if (!complete || FAIL.equals(getChainValidation())) {
+			throw new DKIMSignerException("The ARC chain is broken, the chain validation has to be "+FAIL);
+		}
+	}
+
+	/*
+	 * Returns the content signed by the seal of the next instance, the seal is passed with an empty b= tag.
+	 */
+	public String getSealedContent(String authenticationResults, String messageSignature, String seal, String chainValidation) throws DKIMSignerException {
+
+		StringBuilder content = new StringBuilder();
+		if (!FAIL.equals(chainValidation)) {
+			for (String[] set : sets.values()) {
+				for (String header : set) {
+					appendCanonicalized(content, header).append("\r\n");
+				}
+			}
+		}
+		appendCanonicalized(content, authenticationResults).append("\r\n");
+		appendCanonicalized(content, messageSignature).append("\r\n");
+		return appendCanonicalized(content, seal).toString();
+	}
+
+	private static StringBuilder appendCanonicalized(StringBuilder content, String header) throws DKIMSignerException {
+
+		String[] headerParts = DKIMUtil.splitHeader(header);
+		return content.append(Canonicalization.RELAXED.canonicalizeHeader(headerParts[0], headerParts[1]));
+	}
+}
@@ -0,0 +1,171 @@
+/* 
+ * Copyright 2008 The Apache Software Foundation or its licensors, as
+ * applicable.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A licence was granted to the ASF by Florian Sager on 30 November 2008
+ */
+
+
+package de.agitos.dkim;
+
+import java.io.File;
+import java.io.IOException;
+
+/*
+ * Process-wide limit for the message bodies that are buffered for signing at the same time.
+ * SMTPDKIMMessage reserves the buffered bytes in steps while capturing a body and releases them after
+ * the message was written. If the limit is reached, the policy decides:
+ *
+ *   WAIT  - the capturing thread waits until other messages release their buffers (at most maxWait ms)
+ *           before it buffers anything; a body that doesn't fit into its reservation anymore is spilled
+ *           instead of waiting, a thread never waits while it holds a part of the budget
+ *   SPILL - the body is written to a temporary file in the spill directory instead
+ *   FAIL  - the message fails with an IOException
+ *
+ * A message is granted its reservation if no other message holds buffers, so a single body
+ * larger than the limit doesn't wait forever. The default limit 0 disables the budget.
+ */
+
+public class BodyBufferBudget {
+
+	public enum Policy { WAIT, SPILL, FAIL }
+
+	private static BodyBufferBudget global = new BodyBufferBudget(0, Policy.WAIT);
+
+	private long limit;
+	private Policy policy;
+	private long maxWait = 60000;
+	private File spillDirectory = null;
+
+	private long usage = 0;
+	private long peakUsage = 0;
+	private long spillCount = 0;
+
+	public BodyBufferBudget(long limit, Policy policy) {
+		this.limit = limit;
+		this.policy = policy;
+	}
+
+	// the budget shared by all SMTPDKIMMessages
+	public static BodyBufferBudget getGlobal() {
+		return global;
+	}
+
+	public synchronized long getLimit() {
+		return limit;
+	}
+
+	// bytes, 0 disables the budget
+	public synchronized void setLimit(long limit) {
+		this.limit = limit;
+		notifyAll();
+	}
+
+	public synchronized Policy getPolicy() {
+		return policy;
+	}
+
+	public synchronized void setPolicy(Policy policy) {
+		this.policy = policy;
+		notifyAll();
+	}
+
+	public synchronized long getMaxWait() {
+		return maxWait;
+	}
+
+	// milliseconds a WAIT reservation waits before it fails
+	public synchronized void setMaxWait(long maxWait) {
+		this.maxWait = maxWait;
+	}
+
+	public synchronized File getSpillDirectory() {
+		return spillDirectory;
+	}
+
+	// null for the default temporary-file directory
+	public synchronized void setSpillDirectory(File spillDirectory) {
+		this.spillDirectory = spillDirectory;
+	}
+
+	// bytes reserved by the messages in flight
+	public synchronized long getUsage() {
+		return usage;
+	}
+
+	public synchronized long getPeakUsage() {
+		return peakUsage;
+	}
+
+	public synchronized void resetPeakUsage() {
+		peakUsage = usage;
+	}
+
+	// number of bodies that were spilled to disk
+	public synchronized long getSpillCount() {
+		return spillCount;
+	}
+
+	/*
+	 * Reserves further bytes for a body that already holds the reservation held. Returns false if the body
+	 * should be spilled to disk instead.
+	 */
+	public synchronized boolean reserve(long bytes, long held) throws IOException {
+
+		long deadline = 0;
+		while (limit > 0 && usage + bytes > limit) {
+			if (policy == Policy.FAIL) {
+				throw new IOException("The body buffer budget of "+limit+" bytes is exhausted");
+			}
+
+			// a body larger than the limit would wait forever
+			if (usage <= held) {
+				break;
+			}
+
+			// several bodies waiting for each other while holding a part of the budget would stall until maxWait
+			if (policy == Policy.SPILL || held > 0) {
+				spillCount++;
+				return false;
+			}
+
+			long now = System.currentTimeMillis();
+			if (deadline == 0) {
+				deadline = now + maxWait;
+			} else if (now >= deadline) {
+				throw new IOException("Waited "+maxWait+" ms for the body buffer budget of "+limit+" bytes");
+			}
+			try {
+				wait(deadline - now);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for the body buffer budget");
+			}
+		}
+
+		usage += bytes;
+		if (usage > peakUsage) {
+			peakUsage = usage;
+		}
+		return true;
+	}
+
+	public synchronized void release(long bytes) {
+		if (bytes > 0) {
+			usage -= bytes;
+			notifyAll();
+		}
+	}
+}
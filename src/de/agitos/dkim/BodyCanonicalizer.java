@@ -0,0 +1,262 @@
+/* 
+ * Copyright 2008 The Apache Software Foundation or its licensors, as
+ * applicable.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A licence was granted to the ASF by Florian Sager on 30 November 2008
+ */
+
+package de.agitos.dkim;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/*
+ * Streaming simple or relaxed body canonicalization. The body may be written in arbitrary pieces,
+ * the line terminators are converted to CRLF first like by CRLFOutputStream.
+ *
+ * Trailing empty lines are held back until further content follows, so the canonicalized body
+ * is complete after close() only. The result equals Canonicalization.canonicalizeBody().
+ */
+
+public class BodyCanonicalizer extends OutputStream {
+
+	private static int BUFFERSIZE = 8192;
+
+	private OutputStream out;
+	private boolean relaxed;
+
+	private byte[] buf = new byte[BUFFERSIZE];
+	private int count = 0;
+
+	private boolean lastCR = false;
+	private boolean lineHasContent = false;
+	private boolean pendingSpace = false;
+	private long pendingEmptyLines = 0;
+	private boolean bodyStarted = false;
+	private boolean closed = false;
+
+	public BodyCanonicalizer(OutputStream out, boolean relaxed) {
+		this.out = out;
+		this.relaxed = relaxed;
+	}
+
+	public void write(int b) throws IOException {
+		write(new byte[] {(byte) b}, 0, 1);
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+
+		ByteBuffer words = ByteBuffer.wrap(b);
+		int end = off + len;
+		int i = off;
+		while (i < end) {
+
+			// copy the run of regular bytes up to the next CR, LF or (relaxed) WSP at once
+			int runEnd = findSpecial(b, words, i, end);
+			if (runEnd > i) {
+				lastCR = false;
+				if (!lineHasContent) {
+					startLine();
+				}
+				if (pendingSpace) {
+					put((byte) ' ');
+					pendingSpace = false;
+				}
+				put(b, i, runEnd - i);
+				i = runEnd;
+				if (i == end) {
+					break;
+				}
+			}
+
+			byte c = b[i++];
+
+			if (c == '\r') {
+				endLine();
+				lastCR = true;
+			} else if (c == '\n') {
+				if (!lastCR) {
+					endLine();
+				}
+				lastCR = false;
+			} else {
+				// relaxed: reduce all sequences of WSP to a single SP, drop them at the end of a line
+				lastCR = false;
+				pendingSpace = true;
+			}
+		}
+	}
+
+	/*
+	 * Returns the position of the first byte in b[from..end) that needs to be processed separately, or end.
+	 * Eight bytes are tested at once whether one of them is a control character below 0x0E (CR, LF,
+	 * HTAB, VT, FF) or - relaxed only - a SP that is followed by another SP or ends the word.
+	 * Only such words are inspected byte by byte.
+	 */
+	private int findSpecial(byte[] b, ByteBuffer words, int from, int end) {
+
+		if (relaxed && pendingSpace && from < end && b[from] == ' ') {
+			return from;
+		}
+
+		int i = from;
+		while (i < end) {
+			if (i + 8 <= end) {
+				long word = words.getLong(i);
+				boolean clean = ((word - 0x0E0E0E0E0E0E0E0EL) & ~word & 0x8080808080808080L) == 0;
+				if (clean && relaxed) {
+					long spaces = word ^ 0x2020202020202020L;
+					spaces |= spaces << 8;
+					clean = ((spaces - 0x0101010101010101L) & ~spaces & 0x8080808080808080L) == 0;
+				}
+				if (clean) {
+					i += 8;
+					continue;
+				}
+			}
+			int wordEnd = Math.min(i + 8, end);
+			for (; i < wordEnd; i++) {
+				byte c = b[i];
+				if (c == '\r' || c == '\n') {
+					return i;
+				}
+				if (relaxed && isWSP(c)) {
+					// a single SP between other characters remains as it is
+					if (c != ' ' || i + 1 == end || isWSP(b[i+1]) || b[i+1] == '\r' || b[i+1] == '\n') {
+						return i;
+					}
+				}
+			}
+		}
+		return end;
+	}
+
+	private static boolean isWSP(byte c) {
+
+		return c == ' ' || c == '\t' || c == 0x0B || c == '\f';
+	}
+
+	/*
+	 * Writes a span that consists of complete, non-empty lines terminated by CRLF without any whitespace,
+	 * e.g. the output of a base64 encoder. Apart from the first and the last line these lines are
+	 * canonical already in both algorithms and are passed through without inspecting every byte.
+	 */
+	public void writeTrusted(byte[] b, int off, int len) throws IOException {
+
+		int end = off + len;
+
+		// the first line is processed regularly to complete the state of the preceding content
+		int lineEnd = off;
+		while (lineEnd < end && b[lineEnd] != '\n') {
+			lineEnd++;
+		}
+		if (lineEnd == end) {
+			write(b, off, len);
+			return;
+		}
+		write(b, off, lineEnd + 1 - off);
+
+		int last = end - 1;
+		while (last > lineEnd && b[last] != '\n') {
+			last--;
+		}
+
+		if (last > lineEnd && !lineHasContent && !pendingSpace && pendingEmptyLines == 0) {
+			if (count > 0) {
+				out.write(buf, 0, count);
+				count = 0;
+			}
+			out.write(b, lineEnd + 1, last - lineEnd);
+			lineEnd = last;
+		}
+
+		write(b, lineEnd + 1, end - lineEnd - 1);
+	}
+
+	private void startLine() throws IOException {
+
+		// the held back empty lines are followed by content
+		while (pendingEmptyLines > 0) {
+			put((byte) '\r');
+			put((byte) '\n');
+			pendingEmptyLines--;
+		}
+		lineHasContent = true;
+		bodyStarted = true;
+	}
+
+	private void endLine() throws IOException {
+
+		pendingSpace = false;
+		if (lineHasContent) {
+			put((byte) '\r');
+			put((byte) '\n');
+			lineHasContent = false;
+		} else {
+			pendingEmptyLines++;
+		}
+	}
+
+	private void put(byte[] b, int off, int len) throws IOException {
+
+		while (len > 0) {
+			if (count == buf.length) {
+				out.write(buf, 0, count);
+				count = 0;
+			}
+			int n = Math.min(len, buf.length - count);
+			System.arraycopy(b, off, buf, count, n);
+			count += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	private void put(byte c) throws IOException {
+
+		if (count == buf.length) {
+			out.write(buf, 0, count);
+			count = 0;
+		}
+		buf[count++] = c;
+	}
+
+	public void close() throws IOException {
+
+		if (closed) {
+			return;
+		}
+		closed = true;
+
+		// an unterminated last line keeps its trailing space, see Canonicalization.canonicalizeBody()
+		if (pendingSpace) {
+			if (!lineHasContent) {
+				startLine();
+			}
+			put((byte) ' ');
+		}
+
+		// the body must end with CRLF, an empty body consists of CRLF only
+		if (lineHasContent || !bodyStarted) {
+			put((byte) '\r');
+			put((byte) '\n');
+		}
+
+		out.write(buf, 0, count);
+		count = 0;
+		out.close();
+	}
+}
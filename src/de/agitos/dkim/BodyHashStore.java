@@ -0,0 +1,356 @@
+/* 
+ * Copyright 2008 The Apache Software Foundation or its licensors, as
+ * applicable.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A licence was granted to the ASF by Florian Sager on 30 November 2008
+ */
+
+package de.agitos.dkim;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/*
+ * A fixed-size open-addressing table in a memory-mapped file that maps the fingerprint of the encoded body
+ * plus the canonicalization, the hashing algorithm and the signed length to the body hash, so several
+ * sender JVMs on a host canonicalize and hash identical content only once, also after a restart.
+ *
+ * The fingerprint (see BodyFingerprint) is a 64 bit multiplicative hash keyed by a random seed of the store
+ * file, confirmed by the CRC32 and the length of the body. It is computed two to five times faster than a
+ * SHA-256 body hash, so a hit saves work for every canonicalization; without the seed, a colliding body
+ * can't be made on purpose.
+ *
+ * Slot layout (80 bytes): fingerprint hash, body length, limit, hashed length (longs), body CRC32, descriptor
+ * of algorithm and canonicalization, hash length (ints), hash (32 bytes), CRC32 of the preceding bytes.
+ * Slots are read without locking and are only used if their checksum matches, so a slot that is being
+ * written by another process reads as empty. Java offers no compare-and-swap on mapped files, writers
+ * lock the slot's region of the file instead.
+ */
+
+public class BodyHashStore {
+
+	private static long MAGIC = 0x444B494D42483033L; // "DKIMBH03"
+	private static int HEADERSIZE = 24;
+	private static int SLOTSIZE = 80;
+	private static int MAXHASHLENGTH = 32;
+
+	// offsets in a slot
+	private static int FINGERPRINT = 0;
+	private static int BODYLENGTH = 8;
+	private static int LIMIT = 16;
+	private static int HASHEDLENGTH = 24;
+	private static int BODYCHECKSUM = 32;
+	private static int DESCRIPTOR = 36;
+	private static int HASHLENGTH = 40;
+	private static int HASH = 44;
+	private static int CHECKSUM = 76;
+	private static int MAXPROBES = 8;
+	private static int LOCKSTRIPES = 64;
+
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private MappedByteBuffer buffer;
+	private int slots;
+	private long seed;
+	private long minBodyLength = 4096;
+
+	// threads of this JVM must not request overlapping file locks
+	private Object[] stripes = new Object[LOCKSTRIPES];
+
+	private AtomicLong hits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+
+	/*
+	 * Opens or creates the store, slots is rounded up to a power of two. An existing file keeps its size and seed.
+	 */
+	public BodyHashStore(File path, int slots) throws IOException {
+
+		int size = 1;
+		while (size < slots) {
+			size <<= 1;
+		}
+
+		file = new RandomAccessFile(path, "rw");
+		channel = file.getChannel();
+
+		// the first process initializes the header
+		FileLock headerLock = channel.lock(0, HEADERSIZE, false);
+		try {
+			if (file.length() < HEADERSIZE) {
+				file.setLength(HEADERSIZE + (long) size * SLOTSIZE);
+				file.seek(0);
+				file.writeLong(MAGIC);
+				file.writeInt(size);
+				file.writeInt(SLOTSIZE);
+				file.writeLong(new SecureRandom().nextLong());
+			}
+			file.seek(0);
+			if (file.readLong() != MAGIC) {
+				throw new IOException(path+" is no body hash store");
+			}
+			this.slots = file.readInt();
+			if (file.readInt() != SLOTSIZE || Integer.bitCount(this.slots) != 1 || file.length() < HEADERSIZE + (long) this.slots * SLOTSIZE) {
+				throw new IOException(path+" has an unsupported layout");
+			}
+			this.seed = file.readLong();
+		} finally {
+			headerLock.release();
+		}
+
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADERSIZE + (long) this.slots * SLOTSIZE);
+		for (int i = 0; i < LOCKSTRIPES; i++) {
+			stripes[i] = new Object();
+		}
+	}
+
+	public int getSlots() {
+		return slots;
+	}
+
+	public long getMinBodyLength() {
+		return minBodyLength;
+	}
+
+	// smaller bodies are hashed without the store, they are hashed about as fast as they are looked up
+	public void setMinBodyLength(long minBodyLength) {
+		this.minBodyLength = minBodyLength;
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	// computes the fingerprint of the encoded body written to it, with the seed of this store
+	public BodyFingerprint createFingerprint() {
+		return new BodyFingerprint(seed);
+	}
+
+	/*
+	 * Returns the stored hash of the body with the fingerprint and the hashed length in hashedLength[0], or null.
+	 */
+	public byte[] lookup(BodyFingerprint fingerprint, long limit, String hashAlgorithm, Canonicalization canonicalization, long[] hashedLength) {
+
+		int descriptor = descriptor(hashAlgorithm, canonicalization);
+		ByteBuffer slot = ByteBuffer.allocate(SLOTSIZE);
+		int start = index(fingerprint, descriptor);
+		for (int probe = 0; probe < MAXPROBES; probe++) {
+			if (!readSlot((start + probe) & (slots - 1), slot)) {
+				continue;
+			}
+			if (slot.getInt(DESCRIPTOR) == 0) {
+				break;
+			}
+			if (matches(slot, fingerprint, limit, descriptor)) {
+				hashedLength[0] = slot.getLong(HASHEDLENGTH);
+				byte[] hash = new byte[slot.getInt(HASHLENGTH)];
+				for (int i = 0; i < hash.length; i++) {
+					hash[i] = slot.get(HASH + i);
+				}
+				hits.incrementAndGet();
+				return hash;
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/*
+	 * Stores the body hash in the first free, invalid or matching slot along the probe sequence,
+	 * if all are occupied the first one is replaced.
+	 */
+	public void store(BodyFingerprint fingerprint, long limit, String hashAlgorithm, Canonicalization canonicalization, long hashedLength, byte[] hash) throws IOException {
+
+		if (hash.length > MAXHASHLENGTH) {
+			return;
+		}
+		int descriptor = descriptor(hashAlgorithm, canonicalization);
+		ByteBuffer slot = ByteBuffer.allocate(SLOTSIZE);
+		int start = index(fingerprint, descriptor);
+		int target = start;
+		for (int probe = 0; probe < MAXPROBES; probe++) {
+			int index = (start + probe) & (slots - 1);
+			if (!readSlot(index, slot) || slot.getInt(DESCRIPTOR) == 0 || matches(slot, fingerprint, limit, descriptor)) {
+				target = index;
+				break;
+			}
+		}
+
+		slot.clear();
+		slot.putLong(fingerprint.getHash()).putLong(fingerprint.getLength()).putLong(limit).putLong(hashedLength);
+		slot.putInt(fingerprint.getChecksum()).putInt(descriptor).putInt(hash.length).put(hash);
+		slot.position(CHECKSUM);
+		slot.putInt(checksum(slot));
+
+		long position = HEADERSIZE + (long) target * SLOTSIZE;
+		synchronized (stripes[target % LOCKSTRIPES]) {
+			FileLock slotLock = channel.lock(position, SLOTSIZE, false);
+			try {
+				ByteBuffer mapped = buffer.duplicate();
+				mapped.position((int) position);
+				slot.rewind();
+				mapped.put(slot);
+			} finally {
+				slotLock.release();
+			}
+		}
+	}
+
+	// copies the slot and returns true if it's empty or its checksum is valid
+	private boolean readSlot(int index, ByteBuffer slot) {
+
+		ByteBuffer mapped = buffer.duplicate();
+		mapped.position(HEADERSIZE + index * SLOTSIZE);
+		mapped.limit(HEADERSIZE + (index + 1) * SLOTSIZE);
+		slot.clear();
+		slot.put(mapped);
+		return slot.getInt(DESCRIPTOR) == 0 || slot.getInt(CHECKSUM) == checksum(slot);
+	}
+
+	private static boolean matches(ByteBuffer slot, BodyFingerprint fingerprint, long limit, int descriptor) {
+
+		return slot.getLong(FINGERPRINT) == fingerprint.getHash() && slot.getLong(BODYLENGTH) == fingerprint.getLength()
+				&& slot.getInt(BODYCHECKSUM) == fingerprint.getChecksum() && slot.getLong(LIMIT) == limit && slot.getInt(DESCRIPTOR) == descriptor;
+	}
+
+	private static int checksum(ByteBuffer slot) {
+
+		CRC32 crc = new CRC32();
+		for (int i = 0; i < CHECKSUM; i++) {
+			crc.update(slot.get(i));
+		}
+		return (int) crc.getValue();
+	}
+
+	// never 0, which marks an empty slot
+	private static int descriptor(String hashAlgorithm, Canonicalization canonicalization) {
+
+		CRC32 crc = new CRC32();
+		byte[] b = (hashAlgorithm.toLowerCase()+"/"+canonicalization.getType()).getBytes();
+		crc.update(b, 0, b.length);
+		int descriptor = (int) crc.getValue();
+		return descriptor == 0 ? 1 : descriptor;
+	}
+
+	private int index(BodyFingerprint fingerprint, int descriptor) {
+
+		// the fingerprint hash is mixed already
+		long h = fingerprint.getHash() ^ descriptor;
+		h ^= h >>> 31;
+		h *= 0xBF58476D1CE4E5B9L;
+		h ^= h >>> 29;
+		return (int) h & (slots - 1);
+	}
+
+	// writes the table to the disk and closes the file
+	public void close() throws IOException {
+		buffer.force();
+		channel.close();
+		file.close();
+	}
+
+	/*
+	 * The key of the store: a seeded 64 bit hash of the encoded body written to it, eight bytes per step,
+	 * together with the CRC32 and the length of the body. Create it by BodyHashStore.createFingerprint().
+	 */
+	public static class BodyFingerprint extends OutputStream {
+
+		private static long PRIME1 = 0x9E3779B185EBCA87L;
+		private static long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+		private static long PRIME3 = 0x165667B19E3779F9L;
+
+		private long hash;
+		private long pending = 0;
+		private int pendingBytes = 0;
+		private long length = 0;
+		private CRC32 crc = new CRC32();
+
+		BodyFingerprint(long seed) {
+			this.hash = seed ^ PRIME3;
+		}
+
+		public void write(int b) {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) {
+
+			crc.update(b, off, len);
+			length += len;
+
+			int end = off + len;
+			int i = off;
+			while (pendingBytes > 0 && i < end) {
+				pending |= (b[i++] & 0xffL) << (8 * pendingBytes);
+				if (++pendingBytes == 8) {
+					round(pending);
+					pending = 0;
+					pendingBytes = 0;
+				}
+			}
+			if (end - i >= 8) {
+				ByteBuffer words = ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN);
+				for (; i + 8 <= end; i += 8) {
+					round(words.getLong(i));
+				}
+			}
+			for (; i < end; i++) {
+				pending |= (b[i] & 0xffL) << (8 * pendingBytes++);
+			}
+		}
+
+		private void round(long word) {
+			hash ^= Long.rotateLeft(word * PRIME2, 31) * PRIME1;
+			hash = Long.rotateLeft(hash, 27) * PRIME1 + PRIME3;
+		}
+
+		public long getHash() {
+
+			long h = hash;
+			if (pendingBytes > 0) {
+				h ^= Long.rotateLeft(pending * PRIME2, 31) * PRIME1;
+				h = Long.rotateLeft(h, 27) * PRIME1 + PRIME3;
+			}
+			h ^= length * PRIME2;
+			h ^= h >>> 33;
+			h *= PRIME2;
+			h ^= h >>> 29;
+			h *= PRIME3;
+			h ^= h >>> 32;
+			return h;
+		}
+
+		public int getChecksum() {
+			return (int) crc.getValue();
+		}
+
+		public long getLength() {
+			return length;
+		}
+	}
+}
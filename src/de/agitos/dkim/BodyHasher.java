@@ -0,0 +1,87 @@
+/* 
+ * Copyright 2008 The Apache Software Foundation or its licensors, as
+ * applicable.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A licence was granted to the ASF by Florian Sager on 30 November 2008
+ */
+
+package de.agitos.dkim;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+
+/*
+ * Hashes the canonicalized body written to it and counts its length. With a limit only the leading
+ * bytes of the body are hashed, the remaining bytes are ignored.
+ */
+
+public class BodyHasher extends OutputStream {
+
+	protected MessageDigest messageDigest;
+	protected long length = 0;
+	protected long limit = -1;
+
+	public BodyHasher(MessageDigest messageDigest) {
+		this.messageDigest = messageDigest;
+	}
+
+	public void write(int b) throws IOException {
+		if (isLimitReached()) {
+			return;
+		}
+		messageDigest.update((byte) b);
+		length++;
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+		len = hashable(len);
+		messageDigest.update(b, off, len);
+		length += len;
+	}
+
+	// the number of hashed bytes
+	public long getLength() {
+		return length;
+	}
+
+	public long getLimit() {
+		return limit;
+	}
+
+	// -1 hashes the complete body
+	public void setLimit(long limit) {
+		this.limit = limit;
+	}
+
+	public boolean isLimitReached() {
+		return limit >= 0 && length >= limit;
+	}
+
+	// the part of len bytes that is hashed before the limit is reached
+	protected int hashable(int len) {
+		return limit < 0 ? len : (int) Math.min(len, Math.max(0, limit - length));
+	}
+
+	// call after the body was written completely
+	public byte[] digest() throws IOException {
+		return messageDigest.digest();
+	}
+
+	// releases resources if the body couldn't be written completely
+	public void abort() {
+		messageDigest.reset();
+	}
+}
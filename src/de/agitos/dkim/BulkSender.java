@@ -0,0 +1,283 @@
+/* 
+ * Copyright 2008 The Apache Software Foundation or its licensors, as
+ * applicable.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A licence was granted to the ASF by Florian Sager on 30 November 2008
+ */
+
+package de.agitos.dkim;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+
+import com.sun.mail.smtp.SMTPMessage;
+
+/*
+ * Sends many messages over a bounded pool of connected SMTP transports, e.g. the SMTPDKIMMessages
+ * of a campaign that share one DKIMSigner. Every send runs as a task of an executor and may wait for
+ * a connection; the messages are signed before a connection is taken, while holding only one of the
+ * signing permits (one per core by default), so signing never keeps a connection idle, a failed
+ * signing never costs a connection and signing never occupies more cores than permitted.
+ *
+ * A connection is closed and replaced after a configurable number of messages and after a failed send.
+ * On Java 21 and later Executors.newVirtualThreadPerTaskExecutor() suits the waiting for connections,
+ * but the per-thread SigningBuffers aren't reused then, see SigningBuffers.
+ */
+
+public class BulkSender {
+
+	private static String[] IGNOREDHEADERS = new String[] {"Bcc", "Content-Length"};
+
+	private Session session;
+	private String user = null;
+	private String password = null;
+	private int maxMessagesPerConnection = 100;
+
+	private Semaphore connectionPermits;
+	private Semaphore signingPermits;
+	private ConcurrentLinkedQueue<Connection> idleConnections = new ConcurrentLinkedQueue<Connection>();
+	private ExecutorService executor;
+	private boolean ownExecutor;
+
+	private AtomicLong sent = new AtomicLong();
+	private AtomicLong failed = new AtomicLong();
+	private AtomicLong connects = new AtomicLong();
+
+	private static class Connection {
+
+		private Transport transport;
+		private int messages = 0;
+
+		private Connection(Transport transport) {
+			this.transport = transport;
+		}
+	}
+
+	/*
+	 * The transports connect to the SMTP server configured in the session (mail.smtp.host, mail.smtp.port).
+	 */
+	public BulkSender(Session session, int maxConnections) {
+		this(session, maxConnections, null);
+	}
+
+	// the executor runs the sends, null creates a pool of daemon threads that is shut down by close()
+	public BulkSender(Session session, int maxConnections, ExecutorService executor) {
+
+		if (maxConnections < 1) {
+			throw new IllegalArgumentException("One connection is required at least");
+		}
+		this.session = session;
+		this.connectionPermits = new Semaphore(maxConnections);
+		this.signingPermits = new Semaphore(Runtime.getRuntime().availableProcessors());
+		this.ownExecutor = executor == null;
+		this.executor = executor != null ? executor : Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "DKIM bulk sender");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	// SMTP-AUTH credentials for the transports
+	public void setAuthentication(String user, String password) {
+		this.user = user;
+		this.password = password;
+	}
+
+	public int getMaxMessagesPerConnection() {
+		return maxMessagesPerConnection;
+	}
+
+	// a connection is replaced after this number of messages, many servers limit the messages per connection
+	public void setMaxMessagesPerConnection(int maxMessagesPerConnection) {
+		this.maxMessagesPerConnection = maxMessagesPerConnection;
+	}
+
+	// the number of messages signed at once, the number of cores by default; set it before sending
+	public void setSigningPermits(int signingPermits) {
+		this.signingPermits = new Semaphore(signingPermits);
+	}
+
+	public long getSentCount() {
+		return sent.get();
+	}
+
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	// the number of connections opened, including reconnections
+	public long getConnectCount() {
+		return connects.get();
+	}
+
+	/*
+	 * Queues the message for sending to its recipients like Transport.send(), the Future
+	 * returns the exception of a failed send.
+	 */
+	public Future<?> send(final Message message) {
+
+		return executor.submit(new Callable<Object>() {
+			public Object call() throws Exception {
+				try {
+					sendMessage(message);
+					sent.incrementAndGet();
+					return null;
+				} catch (Exception e) {
+					failed.incrementAndGet();
+					throw e;
+				}
+			}
+		});
+	}
+
+	private void sendMessage(Message message) throws InterruptedException, IOException, MessagingException {
+
+		Address[] recipients = message.getAllRecipients();
+		if (recipients == null || recipients.length == 0) {
+			throw new MessagingException("No recipient addresses");
+		}
+
+		// sign before taking a connection, the signed message is written as it is
+		Message signedMessage;
+		Semaphore signingPermits = this.signingPermits;
+		signingPermits.acquire();
+		try {
+			message.saveChanges();
+			signedMessage = new SignedMessage(session, message);
+		} finally {
+			signingPermits.release();
+		}
+
+		connectionPermits.acquire();
+		Connection connection = null;
+		try {
+			connection = takeConnection();
+			connection.transport.sendMessage(signedMessage, recipients);
+			connection.messages++;
+			if (connection.messages < maxMessagesPerConnection) {
+				idleConnections.offer(connection);
+				connection = null;
+			}
+		} finally {
+			// a failed or used up connection is replaced by the next send
+			if (connection != null) {
+				closeConnection(connection);
+			}
+			connectionPermits.release();
+		}
+	}
+
+	private Connection takeConnection() throws MessagingException {
+
+		Connection connection = idleConnections.poll();
+		if (connection != null) {
+			return connection;
+		}
+		Transport transport = session.getTransport("smtp");
+		if (user != null) {
+			transport.connect(user, password);
+		} else {
+			transport.connect();
+		}
+		connects.incrementAndGet();
+		return new Connection(transport);
+	}
+
+	private static void closeConnection(Connection connection) {
+		try {
+			connection.transport.close();
+		} catch (MessagingException me) {}
+	}
+
+	/*
+	 * Waits for the queued messages and closes the connections. An executor passed to the
+	 * constructor isn't shut down.
+	 */
+	public void close() throws InterruptedException {
+
+		if (ownExecutor) {
+			executor.shutdown();
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		Connection connection;
+		while ((connection = idleConnections.poll()) != null) {
+			closeConnection(connection);
+		}
+	}
+
+	/*
+	 * The message as rendered and signed once, the transport writes these bytes. The envelope
+	 * options of an SMTPMessage are kept, they are used by the transport and aren't part of the content.
+	 */
+	private static class SignedMessage extends SMTPMessage {
+
+		private byte[] content;
+		private Address[] from;
+
+		private SignedMessage(Session session, Message message) throws IOException, MessagingException {
+
+			super(session);
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			if (message instanceof MimeMessage) {
+				((MimeMessage) message).writeTo(bos, IGNOREDHEADERS);
+			} else {
+				message.writeTo(bos);
+			}
+			this.content = bos.toByteArray();
+			this.from = message.getFrom();
+			if (message instanceof SMTPMessage) {
+				SMTPMessage smtpMessage = (SMTPMessage) message;
+				setEnvelopeFrom(smtpMessage.getEnvelopeFrom());
+				setNotifyOptions(smtpMessage.getNotifyOptions());
+				setReturnOption(smtpMessage.getReturnOption());
+				setAllow8bitMIME(smtpMessage.getAllow8bitMIME());
+				setSendPartial(smtpMessage.getSendPartial());
+				setSubmitter(smtpMessage.getSubmitter());
+				setMailExtension(smtpMessage.getMailExtension());
+			}
+		}
+
+		public void writeTo(OutputStream os, String[] ignoreList) throws IOException {
+			os.write(content);
+		}
+
+		public Address[] getFrom() {
+			return from;
+		}
+
+		public int getSize() {
+			return content.length;
+		}
+	}
+}
@@ -18,7 +18,11 @@
  */
 package de.agitos.dkim;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+
+import com.sun.mail.util.CRLFOutputStream;
 
 /*
  * Provides Simple and Relaxed Canonicalization according to DKIM RFC 4871.
@@ -47,12 +51,12 @@ public class Canonicalization {
 			}
 
 			// The body must end with \r\n
-			if (!"\r\n".equals(body.substring(body.length()-2, body.length()))) {
+			if (!body.endsWith("\r\n")) {
 				return body+"\r\n";
 			}
 
 			// Remove trailing empty lines ...
-			while ("\r\n\r\n".equals(body.substring(body.length()-4, body.length()))) {
+			while (body.endsWith("\r\n\r\n")) {
 				body = body.substring(0, body.length()-2);
 				if (body.length() < 4) {
 				    break;
@@ -61,6 +65,11 @@ public class Canonicalization {
 
 			return body;
 		}
+
+		public OutputStream getBodyCanonicalizer(OutputStream out) {
+
+			return new BodyCanonicalizer(out, false);
+		}
 	};
 	
 	public static Canonicalization RELAXED = new Canonicalization() {
@@ -87,12 +96,12 @@ public class Canonicalization {
 			body = body.replaceAll(" \r\n", "\r\n");
 
 			// The body must end with \r\n
-			if (!"\r\n".equals(body.substring(body.length()-2, body.length()))) {
+			if (!body.endsWith("\r\n")) {
 				return body+"\r\n";
 			}
 
 			// Remove trailing empty lines ...
-			while ("\r\n\r\n".equals(body.substring(body.length()-4, body.length()))) {
+			while (body.endsWith("\r\n\r\n")) {
 				body = body.substring(0, body.length()-2);
 				if (body.length() < 4) {
 				    break;
@@ -101,6 +110,11 @@ public class Canonicalization {
 
 			return body;
 		}
+
+		public OutputStream getBodyCanonicalizer(OutputStream out) {
+
+			return new BodyCanonicalizer(out, true);
+		}
 	};
 
 	public Canonicalization() { }
@@ -116,4 +130,22 @@ public class Canonicalization {
 	public String canonicalizeBody(String body) throws IOException {
 		return null;
 	}
+
+	/*
+	 * Returns a stream that canonicalizes the raw body written to it into out, the line terminators
+	 * are converted to CRLF before. The canonicalized body is complete when the stream is closed.
+	 * By default the complete body is collected and canonicalized by canonicalizeBody() on close().
+	 */
+	public OutputStream getBodyCanonicalizer(final OutputStream out) {
+
+		return new ByteArrayOutputStream() {
+			public void close() throws IOException {
+				ByteArrayOutputStream crlfBody = new ByteArrayOutputStream();
+				CRLFOutputStream crlfos = new CRLFOutputStream(crlfBody);
+				crlfos.write(toByteArray());
+				out.write(canonicalizeBody(crlfBody.toString()).getBytes());
+				out.close();
+			}
+		};
+	}
 }
@@ -0,0 +1,139 @@
+/* 
+ * Copyright 2008 The Apache Software Foundation or its licensors, as
+ * applicable.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A licence was granted to the ASF by Florian Sager on 30 November 2008
+ */
+
+
+package de.agitos.dkim;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/*
+ * The encoded body of a message while it is signed. The body is kept in a reused memory buffer
+ * as long as the BodyBufferBudget grants it, otherwise it is spilled to a temporary file.
+ * release() must be called after the message was written.
+ */
+
+public class CapturedBody extends OutputStream {
+
+	private static int RESERVATIONSTEP = 65536;
+
+	private BodyBufferBudget budget;
+	private SigningBuffers.BodyBuffer memory;
+	private long reserved = 0;
+	private long size = 0;
+
+	private File spillFile = null;
+	private OutputStream spillStream = null;
+
+	public CapturedBody(SigningBuffers.BodyBuffer memory, BodyBufferBudget budget) {
+		this.memory = memory;
+		this.budget = budget;
+	}
+
+	public void write(int b) throws IOException {
+		write(new byte[] {(byte) b}, 0, 1);
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+
+		if (spillStream == null && size + len > reserved) {
+			long step = Math.max(RESERVATIONSTEP, size + len - reserved);
+			if (budget.reserve(step, reserved)) {
+				reserved += step;
+			} else {
+				spill();
+			}
+		}
+
+		if (spillStream != null) {
+			spillStream.write(b, off, len);
+		} else {
+			memory.write(b, off, len);
+		}
+		size += len;
+	}
+
+	private void spill() throws IOException {
+
+		spillFile = File.createTempFile("dkim", ".body", budget.getSpillDirectory());
+		spillStream = new BufferedOutputStream(new FileOutputStream(spillFile), 65536);
+		memory.writeTo(spillStream);
+		memory.reset();
+		budget.release(reserved);
+		reserved = 0;
+	}
+
+	public void flush() throws IOException {
+		if (spillStream != null) {
+			spillStream.flush();
+		}
+	}
+
+	public long size() {
+		return size;
+	}
+
+	public boolean isSpilled() {
+		return spillFile != null;
+	}
+
+	// the body if it is kept in memory, valid up to size()
+	public byte[] getBuffer() {
+		return spillFile == null ? memory.getBuffer() : null;
+	}
+
+	// copies the complete body to os
+	public void writeTo(OutputStream os) throws IOException {
+
+		if (spillFile == null) {
+			os.write(memory.getBuffer(), 0, memory.size());
+			return;
+		}
+
+		spillStream.flush();
+		InputStream is = new FileInputStream(spillFile);
+		try {
+			byte[] buf = new byte[65536];
+			int len;
+			while ((len = is.read(buf)) > 0) {
+				os.write(buf, 0, len);
+			}
+		} finally {
+			is.close();
+		}
+	}
+
+	// returns the reservation and deletes a spill file
+	public void release() {
+
+		budget.release(reserved);
+		reserved = 0;
+		if (spillFile != null) {
+			try {
+				spillStream.close();
+			} catch (IOException ioe) {}
+			spillFile.delete();
+		}
+	}
+}
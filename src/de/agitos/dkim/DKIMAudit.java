@@ -0,0 +1,484 @@
+/* 
+ * Copyright 2008 The Apache Software Foundation or its licensors, as
+ * applicable.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A licence was granted to the ASF by Florian Sager on 30 November 2008
+ */
+
+package de.agitos.dkim;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Verifies the DKIM signatures of archived messages, e.g. of the sent mail after a key rotation.
+ * mbox files are memory-mapped and split into messages on the mapping, the files of Maildir
+ * folders (cur, new) are single messages that are read into the buffer of the verifying thread,
+ * only files larger than the map threshold (default 256 KB) are memory-mapped. The messages are verified in parallel by one shared
+ * DKIMVerifier and the results are counted per signing domain, selector and failure reason.
+ *
+ * The messages of the mappings are verified in place, see DKIMVerifier.verify(ByteBuffer). Only an mbox
+ * message with mboxrd quoted ">From " lines is copied into a buffer of the verifying thread, which removes
+ * the quoting, since the verifier needs the original body.
+ *
+ * Usage: java de.agitos.dkim.DKIMAudit <keyfile|dns> <mbox or Maildir> [threads]
+ */
+
+public class DKIMAudit {
+
+	private static int MAPWINDOW = 1 << 30;
+	private static String NOSIGNATURE = "-";
+
+	private static ThreadLocal<byte[]> messageBuffers = new ThreadLocal<byte[]>();
+
+	private DKIMVerifier verifier;
+	private int threads;
+	private PrintStream progressStream = System.err;
+	private long progressInterval = 10000;
+	private long mapThreshold = 256 * 1024;
+
+	private ConcurrentHashMap<String, AtomicLong> results = new ConcurrentHashMap<String, AtomicLong>();
+	private AtomicLong messageCount = new AtomicLong();
+	private AtomicLong passedCount = new AtomicLong();
+	private AtomicLong bytesScanned = new AtomicLong();
+
+	public DKIMAudit(DKIMVerifier verifier) {
+		this(verifier, Runtime.getRuntime().availableProcessors());
+	}
+
+	public DKIMAudit(DKIMVerifier verifier, int threads) {
+		this.verifier = verifier;
+		this.threads = threads < 1 ? 1 : threads;
+	}
+
+	public long getMapThreshold() {
+		return mapThreshold;
+	}
+
+	// larger single message files are memory-mapped, smaller ones are read into the buffer of the verifying thread
+	public void setMapThreshold(long mapThreshold) {
+		this.mapThreshold = mapThreshold;
+	}
+
+	// progress is reported every progressInterval milliseconds, a null stream disables the reports
+	public void setProgressStream(PrintStream progressStream) {
+		this.progressStream = progressStream;
+	}
+
+	public void setProgressInterval(long progressInterval) {
+		this.progressInterval = progressInterval;
+	}
+
+	public long getMessageCount() {
+		return messageCount.get();
+	}
+
+	public long getPassedCount() {
+		return passedCount.get();
+	}
+
+	public long getFailedCount() {
+		return messageCount.get() - passedCount.get();
+	}
+
+	public long getBytesScanned() {
+		return bytesScanned.get();
+	}
+
+	/*
+	 * The number of messages per signing domain, selector and result ("pass" or the failure reason),
+	 * separated by tabs. Messages without a signature are counted with "-" as domain and selector.
+	 */
+	public Map<String, Long> getSummary() {
+
+		TreeMap<String, Long> summary = new TreeMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry : results.entrySet()) {
+			summary.put(entry.getKey(), entry.getValue().get());
+		}
+		return summary;
+	}
+
+	public void printSummary(PrintStream out) {
+
+		for (Map.Entry<String, Long> entry : getSummary().entrySet()) {
+			out.println(entry.getValue()+"\t"+entry.getKey());
+		}
+		out.println(messageCount.get()+" messages, "+passedCount.get()+" passed, "+getFailedCount()+" failed");
+	}
+
+	/*
+	 * Verifies all messages of an mbox file or below a directory and blocks until all of them are verified.
+	 * Files starting with "From " are mbox files, other files count as messages if they are given directly
+	 * or are in a cur or new directory of a Maildir.
+	 */
+	public void audit(File file) throws IOException, InterruptedException {
+
+		final long start = System.currentTimeMillis();
+
+		// the bounded queue lets the splitting wait for the workers instead of queueing the whole archive
+		ThreadPoolExecutor workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(threads * 256), new ThreadPoolExecutor.CallerRunsPolicy());
+
+		ScheduledExecutorService reporter = null;
+		if (progressStream != null && progressInterval > 0) {
+			reporter = Executors.newSingleThreadScheduledExecutor();
+			reporter.scheduleAtFixedRate(new Runnable() {
+				public void run() {
+					reportProgress(start);
+				}
+			}, progressInterval, progressInterval, TimeUnit.MILLISECONDS);
+		}
+
+		try {
+			if (file.isDirectory()) {
+				walk(file, workers);
+			} else {
+				auditFile(file, true, workers);
+			}
+		} finally {
+			workers.shutdown();
+			workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			if (reporter != null) {
+				reporter.shutdownNow();
+				reportProgress(start);
+			}
+		}
+	}
+
+	private void walk(File dir, ThreadPoolExecutor workers) throws IOException {
+
+		String[] names = dir.list();
+		if (names == null) {
+			return;
+		}
+
+		boolean maildir = dir.getName().equals("cur") || dir.getName().equals("new");
+		for (String name : names) {
+			File file = new File(dir, name);
+			if (file.isDirectory()) {
+				walk(file, workers);
+			} else if (file.isFile() && !name.startsWith(".")) {
+				auditFile(file, maildir, workers);
+			}
+		}
+	}
+
+	private void auditFile(final File file, boolean maildir, ThreadPoolExecutor workers) throws IOException {
+
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			FileChannel channel = fis.getChannel();
+			long size = channel.size();
+			if (size == 0) {
+				return;
+			}
+
+			ByteBuffer head = ByteBuffer.allocate(5);
+			channel.read(head, 0);
+			if (isFromLine(head, 0, head.position())) {
+				splitMbox(file, channel, size, workers);
+			} else if (maildir) {
+				if (size > Integer.MAX_VALUE) {
+					throw new IOException(file+" is too large for verification");
+				}
+				if (size > mapThreshold) {
+					final ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+					workers.execute(new Runnable() {
+						public void run() {
+							verifyMessage(mapped, 0, mapped.limit(), false);
+						}
+					});
+				} else {
+					final int length = (int) size;
+					workers.execute(new Runnable() {
+						public void run() {
+							verifyFile(file, length);
+						}
+					});
+				}
+			}
+		} finally {
+			fis.close();
+		}
+	}
+
+	/*
+	 * Maps the mbox window by window and passes every message to the workers. A window ends
+	 * with the last complete message, the next one starts with its "From " line.
+	 */
+	private void splitMbox(File file, FileChannel channel, long size, ThreadPoolExecutor workers) throws IOException {
+
+		long pos = 0;
+		while (pos < size) {
+			long windowSize = Math.min(size - pos, MAPWINDOW);
+			boolean last = pos + windowSize == size;
+			final ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, pos, windowSize).order(ByteOrder.nativeOrder());
+			int end = mapped.limit();
+
+			int messageStart = 0;
+			while (messageStart < end) {
+				// the content starts after the "From " line
+				int contentStart = indexOf(mapped, messageStart, end, (byte) '\n') + 1;
+				if (contentStart == 0) {
+					if (!last) {
+						break;
+					}
+					contentStart = end;
+				}
+
+				// the LF of the empty line before the next "From " line is no part of the message
+				int lf = contentStart - 1;
+				int next = -1;
+				while ((lf = indexOf(mapped, lf + 1, end, (byte) '\n')) >= 0) {
+					if (lf + 5 >= end) {
+						break;
+					}
+					if (mapped.get(lf + 1) == 'F' && isFromLine(mapped, lf + 1, end)) {
+						next = lf + 1;
+						break;
+					}
+				}
+				if (next < 0 && !last) {
+					break;
+				}
+
+				final int from = contentStart;
+				final int to = next < 0 ? end : next - 1;
+				workers.execute(new Runnable() {
+					public void run() {
+						verifyMessage(mapped, from, to, true);
+					}
+				});
+				messageStart = next < 0 ? end : next;
+			}
+
+			if (messageStart == 0 && !last) {
+				throw new IOException(file+" contains a message larger than "+MAPWINDOW+" bytes at offset "+pos);
+			}
+			pos += messageStart;
+		}
+	}
+
+	private static boolean isFromLine(ByteBuffer buf, int pos, int end) {
+
+		return end - pos >= 5 && buf.get(pos) == 'F' && buf.get(pos+1) == 'r' && buf.get(pos+2) == 'o'
+				&& buf.get(pos+3) == 'm' && buf.get(pos+4) == ' ';
+	}
+
+	/*
+	 * Returns the position of the next byte b in buf[from..end) or -1. Eight bytes are tested at once
+	 * whether one of them is b, like in BodyCanonicalizer.
+	 */
+	private static int indexOf(ByteBuffer buf, int from, int end, byte b) {
+
+		long pattern = (b & 0xffL) * 0x0101010101010101L;
+		int i = from;
+		while (i + 8 <= end) {
+			long word = buf.getLong(i) ^ pattern;
+			if (((word - 0x0101010101010101L) & ~word & 0x8080808080808080L) != 0) {
+				break;
+			}
+			i += 8;
+		}
+		for (; i < end; i++) {
+			if (buf.get(i) == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	// whether a line of buf[from..end) matches ">+From "
+	private static boolean hasQuotedFromLine(ByteBuffer buf, int from, int end) {
+
+		int i = from;
+		while ((i = indexOf(buf, i, end, (byte) '>')) >= 0) {
+			if (i == from || buf.get(i-1) == '\n') {
+				while (i < end && buf.get(i) == '>') {
+					i++;
+				}
+				if (isFromLine(buf, i, end)) {
+					return true;
+				}
+			} else {
+				i++;
+			}
+		}
+		return false;
+	}
+
+	private void verifyMessage(ByteBuffer mapped, int from, int to, boolean mbox) {
+
+		if (!mbox || !hasQuotedFromLine(mapped, from, to)) {
+			ByteBuffer message = mapped.duplicate();
+			message.limit(to);
+			message.position(from);
+			count(verifier.verify(message), to - from);
+			return;
+		}
+
+		int len = to - from;
+		byte[] message = messageBuffer(len);
+		ByteBuffer source = mapped.duplicate();
+		source.position(from);
+		source.get(message, 0, len);
+
+		if (mbox) {
+			len = unquoteFromLines(message, len);
+		}
+		count(verifier.verify(message, 0, len), to - from);
+	}
+
+	// reads a small message file directly into the buffer of the verifying thread
+	private void verifyFile(File file, int len) {
+
+		byte[] message = messageBuffer(len);
+		try {
+			FileInputStream fis = new FileInputStream(file);
+			try {
+				int read = 0;
+				int n;
+				while (read < len && (n = fis.read(message, read, len - read)) > 0) {
+					read += n;
+				}
+				len = read;
+			} finally {
+				fis.close();
+			}
+		} catch (IOException ioe) {
+			count(new VerificationResult(null, null, null, "file not readable"), 0);
+			return;
+		}
+		count(verifier.verify(message, 0, len), len);
+	}
+
+	private static byte[] messageBuffer(int len) {
+
+		byte[] message = messageBuffers.get();
+		if (message == null || message.length < len) {
+			message = new byte[Math.max(len, 65536)];
+			messageBuffers.set(message);
+		}
+		return message;
+	}
+
+	private void count(VerificationResult result, long bytes) {
+
+		String key;
+		if (result.getSigningDomain() == null) {
+			key = NOSIGNATURE+"\t"+NOSIGNATURE;
+		} else {
+			key = result.getSigningDomain().toLowerCase()+"\t"+(result.getSelector() != null ? result.getSelector() : NOSIGNATURE);
+		}
+		key += "\t"+(result.isPassed() ? "pass" : result.getFailureReason());
+
+		AtomicLong count = results.get(key);
+		if (count == null) {
+			AtomicLong newCount = new AtomicLong();
+			count = results.putIfAbsent(key, newCount);
+			if (count == null) {
+				count = newCount;
+			}
+		}
+		count.incrementAndGet();
+
+		if (result.isPassed()) {
+			passedCount.incrementAndGet();
+		}
+		messageCount.incrementAndGet();
+		bytesScanned.addAndGet(bytes);
+	}
+
+	/*
+	 * Removes one ">" from lines matching ">+From " in place (mboxrd) and returns the new length.
+	 */
+	private static int unquoteFromLines(byte[] message, int len) {
+
+		// most messages have no quoted line at all
+		int read = len > 0 && message[0] == '>' ? 0 : -1;
+		for (int i = 1; read < 0 && i < len; i++) {
+			if (message[i] == '>' && message[i-1] == '\n') {
+				read = i;
+			}
+		}
+		if (read < 0) {
+			return len;
+		}
+
+		int write = read;
+		boolean lineStart = true;
+		while (read < len) {
+			byte c = message[read];
+			if (lineStart && c == '>') {
+				int i = read;
+				while (i < len && message[i] == '>') {
+					i++;
+				}
+				if (len - i >= 5 && message[i] == 'F' && message[i+1] == 'r' && message[i+2] == 'o' && message[i+3] == 'm' && message[i+4] == ' ') {
+					read++;
+					c = message[read];
+				}
+			}
+			message[write++] = c;
+			read++;
+			lineStart = c == '\n';
+		}
+		return write;
+	}
+
+	private void reportProgress(long start) {
+
+		long messages = messageCount.get();
+		double seconds = Math.max(System.currentTimeMillis() - start, 1) / 1000.0;
+
+		progressStream.println("Verified "+messages+" messages ("+passedCount.get()+" passed) in "
+				+String.format("%.1f", seconds)+"s: "+String.format("%.1f", messages / seconds)+" msg/s, "
+				+String.format("%.2f", bytesScanned.get() / seconds / (1024 * 1024))+" MB/s");
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		if (args.length < 2) {
+			System.out.println("Usage: java de.agitos.dkim.DKIMAudit <keyfile|dns> <mbox or Maildir> [threads]");
+			System.exit(1);
+		}
+
+		DKIMVerifier verifier = new DKIMVerifier();
+		if (!args[0].equals("dns")) {
+			verifier.setDNSLookup(false);
+			verifier.loadPublicKeys(new File(args[0]));
+		}
+
+		DKIMAudit audit = args.length > 2 ? new DKIMAudit(verifier, Integer.parseInt(args[2])) : new DKIMAudit(verifier);
+		audit.audit(new File(args[1]));
+		audit.printSummary(System.out);
+
+		System.exit(audit.getFailedCount() > 0 ? 2 : 0);
+	}
+}
@@ -20,32 +20,30 @@
 package de.agitos.dkim;
 
 import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.security.InvalidKeyException;
-import java.security.KeyFactory;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
+import java.security.Provider;
 import java.security.Signature;
 import java.security.SignatureException;
-import java.security.interfaces.RSAPrivateKey;
-import java.security.spec.PKCS8EncodedKeySpec;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
 
 import javax.mail.MessagingException;
 
-import com.sun.mail.util.CRLFOutputStream;
-
 
 /*
  * Main class providing a signature according to DKIM RFC 4871.
@@ -57,6 +55,10 @@ public class DKIMSigner {
 
 	private static String DKIMSIGNATUREHEADER = "DKIM-Signature";
 	private static int MAXHEADERLENGTH = 67;
+	protected static int WARMUPMESSAGES = 50;
+	private static int PIPELINECHUNKSIZE = 65536;
+	private static int PIPELINECHUNKS = 8;
+	private static int BODYSLICESIZE = 65536;
 
 	private static ArrayList<String> minimumHeadersToSign = new ArrayList<String>();
 	static {
@@ -71,38 +73,69 @@ public class DKIMSigner {
 			"Resent-From","Sender","Subject","To"};
 
 	private SigningAlgorithm signingAlgorithm = SigningAlgorithm.SHA256withRSA; // use rsa-sha256 by default, see RFC 4871
-	private Signature signatureService;
-	private MessageDigest messageDigest;
+
+	// sign() may be called by several threads at once, so the stateful JCA services are pooled
+	private ConcurrentLinkedQueue<Signature> signatureServices;
+	private ConcurrentLinkedQueue<MessageDigest> messageDigests;
 	private String signingDomain;
 	private String selector;
 	private String identity = null;
 	private boolean lengthParam = false;
+	private long maxSignedBodyLength = -1;
 	private boolean zParam = false;
+	private int pipelinedHashingThreshold = -1;
+	private ExecutorService partEncodingExecutor = null;
+	private SelfVerifier selfVerifier = null;
+	private HeaderCache headerCache = null;
+	private BodyHashStore bodyHashStore = null;
 	private Canonicalization headerCanonicalization = Canonicalization.RELAXED;
 	private Canonicalization bodyCanonicalization = Canonicalization.SIMPLE;
 	private PrivateKey privkey;
+	private Provider provider = null;
 
-	public DKIMSigner(String signingDomain, String selector, PrivateKey privkey) throws Exception {
-		initDKIMSigner(signingDomain, selector, privkey);
-	}
+	// signs separately computed hashes, either the configured backend or a local one for header prefix hashing
+	private SigningBackend signingBackend;
+	private SigningBackend hashSigningBackend;
 
-	public DKIMSigner(String signingDomain, String selector, String privkeyFilename) throws Exception {
+	// headers whose values differ from message to message, all others form the stable header prefix
+	private String[] variableHeaders = new String[]{"To", "Cc", "Date", "Message-ID", "Resent-To", "Resent-Cc", "Resent-Date", "Resent-Message-ID"};
 
-		File privKeyFile = new File(privkeyFilename);
+	// headers listed in h= more often than they occur, and the compiled selection of all headers to sign
+	private LinkedHashMap<String, Integer> overSignedHeaders = new LinkedHashMap<String, Integer>();
+	private volatile HeaderPolicy headerPolicy = new HeaderPolicy(defaultHeadersToSign, variableHeaders, overSignedHeaders);
+	private boolean headerPrefixHashing = false;
+	private volatile HeaderPrefix headerPrefix;
 
-		// read private key DER file
-        DataInputStream dis = new DataInputStream(new FileInputStream(privKeyFile));
-		byte[] privKeyBytes = new byte[(int) privKeyFile.length()];
-		dis.read(privKeyBytes);
-		dis.close();
+	/*
+	 * Canonicalized stable headers and the hashing state after digesting them.
+	 */
+	private static class HeaderPrefix {
 
-		KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+		private SigningAlgorithm signingAlgorithm;
+		private byte[] content;
+		private MessageDigest digest;
 
-		// decode private key
-		PKCS8EncodedKeySpec privSpec = new PKCS8EncodedKeySpec(privKeyBytes);
-		RSAPrivateKey privKey = (RSAPrivateKey) keyFactory.generatePrivate(privSpec);
+		private HeaderPrefix(SigningAlgorithm signingAlgorithm, byte[] content, MessageDigest digest) {
+			this.signingAlgorithm = signingAlgorithm;
+			this.content = content;
+			this.digest = digest;
+		}
+	}
+
+	public DKIMSigner(String signingDomain, String selector, PrivateKey privkey) throws Exception {
+		initDKIMSigner(signingDomain, selector, privkey);
+	}
+
+	public DKIMSigner(String signingDomain, String selector, String privkeyFilename) throws Exception {
+		initDKIMSigner(signingDomain, selector, DKIMUtil.readPrivateKey(privkeyFilename));
+	}
 
-		initDKIMSigner(signingDomain, selector, privKey);
+	/*
+	 * The private key stays in the signing backend, only the hash of the canonicalized headers is passed to it.
+	 */
+	public DKIMSigner(String signingDomain, String selector, SigningBackend signingBackend) throws Exception {
+		this.signingBackend = signingBackend;
+		initDKIMSigner(signingDomain, selector, null);
 	}
 
 	private void initDKIMSigner(String signingDomain, String selector, PrivateKey privkey) throws DKIMSignerException {
@@ -117,6 +150,14 @@ public class DKIMSigner {
 		this.setSigningAlgorithm(this.signingAlgorithm);
 	}
 
+	public String getSigningDomain() {
+		return signingDomain;
+	}
+
+	public String getSelector() {
+		return selector;
+	}
+
 	public String getIdentity() {
 		return identity;
 	}
@@ -157,41 +198,105 @@ public class DKIMSigner {
 
 		if (header==null || "".equals(header)) return;
 		
-		int len = this.defaultHeadersToSign.length;
-		String[] headersToSign = new String[len+1];
-		for (int i=0; i<len; i++) {
-			if (header.equals(this.defaultHeadersToSign[i])) {
+		// header names are case-insensitive
+		for (String headerToSign : this.defaultHeadersToSign) {
+			if (header.equalsIgnoreCase(headerToSign)) {
 				return;
 			}
-			headersToSign[i] = this.defaultHeadersToSign[i];
 		}
-		
+
+		int len = this.defaultHeadersToSign.length;
+		String[] headersToSign = new String[len+1];
+		System.arraycopy(this.defaultHeadersToSign, 0, headersToSign, 0, len);
 		headersToSign[len] = header;
 		
 		this.defaultHeadersToSign = headersToSign;
+		compileHeaderPolicy();
 	}
 	
 	public void removeHeaderToSign(String header) {
 		
 		if (header==null || "".equals(header)) return;
 		
-		int len = this.defaultHeadersToSign.length;
-		if (len==0) return;
-		
-		String[] headersToSign = new String[len-1];
-		
-		int found = 0;
-		for (int i=0; i<len-1; i++) {
-			
-			if (header.equals(this.defaultHeadersToSign[i+found])) {
-				found = 1;
+		ArrayList<String> headersToSign = new ArrayList<String>();
+		for (String headerToSign : this.defaultHeadersToSign) {
+			if (!header.equalsIgnoreCase(headerToSign)) {
+				headersToSign.add(headerToSign);
 			}
-			headersToSign[i] = this.defaultHeadersToSign[i+found];
 		}
-		
-		this.defaultHeadersToSign = headersToSign;
+		Iterator<String> iter = this.overSignedHeaders.keySet().iterator();
+		while (iter.hasNext()) {
+			if (header.equalsIgnoreCase(iter.next())) {
+				iter.remove();
+			}
+		}
+
+		this.defaultHeadersToSign = headersToSign.toArray(new String[headersToSign.size()]);
+		compileHeaderPolicy();
+	}
+
+	public Map<String, Integer> getOverSignedHeaders() {
+		return new LinkedHashMap<String, Integer>(overSignedHeaders);
+	}
+
+	/*
+	 * Lists the header count times more in h= than it occurs in the message, so that no further
+	 * instances can be added by intermediaries, e.g. setOverSignedHeader("From", 1). 0 ends over-signing.
+	 */
+	public void setOverSignedHeader(String header, int count) {
+
+		if (header==null || "".equals(header)) return;
+
+		Iterator<String> iter = this.overSignedHeaders.keySet().iterator();
+		while (iter.hasNext()) {
+			if (header.equalsIgnoreCase(iter.next())) {
+				iter.remove();
+			}
+		}
+		if (count > 0) {
+			this.overSignedHeaders.put(header, count);
+		}
+		compileHeaderPolicy();
+	}
+
+	public HeaderPolicy getHeaderPolicy() {
+		return headerPolicy;
+	}
+
+	private void compileHeaderPolicy() {
+		this.headerPolicy = new HeaderPolicy(this.defaultHeadersToSign, this.variableHeaders, this.overSignedHeaders);
 	}
 	
+	public String[] getVariableHeaders() {
+		return variableHeaders;
+	}
+
+	public void setVariableHeaders(String[] variableHeaders) {
+		this.variableHeaders = variableHeaders == null ? new String[0] : variableHeaders;
+		compileHeaderPolicy();
+	}
+
+	public boolean isHeaderPrefixHashing() {
+		return headerPrefixHashing;
+	}
+
+	/*
+	 * If enabled, the signed headers that aren't variable headers are listed first in h= and the hashing
+	 * state of their canonicalized form is reused for the following messages with identical stable headers.
+	 * Only the variable headers and the DKIM-Signature header are hashed per message then, the hash is
+	 * signed separately by the signing backend or the raw signing algorithm, e.g. NONEwithRSA.
+	 * Useful for templated bulk messages, the algorithm has to provide a DigestInfo prefix.
+	 */
+	public void setHeaderPrefixHashing(boolean headerPrefixHashing) throws DKIMSignerException {
+
+		if (headerPrefixHashing) {
+			assureSeparateHashing(this.signingAlgorithm);
+		}
+		this.headerPrefix = null;
+		this.headerPrefixHashing = headerPrefixHashing;
+		this.hashSigningBackend = createHashSigningBackend();
+	}
+
 	public void setLengthParam(boolean lengthParam) {
 		this.lengthParam = lengthParam;
 	}
@@ -200,6 +305,77 @@ public class DKIMSigner {
 		return lengthParam;
 	}
 
+	public long getMaxSignedBodyLength() {
+		return maxSignedBodyLength;
+	}
+
+	/*
+	 * Signs only the first maxSignedBodyLength bytes of the canonicalized body and states their number in l=,
+	 * e.g. to keep the signature valid if a mailing list appends a footer. The hashing stops at this length,
+	 * the rest of the body is sent unsigned. -1 signs the complete body.
+	 */
+	public void setMaxSignedBodyLength(long maxSignedBodyLength) {
+		this.maxSignedBodyLength = maxSignedBodyLength < 0 ? -1 : maxSignedBodyLength;
+	}
+
+	public int getPipelinedHashingThreshold() {
+		return pipelinedHashingThreshold;
+	}
+
+	/*
+	 * Bodies of at least this size are hashed in a separate thread while they are canonicalized,
+	 * which reduces the signing latency of large messages on multi-core machines; -1 disables it.
+	 */
+	public void setPipelinedHashingThreshold(int pipelinedHashingThreshold) {
+		this.pipelinedHashingThreshold = pipelinedHashingThreshold;
+	}
+
+	public ExecutorService getPartEncodingExecutor() {
+		return partEncodingExecutor;
+	}
+
+	/*
+	 * If set, SMTPDKIMMessage encodes the body parts of multipart messages in parallel by this executor,
+	 * e.g. several large attachments. The encoded body is identical to the sequential encoding; null disables it.
+	 */
+	public void setPartEncodingExecutor(ExecutorService partEncodingExecutor) {
+		this.partEncodingExecutor = partEncodingExecutor;
+	}
+
+	public SelfVerifier getSelfVerifier() {
+		return selfVerifier;
+	}
+
+	/*
+	 * Verifies a sample of the produced signatures in the background, e.g.
+	 * setSelfVerifier(new SelfVerifier(DKIMUtil.lookupPublicKey(signingDomain, selector), 0.01)).
+	 * null disables the self-verification.
+	 */
+	public void setSelfVerifier(SelfVerifier selfVerifier) {
+		this.selfVerifier = selfVerifier;
+	}
+
+	public HeaderCache getHeaderCache() {
+		return headerCache;
+	}
+
+	/*
+	 * Caches the canonicalized form and the z= encoding of the header lines that aren't variable headers,
+	 * null disables the cache.
+	 */
+	public void setHeaderCache(HeaderCache headerCache) {
+		this.headerCache = headerCache;
+	}
+
+	public BodyHashStore getBodyHashStore() {
+		return bodyHashStore;
+	}
+
+	// body hashes of identical bodies are taken from the store, null disables it
+	public void setBodyHashStore(BodyHashStore bodyHashStore) {
+		this.bodyHashStore = bodyHashStore;
+	}
+
 	public boolean isZParam() {
 		return zParam;
 	}
@@ -208,37 +384,112 @@ public class DKIMSigner {
 		zParam = param;
 	}
 
+	public Provider getProvider() {
+		return provider;
+	}
+
+	/*
+	 * Selects the JCA provider for hashing and signing, null restores the default provider resolution.
+	 * Algorithms not supported by the provider are resolved by default.
+	 */
+	public void setProvider(Provider provider) throws DKIMSignerException {
+
+		Provider previousProvider = this.provider;
+		this.provider = provider;
+		try {
+			setSigningAlgorithm(this.signingAlgorithm);
+		} catch (DKIMSignerException dse) {
+			this.provider = previousProvider;
+			throw dse;
+		}
+	}
+
+	/*
+	 * Benchmarks the installed providers for the current signing algorithm and key and selects the fastest one.
+	 * The result is cached per JVM, so further signers with the same algorithm and key size don't repeat the probe.
+	 */
+	public Provider probeProvider() throws DKIMSignerException {
+
+		Provider fastest = ProviderSelector.getFastestProvider(this.signingAlgorithm, this.privkey);
+		setProvider(fastest);
+		return fastest;
+	}
+
 	public SigningAlgorithm getSigningAlgorithm() {
 		return signingAlgorithm;
 	}
 
 	public void setSigningAlgorithm(SigningAlgorithm signingAlgorithm) throws DKIMSignerException {
 
+		// create one instance of each service to validate the algorithm and the key
+		ConcurrentLinkedQueue<MessageDigest> messageDigests = new ConcurrentLinkedQueue<MessageDigest>();
+		messageDigests.add(createMessageDigest(signingAlgorithm));
+
+		ConcurrentLinkedQueue<Signature> signatureServices = new ConcurrentLinkedQueue<Signature>();
+		if (this.privkey != null) {
+			signatureServices.add(createSignatureService(signingAlgorithm.getJavaSecNotation()));
+		}
+
+		if (this.signingBackend != null || this.headerPrefixHashing) {
+			assureSeparateHashing(signingAlgorithm);
+		}
+
+		this.messageDigests = messageDigests;
+		this.signatureServices = signatureServices;
+		this.signingAlgorithm = signingAlgorithm;
+		this.hashSigningBackend = createHashSigningBackend();
+	}
+
+	private void assureSeparateHashing(SigningAlgorithm signingAlgorithm) throws DKIMSignerException {
+
+		if (signingAlgorithm.getJavaRawSecNotation() == null || signingAlgorithm.getDigestInfoPrefix() == null) {
+			throw new DKIMSignerException("The signing algorithm "+signingAlgorithm.getRfc4871Notation()+" doesn't support separate hashing");
+		}
+	}
+
+	private SigningBackend createHashSigningBackend() {
+
+		if (this.signingBackend != null) {
+			return this.signingBackend;
+		}
+		if (this.headerPrefixHashing) {
+			return new LocalSigningBackend(this.privkey, this.provider);
+		}
+		return null;
+	}
+
+	private MessageDigest createMessageDigest(SigningAlgorithm signingAlgorithm) throws DKIMSignerException {
+
 		try {
-			this.messageDigest = MessageDigest.getInstance(signingAlgorithm.getJavaHashNotation());
+			return ProviderSelector.getMessageDigest(signingAlgorithm.getJavaHashNotation(), this.provider);
 		} catch (NoSuchAlgorithmException nsae) {
 			throw new DKIMSignerException("The hashing algorithm "+signingAlgorithm.getJavaHashNotation()+" is not known by the JVM", nsae);
 		}
-		
+	}
+
+	private Signature createSignatureService(String javaSecNotation) throws DKIMSignerException {
+
+		Signature signatureService;
 		try {
-			this.signatureService = Signature.getInstance(signingAlgorithm.getJavaSecNotation());
+			signatureService = ProviderSelector.getSignature(javaSecNotation, this.provider);
 		} catch (NoSuchAlgorithmException nsae) {
-			throw new DKIMSignerException("The signing algorithm "+signingAlgorithm.getJavaSecNotation()+" is not known by the JVM", nsae);
+			throw new DKIMSignerException("The signing algorithm "+javaSecNotation+" is not known by the JVM", nsae);
 		}
 		
 		try {
-			this.signatureService.initSign(privkey);
+			signatureService.initSign(privkey);
 		} catch (InvalidKeyException ike) {
 			throw new DKIMSignerException("The provided private key is invalid", ike);
 		}
-		
-		this.signingAlgorithm = signingAlgorithm;
+
+		return signatureService;
 	}
 
 	private String serializeDKIMSignature(Map<String, String> dkimSignature) {
 
 		Set<Entry<String, String>> entries = dkimSignature.entrySet();
-		StringBuffer buf = new StringBuffer(), fbuf;
+		SigningBuffers buffers = SigningBuffers.get();
+		StringBuilder buf = buffers.takeBuilder(), fbuf = buffers.takeBuilder();
 		int pos = 0;
 
 		Iterator<Entry<String, String>> iter = entries.iterator();
@@ -247,7 +498,7 @@ public class DKIMSigner {
 
 			// buf.append(entry.getKey()).append("=").append(entry.getValue()).append(";\t");
 			
-			fbuf = new StringBuffer();
+			fbuf.setLength(0);
 			fbuf.append(entry.getKey()).append("=").append(entry.getValue()).append(";");
 			
 			if (pos + fbuf.length() + 1 > MAXHEADERLENGTH) {
@@ -277,7 +528,10 @@ public class DKIMSigner {
 
 		buf.append("\r\n\tb=");
 
-		return buf.toString().trim();
+		String serialized = buf.toString().trim();
+		buffers.returnBuilder(buf);
+		buffers.returnBuilder(fbuf);
+		return serialized;
 	}
 	
 	private String foldSignedSignature(String s, int offset) {
@@ -302,11 +556,187 @@ public class DKIMSigner {
 		return buf.toString();
 	}
 
+	/*
+	 * Reverses the order of the instances of each header that occurs several times, the positions
+	 * of the headers in h= remain.
+	 */
+	private static void reverseInstances(ArrayList<String> headers, ArrayList<HeaderPolicy.Entry> entries, int[] instances) {
+
+		for (int index = 0; index < instances.length; index++) {
+			if (instances[index] < 2) {
+				continue;
+			}
+			int[] positions = new int[instances[index]];
+			int n = 0;
+			for (int i = 0; i < entries.size(); i++) {
+				if (entries.get(i).getIndex() == index) {
+					positions[n++] = i;
+				}
+			}
+			for (int lo = 0, hi = n - 1; lo < hi; lo++, hi--) {
+				String header = headers.get(positions[lo]);
+				headers.set(positions[lo], headers.get(positions[hi]));
+				headers.set(positions[hi], header);
+			}
+		}
+	}
+
+	private byte[] hashHeaders(SigningAlgorithm signingAlgorithm, MessageDigest messageDigest, byte[] prefixContent, byte[] content) throws DKIMSignerException {
+
+		if (prefixContent == null) {
+			messageDigest.update(content);
+			return messageDigest.digest();
+		}
+
+		// continue from the cached hashing state if the stable headers didn't change
+		HeaderPrefix headerPrefix = this.headerPrefix;
+		MessageDigest digest = null;
+		if (headerPrefix != null && headerPrefix.signingAlgorithm == signingAlgorithm && Arrays.equals(headerPrefix.content, prefixContent)) {
+			digest = cloneMessageDigest(headerPrefix.digest);
+		}
+		if (digest == null) {
+			digest = createMessageDigest(signingAlgorithm);
+			digest.update(prefixContent);
+			MessageDigest prefixDigest = cloneMessageDigest(digest);
+			if (prefixDigest != null) {
+				this.headerPrefix = new HeaderPrefix(signingAlgorithm, prefixContent, prefixDigest);
+			}
+		}
+		digest.update(content);
+		return digest.digest();
+	}
+
+	// returns null if the digest implementation can't be cloned, the prefix isn't cached then
+	private MessageDigest cloneMessageDigest(MessageDigest digest) {
+
+		try {
+			return (MessageDigest) digest.clone();
+		} catch (CloneNotSupportedException cnse) {
+			return null;
+		}
+	}
+
+	/*
+	 * Signs synthetic messages with a copy of the current configuration to load the involved classes
+	 * and let the JIT compile the signing path, e.g. before short-lived senders start sending.
+	 * The body hash store, the header cache and the self-verifier aren't used by the copy,
+	 * a remote signing backend doesn't receive the synthetic messages.
+	 */
+	public void warmUp() throws DKIMSignerException {
+		warmUp(WARMUPMESSAGES);
+	}
+
+	public void warmUp(int messages) throws DKIMSignerException {
+		WarmUp.warmUp(createWarmUpSigner(), messages);
+	}
+
+	private DKIMSigner createWarmUpSigner() throws DKIMSignerException {
+
+		DKIMSigner signer;
+		try {
+			if (this.signingBackend == null) {
+				signer = new DKIMSigner(this.signingDomain, this.selector, this.privkey);
+			} else if (this.signingBackend instanceof LocalSigningBackend) {
+				signer = new DKIMSigner(this.signingDomain, this.selector, this.signingBackend);
+			} else {
+				// the signature of the synthetic messages is discarded anyway
+				signer = new DKIMSigner(this.signingDomain, this.selector, new SigningBackend() {
+					public byte[] sign(String signingDomain, String selector, SigningAlgorithm signingAlgorithm, byte[] hash) {
+						return new byte[256];
+					}
+				});
+			}
+		} catch (DKIMSignerException dse) {
+			throw dse;
+		} catch (Exception e) {
+			throw new DKIMSignerException("The warm-up signer can't be created", e);
+		}
+
+		signer.provider = this.provider;
+		signer.setSigningAlgorithm(this.signingAlgorithm);
+		signer.setHeaderPrefixHashing(this.headerPrefixHashing);
+		signer.identity = this.identity;
+		signer.headerCanonicalization = this.headerCanonicalization;
+		signer.bodyCanonicalization = this.bodyCanonicalization;
+		signer.defaultHeadersToSign = this.defaultHeadersToSign;
+		signer.variableHeaders = this.variableHeaders;
+		signer.overSignedHeaders = new LinkedHashMap<String, Integer>(this.overSignedHeaders);
+		signer.headerPolicy = this.headerPolicy;
+		signer.lengthParam = this.lengthParam;
+		signer.maxSignedBodyLength = this.maxSignedBodyLength;
+		signer.zParam = this.zParam;
+		signer.pipelinedHashingThreshold = this.pipelinedHashingThreshold;
+		signer.partEncodingExecutor = this.partEncodingExecutor;
+		return signer;
+	}
+
+	/*
+	 * The signer may be shared by several threads as long as its configuration isn't changed while signing.
+	 */
 	public String sign(SMTPDKIMMessage message) throws DKIMSignerException, MessagingException {
 
-		Map<String, String> dkimSignature = new LinkedHashMap<String, String>();
+		// outside of writeTo() the body wasn't captured, its hash would be the one of an empty body
+		if (!message.hasEncodedBody()) {
+			throw new DKIMSignerException("The message has no encoded body, it is signed by SMTPDKIMMessage.writeTo()");
+		}
+
+		// take the JCA services of the current algorithm, they are returned to the same pools after signing
+		SigningAlgorithm signingAlgorithm = this.signingAlgorithm;
+		SigningBackend hashSigningBackend = this.hashSigningBackend;
+		ConcurrentLinkedQueue<MessageDigest> messageDigests = this.messageDigests;
+		ConcurrentLinkedQueue<Signature> signatureServices = this.signatureServices;
+
+		MessageDigest messageDigest = messageDigests.poll();
+		if (messageDigest == null) {
+			messageDigest = createMessageDigest(signingAlgorithm);
+		}
+		Signature signatureService = null;
+		if (hashSigningBackend == null) {
+			signatureService = signatureServices.poll();
+			if (signatureService == null) {
+				signatureService = createSignatureService(signingAlgorithm.getJavaSecNotation());
+			}
+		}
+
+		String signatureHeader = sign(message, signingAlgorithm, messageDigest, signatureService, hashSigningBackend);
+
+		// services of a failed signing are dropped because their state is unknown
+		messageDigests.offer(messageDigest);
+		if (signatureService != null) {
+			signatureServices.offer(signatureService);
+		}
+
+		return signatureHeader;
+	}
+
+	private String sign(SMTPDKIMMessage message, SigningAlgorithm signingAlgorithm, MessageDigest messageDigest, Signature signatureService, SigningBackend hashSigningBackend) throws DKIMSignerException, MessagingException {
+
+		// the intermediate buffers are reused by the current thread
+		SigningBuffers buffers = SigningBuffers.get();
+		LinkedHashMap<String, String> dkimSignature = buffers.takeTagMap();
+		StringBuilder prefixHeaderList = buffers.takeBuilder();
+		StringBuilder prefixHeaderContent = buffers.takeBuilder();
+		StringBuilder headerList = buffers.takeBuilder();
+		StringBuilder headerContent = buffers.takeBuilder();
+		StringBuilder zParamString = buffers.takeBuilder();
+		try {
+			return sign(message, signingAlgorithm, messageDigest, signatureService, hashSigningBackend,
+					dkimSignature, prefixHeaderList, prefixHeaderContent, headerList, headerContent, zParamString);
+		} finally {
+			buffers.returnTagMap(dkimSignature);
+			buffers.returnBuilder(prefixHeaderList);
+			buffers.returnBuilder(prefixHeaderContent);
+			buffers.returnBuilder(headerList);
+			buffers.returnBuilder(headerContent);
+			buffers.returnBuilder(zParamString);
+		}
+	}
+
+	private String sign(SMTPDKIMMessage message, SigningAlgorithm signingAlgorithm, MessageDigest messageDigest, Signature signatureService, SigningBackend hashSigningBackend,
+			Map<String, String> dkimSignature, StringBuilder prefixHeaderList, StringBuilder prefixHeaderContent, StringBuilder headerList, StringBuilder headerContent, StringBuilder zParamString) throws DKIMSignerException, MessagingException {
+
 		dkimSignature.put("v", "1");
-		dkimSignature.put("a", this.signingAlgorithm.getRfc4871Notation());
+		dkimSignature.put("a", signingAlgorithm.getRfc4871Notation());
 		dkimSignature.put("q", "dns/txt");
 		dkimSignature.put("c", getHeaderCanonicalization().getType()+"/"+getBodyCanonicalization().getType());  
 		dkimSignature.put("t", ((long) new Date().getTime() / 1000)+"");
@@ -319,24 +749,71 @@ public class DKIMSigner {
 		}
 
 		// process header
+		HeaderPolicy headerPolicy = this.headerPolicy;
 		ArrayList assureHeaders = (ArrayList) minimumHeadersToSign.clone();
 
-		// intersect defaultHeadersToSign with available headers
-		StringBuffer headerList = new StringBuffer();
-		StringBuffer headerContent = new StringBuffer();
-		StringBuffer zParamString = new StringBuffer();
+		// the stable header prefix is only split off if the hash is signed separately
+		boolean prefixHashing = this.headerPrefixHashing && hashSigningBackend != null;
 
-		Enumeration headerLines = message.getMatchingHeaderLines(defaultHeadersToSign);
+		// intersect the headers to sign with available headers
+		ArrayList<String> headers = new ArrayList<String>();
+		ArrayList<HeaderPolicy.Entry> entries = new ArrayList<HeaderPolicy.Entry>();
+		int[] instances = new int[headerPolicy.size()];
+		boolean multipleInstances = false;
+		Enumeration headerLines = message.getAllHeaderLines();
 		while (headerLines.hasMoreElements()) {
 			String header = (String) headerLines.nextElement();
-			String[] headerParts = DKIMUtil.splitHeader(header);
-			headerList.append(headerParts[0]).append(":");
-			headerContent.append(this.headerCanonicalization.canonicalizeHeader(headerParts[0], headerParts[1])).append("\r\n");
-			assureHeaders.remove(headerParts[0]);
+			HeaderPolicy.Entry entry = headerPolicy.lookupHeaderLine(header);
+			if (entry != null) {
+				headers.add(header);
+				entries.add(entry);
+				multipleInstances |= ++instances[entry.getIndex()] > 1;
+			}
+		}
+
+		// a verifier takes the instances of a header listed several times in h= from the bottom up
+		if (multipleInstances) {
+			reverseInstances(headers, entries, instances);
+		}
+
+		HeaderCache headerCache = this.headerCache;
+		for (int i = 0; i < headers.size(); i++) {
+			String name;
+			String canonicalizedHeader;
+			HeaderCache.Entry cached = null;
+			String[] headerParts = null;
+			if (headerCache != null && !entries.get(i).isVariable()) {
+				cached = headerCache.lookup(headers.get(i), this.headerCanonicalization);
+				name = cached.getName();
+				canonicalizedHeader = cached.getCanonicalizedHeader();
+			} else {
+				headerParts = DKIMUtil.splitHeader(headers.get(i));
+				name = headerParts[0];
+				canonicalizedHeader = this.headerCanonicalization.canonicalizeHeader(headerParts[0], headerParts[1]);
+			}
+
+			if (prefixHashing && !entries.get(i).isVariable()) {
+				prefixHeaderList.append(name).append(":");
+				prefixHeaderContent.append(canonicalizedHeader).append("\r\n");
+			} else {
+				headerList.append(name).append(":");
+				headerContent.append(canonicalizedHeader).append("\r\n");
+			}
+			for (int j = 0; j < assureHeaders.size(); j++) {
+				if (name.trim().equalsIgnoreCase((String) assureHeaders.get(j))) {
+					assureHeaders.remove(j--);
+				}
+			}
 
 			// add optional z= header list, DKIM-Quoted-Printable
 			if (this.zParam) {
-				zParamString.append(headerParts[0]).append(":").append(DKIMUtil.QuotedPrintable(headerParts[1].trim()).replace("|", "=7C")).append("|");
+				zParamString.append(name).append(":");
+				if (cached != null) {
+					zParamString.append(cached.getZParamValue());
+				} else {
+					DKIMUtil.appendQuotedPrintable(zParamString, headerParts[1], true);
+				}
+				zParamString.append("|");
 			}
 		}
 
@@ -344,48 +821,223 @@ public class DKIMSigner {
 			throw new DKIMSignerException("Could not find the header fields "+DKIMUtil.concatArray(assureHeaders, ", ")+" for signing");
 		}
 
-		dkimSignature.put("h", headerList.substring(0, headerList.length()-1));
+		headerList.insert(0, prefixHeaderList);
+		headerList.setLength(headerList.length()-1);
+		headerList.append(headerPolicy.getOverSignedHeaderList());
+		dkimSignature.put("h", headerList.toString());
 
 		if (this.zParam) {
 			String zParamTemp = zParamString.toString();
 			dkimSignature.put("z", zParamTemp.substring(0, zParamTemp.length()-1));
 		}
 
-		// process body
-		String body = message.getEncodedBody(); 
-		ByteArrayOutputStream baos = new ByteArrayOutputStream(); 
-		CRLFOutputStream crlfos = new CRLFOutputStream(baos); 
-		try { 
-			crlfos.write(body.getBytes()); 
-		} catch (IOException e) { 
-			throw new DKIMSignerException("The body conversion to MIME canonical CRLF line terminator failed", e); 
-		} 
-		body = baos.toString(); 
-		
-		try {
-			body = this.bodyCanonicalization.canonicalizeBody(body);
-		} catch (IOException ioe) {
-			throw new DKIMSignerException("The body canonicalization failed", ioe);
+		// process body, large bodies are hashed in a separate thread while canonicalizing
+		long bodyLength = message.getEncodedBodyLength();
+		long maxSignedBodyLength = this.maxSignedBodyLength;
+		long hashedLength = maxSignedBodyLength >= 0 ? Math.min(bodyLength, maxSignedBodyLength) : bodyLength;
+
+		// the hash of an identical body may have been computed by another sender already
+		BodyHashStore bodyHashStore = this.bodyHashStore;
+		boolean storable = bodyHashStore != null && bodyLength >= bodyHashStore.getMinBodyLength();
+		BodyHashStore.BodyFingerprint bodyFingerprint = null;
+		long[] hashedBodyLength = new long[1];
+		byte[] bodyHash = null;
+		if (storable) {
+			bodyFingerprint = fingerprintBody(bodyHashStore, message);
+			bodyHash = bodyHashStore.lookup(bodyFingerprint, maxSignedBodyLength, signingAlgorithm.getJavaHashNotation(), this.bodyCanonicalization, hashedBodyLength);
 		}
 
-		if (this.lengthParam) {
-			dkimSignature.put("l", body.length()+"");
+		if (bodyHash == null) {
+			BodyHasher bodyHasher;
+			if (this.pipelinedHashingThreshold >= 0 && hashedLength >= this.pipelinedHashingThreshold) {
+				bodyHasher = new PipelinedBodyHasher(messageDigest, PIPELINECHUNKSIZE, PIPELINECHUNKS);
+			} else {
+				bodyHasher = new BodyHasher(messageDigest);
+			}
+			bodyHasher.setLimit(maxSignedBodyLength);
+			bodyHash = hashBody(message, bodyHasher);
+			hashedBodyLength[0] = bodyHasher.getLength();
+
+			if (storable) {
+				try {
+					bodyHashStore.store(bodyFingerprint, maxSignedBodyLength, signingAlgorithm.getJavaHashNotation(), this.bodyCanonicalization, hashedBodyLength[0], bodyHash);
+				} catch (IOException ioe) {
+					// the store only saves work, the message is signed anyway
+				}
+			}
+		}
+
+		if (this.lengthParam || maxSignedBodyLength >= 0) {
+			dkimSignature.put("l", hashedBodyLength[0]+"");
 		}
 
-		// calculate and encode body hash
-		dkimSignature.put("bh", DKIMUtil.base64Encode(this.messageDigest.digest(body.getBytes())));
+		// encode body hash
+		dkimSignature.put("bh", DKIMUtil.base64Encode(bodyHash));
+		byte[] signedBodyHash = bodyHash;
 
 		// create signature
 		String serializedSignature = serializeDKIMSignature(dkimSignature);
 
-		byte[] signedSignature;
+		// the ARC-Message-Signature covers the same canonicalized headers
+		int signedHeadersLength = headerContent.length();
+		headerContent.append(this.headerCanonicalization.canonicalizeHeader(DKIMSIGNATUREHEADER, " "+serializedSignature));
+
+		byte[] prefixContent = prefixHashing ? prefixHeaderContent.toString().getBytes() : null;
+		byte[] signedSignature = signContent(signingAlgorithm, messageDigest, signatureService, hashSigningBackend, prefixContent, headerContent.toString().getBytes());
+
+		String signatureHeader = DKIMSIGNATUREHEADER + ": " + serializedSignature+foldSignedSignature(DKIMUtil.base64Encode(signedSignature), 3);
+
+		if (message.getARCAuthenticationResults() != null) {
+			// a signed length doesn't apply to ARC, the complete body is hashed again then
+			if (maxSignedBodyLength >= 0) {
+				bodyHash = hashBody(message, new BodyHasher(messageDigest));
+			}
+			message.setARCSet(sealARC(message, signingAlgorithm, messageDigest, signatureService, hashSigningBackend,
+					dkimSignature.get("t"), dkimSignature.get("h"), prefixContent, headerContent.substring(0, signedHeadersLength), bodyHash));
+		}
+
+		SelfVerifier selfVerifier = this.selfVerifier;
+		if (selfVerifier != null && selfVerifier.sample()) {
+			String signedContent = prefixHashing ? prefixHeaderContent.toString()+headerContent : headerContent.toString();
+
+			// the body is only valid until the end of writeTo(), the verification gets a copy
+			byte[] body = null;
+			if (bodyLength <= selfVerifier.getMaxBodyLength()) {
+				ByteArrayOutputStream bodyCopy = new ByteArrayOutputStream((int) bodyLength);
+				try {
+					message.writeEncodedBody(bodyCopy);
+					body = bodyCopy.toByteArray();
+				} catch (IOException ioe) {
+					// only the headers are verified then
+				}
+			}
+			selfVerifier.verify(signingAlgorithm, signedContent.getBytes(), signedSignature, signatureHeader,
+					body, this.bodyCanonicalization, maxSignedBodyLength, signedBodyHash);
+		}
+
+		return signatureHeader;
+	}
+
+	private byte[] hashBody(SMTPDKIMMessage message, BodyHasher bodyHasher) throws DKIMSignerException, MessagingException {
+
+		byte[] body = message.getEncodedBodyBytes();
+		long bodyLength = message.getEncodedBodyLength();
+		long limit = bodyHasher.getLimit();
+
+		// abort on any failure, also a RuntimeException, a pipelined hasher would keep hashing otherwise
+		boolean digested = false;
+		try {
+			OutputStream canonicalizer = this.bodyCanonicalization.getBodyCanonicalizer(bodyHasher);
+			List<int[]> trustedSpans = message.getTrustedBodySpans();
+			if (body == null) {
+				// spilled to disk
+				message.writeEncodedBody(canonicalizer);
+			} else if (canonicalizer instanceof BodyCanonicalizer && !trustedSpans.isEmpty()) {
+				// base64 encoded content doesn't need to be inspected for whitespace
+				BodyCanonicalizer bodyCanonicalizer = (BodyCanonicalizer) canonicalizer;
+				int pos = 0;
+				for (int[] span : trustedSpans) {
+					if (bodyHasher.isLimitReached()) {
+						break;
+					}
+					bodyCanonicalizer.write(body, pos, span[0] - pos);
+					bodyCanonicalizer.writeTrusted(body, span[0], span[1] - span[0]);
+					pos = span[1];
+				}
+				if (!bodyHasher.isLimitReached()) {
+					bodyCanonicalizer.write(body, pos, (int) bodyLength - pos);
+				}
+			} else {
+				// with a signed length the body is canonicalized in slices until enough of it is hashed
+				int slice = limit >= 0 ? BODYSLICESIZE : (int) bodyLength;
+				for (int pos = 0; pos < bodyLength && !bodyHasher.isLimitReached(); pos += slice) {
+					canonicalizer.write(body, pos, (int) Math.min(slice, bodyLength - pos));
+				}
+			}
+			canonicalizer.close();
+			byte[] bodyHash = bodyHasher.digest();
+			digested = true;
+			return bodyHash;
+		} catch (IOException ioe) {
+			throw new DKIMSignerException("The body canonicalization failed", ioe);
+		} finally {
+			if (!digested) {
+				bodyHasher.abort();
+			}
+		}
+	}
+
+	private BodyHashStore.BodyFingerprint fingerprintBody(BodyHashStore bodyHashStore, SMTPDKIMMessage message) throws DKIMSignerException {
+
+		BodyHashStore.BodyFingerprint bodyFingerprint = bodyHashStore.createFingerprint();
+		byte[] body = message.getEncodedBodyBytes();
+		if (body != null) {
+			bodyFingerprint.write(body, 0, (int) message.getEncodedBodyLength());
+		} else {
+			try {
+				message.writeEncodedBody(bodyFingerprint);
+			} catch (IOException ioe) {
+				throw new DKIMSignerException("The body couldn't be read", ioe);
+			}
+		}
+		return bodyFingerprint;
+	}
+
+	private byte[] signContent(SigningAlgorithm signingAlgorithm, MessageDigest messageDigest, Signature signatureService, SigningBackend hashSigningBackend,
+			byte[] prefixContent, byte[] content) throws DKIMSignerException {
+
+		if (hashSigningBackend != null) {
+			byte[] hash = hashHeaders(signingAlgorithm, messageDigest, prefixContent, content);
+			return hashSigningBackend.sign(this.signingDomain, this.selector, signingAlgorithm, hash);
+		}
 		try {
-			signatureService.update(headerContent.append(this.headerCanonicalization.canonicalizeHeader(DKIMSIGNATUREHEADER, " "+serializedSignature)).toString().getBytes());
-			signedSignature = signatureService.sign();
+			signatureService.update(content);
+			return signatureService.sign();
 		} catch (SignatureException se) {
 			throw new DKIMSignerException("The signing operation by Java security failed", se);
 		}
+	}
+
+	/*
+	 * Creates the next ARC set of the message with the body hash and the canonicalized headers of the DKIM signature,
+	 * returns the ARC-Seal, ARC-Message-Signature and ARC-Authentication-Results header lines.
+	 */
+	private String[] sealARC(SMTPDKIMMessage message, SigningAlgorithm signingAlgorithm, MessageDigest messageDigest, Signature signatureService, SigningBackend hashSigningBackend,
+			String timestamp, String headerList, byte[] prefixContent, String headerContent, byte[] bodyHash) throws DKIMSignerException, MessagingException {
+
+		ARCChain chain = new ARCChain(message.getAllHeaderLines());
+		String chainValidation = message.getARCChainValidation();
+		chain.checkChainValidation(chainValidation);
+		String instance = String.valueOf(chain.getNextInstance());
+
+		String authenticationResults = ARCChain.AUTHENTICATIONRESULTSHEADER+": i="+instance+"; "+message.getARCAuthenticationResults();
+
+		LinkedHashMap<String, String> tags = new LinkedHashMap<String, String>();
+		tags.put("i", instance);
+		tags.put("a", signingAlgorithm.getRfc4871Notation());
+		tags.put("c", getHeaderCanonicalization().getType()+"/"+getBodyCanonicalization().getType());
+		tags.put("d", this.signingDomain);
+		tags.put("s", this.selector);
+		tags.put("t", timestamp);
+		tags.put("h", headerList);
+		tags.put("bh", DKIMUtil.base64Encode(bodyHash));
+		String serializedSignature = serializeDKIMSignature(tags);
+		String signedContent = headerContent+this.headerCanonicalization.canonicalizeHeader(ARCChain.MESSAGESIGNATUREHEADER, " "+serializedSignature);
+		byte[] signature = signContent(signingAlgorithm, messageDigest, signatureService, hashSigningBackend, prefixContent, signedContent.getBytes());
+		String messageSignature = ARCChain.MESSAGESIGNATUREHEADER+": "+serializedSignature+foldSignedSignature(DKIMUtil.base64Encode(signature), 3);
+
+		tags.clear();
+		tags.put("i", instance);
+		tags.put("a", signingAlgorithm.getRfc4871Notation());
+		tags.put("t", timestamp);
+		tags.put("cv", chainValidation);
+		tags.put("d", this.signingDomain);
+		tags.put("s", this.selector);
+		String serializedSeal = serializeDKIMSignature(tags);
+		signedContent = chain.getSealedContent(authenticationResults, messageSignature, ARCChain.SEALHEADER+": "+serializedSeal, chainValidation);
+		signature = signContent(signingAlgorithm, messageDigest, signatureService, hashSigningBackend, null, signedContent.getBytes());
+		String seal = ARCChain.SEALHEADER+": "+serializedSeal+foldSignedSignature(DKIMUtil.base64Encode(signature), 3);
 
-		return DKIMSIGNATUREHEADER + ": " + serializedSignature+foldSignedSignature(DKIMUtil.base64Encode(signedSignature), 3);
+		return new String[] {seal, messageSignature, authenticationResults};
 	}
 }
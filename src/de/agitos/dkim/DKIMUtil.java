@@ -19,27 +19,35 @@
 
 package de.agitos.dkim;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
 import java.security.interfaces.RSAPrivateKey;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
 import java.util.ArrayList;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeUtility;
 import javax.naming.NamingException;
 import javax.naming.directory.DirContext;
 import javax.naming.directory.InitialDirContext;
 
 import sun.misc.BASE64Encoder;
 
-import com.sun.mail.util.QPEncoderStream;
-
 /*
  * @author Florian Sager, http://www.agitos.de, 22.11.2008
  */
@@ -70,23 +78,68 @@ public class DKIMUtil {
 		return matcher.matches();
 	}
 
-	// FSTODO: converts to "platforms default encoding" might be wrong ?
+	private static char[] HEXDIGITS = "0123456789ABCDEF".toCharArray();
+
 	protected static String QuotedPrintable(String s) {
 
-		try {
-			ByteArrayOutputStream boas =   new ByteArrayOutputStream();
-			QPEncoderStream encodeStream = new QPEncoderStream(boas);
-			encodeStream.write(s.getBytes());
-			
-			String encoded = boas.toString();
-			encoded = encoded.replaceAll(";", "=3B");
-			encoded = encoded.replaceAll(" ", "=20");
+		StringBuilder encoded = new StringBuilder(s.length() + 16);
+		appendQuotedPrintable(encoded, s, false);
+		return encoded.toString();
+	}
 
-			return encoded;
+	/*
+	 * Appends s DKIM-Quoted-Printable encoded (RFC 6376 2.11) in a single pass, the characters are
+	 * taken as UTF-8 and there are no soft line breaks. Besides the characters outside of 0x21-0x7E,
+	 * ';' and '=' the '|' is encoded as well, which separates the headers in z=. With trim
+	 * the leading and trailing whitespace of s is skipped like by String.trim().
+	 */
+	protected static void appendQuotedPrintable(StringBuilder out, String s, boolean trim) {
 
-		} catch (IOException ioe) {}
+		int start = 0;
+		int end = s.length();
+		if (trim) {
+			while (start < end && s.charAt(start) <= ' ') {
+				start++;
+			}
+			while (end > start && s.charAt(end-1) <= ' ') {
+				end--;
+			}
+		}
+
+		// the runs of characters that remain as they are are copied at once
+		int run = start;
+		for (int i = start; i < end; i++) {
+			char c = s.charAt(i);
+			if (c > ' ' && c < 0x7F && c != ';' && c != '=' && c != '|') {
+				continue;
+			}
+			out.append(s, run, i);
+			if (c < 0x80) {
+				appendEncodedByte(out, c);
+			} else if (c < 0x800) {
+				appendEncodedByte(out, 0xC0 | c >> 6);
+				appendEncodedByte(out, 0x80 | c & 0x3F);
+			} else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i+1))) {
+				int codePoint = Character.toCodePoint(c, s.charAt(++i));
+				appendEncodedByte(out, 0xF0 | codePoint >> 18);
+				appendEncodedByte(out, 0x80 | codePoint >> 12 & 0x3F);
+				appendEncodedByte(out, 0x80 | codePoint >> 6 & 0x3F);
+				appendEncodedByte(out, 0x80 | codePoint & 0x3F);
+			} else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+				// an unpaired surrogate becomes '?' like by String.getBytes("UTF-8")
+				out.append('?');
+			} else {
+				appendEncodedByte(out, 0xE0 | c >> 12);
+				appendEncodedByte(out, 0x80 | c >> 6 & 0x3F);
+				appendEncodedByte(out, 0x80 | c & 0x3F);
+			}
+			run = i + 1;
+		}
+		out.append(s, run, end);
+	}
 
-		return null;
+	private static void appendEncodedByte(StringBuilder out, int b) {
+		out.append('=').append(HEXDIGITS[b >> 4 & 0x0F]).append(HEXDIGITS[b & 0x0F]);
 	}
 
 	protected static String base64Encode(byte[] b) {
@@ -97,8 +150,56 @@ public class DKIMUtil {
 		return encoded.replace("\r", ""); // Win --> FSTODO: select Encoder without line termination 
 	}
 
+	protected static byte[] base64Decode(String s) throws DKIMSignerException {
+
+		try {
+			InputStream decoder = MimeUtility.decode(new ByteArrayInputStream(s.getBytes("US-ASCII")), "base64");
+			ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+			byte[] buf = new byte[1024];
+			int len;
+			while ((len = decoder.read(buf)) > 0) {
+				decoded.write(buf, 0, len);
+			}
+			return decoded.toByteArray();
+		} catch (MessagingException me) {
+			throw new DKIMSignerException("The base64 value "+s+" couldn't be decoded", me);
+		} catch (IOException ioe) {
+			throw new DKIMSignerException("The base64 value "+s+" couldn't be decoded", ioe);
+		}
+	}
+
+	protected static PrivateKey readPrivateKey(String privkeyFilename) throws Exception {
+
+		File privKeyFile = new File(privkeyFilename);
+
+		// read private key DER file
+		DataInputStream dis = new DataInputStream(new FileInputStream(privKeyFile));
+		byte[] privKeyBytes = new byte[(int) privKeyFile.length()];
+		dis.readFully(privKeyBytes);
+		dis.close();
+
+		KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+
+		// decode private key
+		PKCS8EncodedKeySpec privSpec = new PKCS8EncodedKeySpec(privKeyBytes);
+		return (RSAPrivateKey) keyFactory.generatePrivate(privSpec);
+	}
+
 	public boolean checkDNSForPublickey(String signingDomain, String selector) throws DKIMSignerException {
 
+		lookupPublicKey(signingDomain, selector);
+
+		// FSTODO: create test signature with privKey and test validation with pubKey to check on a valid key pair,
+		// see SelfVerifier
+
+		return true;
+	}
+
+	/*
+	 * Reads the public key from the TXT record selector._domainkey.signingDomain
+	 */
+	public static PublicKey lookupPublicKey(String signingDomain, String selector) throws DKIMSignerException {
+
 		Hashtable<String, String> env = new Hashtable<String, String>();
         env.put("java.naming.factory.initial", "com.sun.jndi.dns.DnsContextFactory");
         String recordname = selector+"._domainkey."+signingDomain;
@@ -130,26 +231,30 @@ public class DKIMUtil {
         for (String tag : tags) {
         	tag = tag.trim();
         	if (tag.startsWith("p=")) {
-        		
-        		try {
-	        		KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-	
-	        		// decode public key, FSTODO: convert to DER format
-	        		PKCS8EncodedKeySpec pubSpec = new PKCS8EncodedKeySpec(tag.substring(2).getBytes());
-	        		RSAPrivateKey pubKey = (RSAPrivateKey) keyFactory.generatePublic(pubSpec);
-        		} catch (NoSuchAlgorithmException nsae) {
-        			throw new DKIMSignerException("RSA algorithm not found by JVM");
-        		} catch (InvalidKeySpecException ikse) {
-        			throw new DKIMSignerException("The public key "+tag+" in RR "+recordname+" couldn't be decoded.");
-        		}
-        		
-        		// FSTODO: create test signature with privKey and test validation with pubKey to check on a valid key pair
-
-        		return true;
+        		return decodePublicKey(tag.substring(2), recordname);
         	}
 		}
 
         throw new DKIMSignerException("No public key available in "+recordname);
 	}
 
+	// the base64 encoded DER public key of a p= tag
+	protected static PublicKey decodePublicKey(String p, String recordname) throws DKIMSignerException {
+
+		try {
+			// whitespace may separate the parts of long TXT records
+			byte[] der = base64Decode(p.replaceAll("[\\s\"]", ""));
+
+			KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+			return keyFactory.generatePublic(new X509EncodedKeySpec(der));
+
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new DKIMSignerException("RSA algorithm not found by JVM");
+		} catch (InvalidKeySpecException ikse) {
+			throw new DKIMSignerException("The public key "+p+" in RR "+recordname+" couldn't be decoded.");
+		} catch (DKIMSignerException dse) {
+			throw new DKIMSignerException("The public key "+p+" in RR "+recordname+" couldn't be decoded.", dse);
+		}
+	}
+
 }
@@ -0,0 +1,541 @@
+/* 
+ * Copyright 2008 The Apache Software Foundation or its licensors, as
+ * applicable.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A licence was granted to the ASF by Florian Sager on 30 November 2008
+ */
+
+package de.agitos.dkim;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/*
+ * Verifies the DKIM signatures of a message according to RFC 4871 with the same canonicalization
+ * as the DKIMSigner. The public keys are looked up in the DNS or can be added in advance, e.g. for tests
+ * or keys kept in a local file (see loadPublicKeys()). A DKIMVerifier can be shared by several threads.
+ */
+
+public class DKIMVerifier {
+
+	private static String DKIMSIGNATUREHEADER = "DKIM-Signature";
+	private static int BODYCHUNKSIZE = 65536;
+
+	// the value of the b= tag, it's empty in the signed content
+	private static Pattern SIGNATUREVALUE = Pattern.compile("((?:^|;)\\s*b\\s*=)[^;]*");
+
+	// the body of a direct buffer is canonicalized through a chunk of the verifying thread
+	private static ThreadLocal<byte[]> bodyChunks = new ThreadLocal<byte[]>();
+
+	private ConcurrentHashMap<String, PublicKey> publicKeys = new ConcurrentHashMap<String, PublicKey>();
+	private boolean dnsLookup = true;
+	private VerificationCache verificationCache = null;
+	private VerificationLimits verificationLimits = new VerificationLimits();
+
+	public DKIMVerifier() {}
+
+	public void addPublicKey(String signingDomain, String selector, PublicKey publicKey) {
+		publicKeys.put(keyName(signingDomain, selector), publicKey);
+	}
+
+	public void removePublicKey(String signingDomain, String selector) {
+		publicKeys.remove(keyName(signingDomain, selector));
+	}
+
+	/*
+	 * Adds the public keys of a local file with one DNS record per line, either zone file like
+	 *
+	 *   default._domainkey.example.com. 3600 IN TXT "v=DKIM1; k=rsa; " "p=MIGfMA0G..."
+	 *
+	 * or just the record name and value. Empty lines and lines starting with # or ; are ignored, as well
+	 * as revoked keys (empty p= tag). Returns the number of keys added.
+	 */
+	public int loadPublicKeys(File keyFile) throws IOException, DKIMSignerException {
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(keyFile), "US-ASCII"));
+		try {
+			int added = 0;
+			int lineNumber = 0;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#") || line.startsWith(";")) {
+					continue;
+				}
+
+				String[] fields = line.split("\\s+", 2);
+				String recordName = fields[0].endsWith(".") ? fields[0].substring(0, fields[0].length()-1) : fields[0];
+				int domainkeyPos = recordName.toLowerCase().indexOf("._domainkey.");
+				if (domainkeyPos <= 0 || fields.length < 2) {
+					throw new DKIMSignerException("Line "+lineNumber+" of "+keyFile+" is no DKIM key record");
+				}
+
+				// skip the TTL, class and type of a zone file, the value may be split into several strings
+				String value = fields[1].replaceFirst("(?i)^(\\d+\\s+)?(IN\\s+)?(TXT\\s+)?", "").replaceAll("[\"()]", "");
+				for (String tag : value.split(";")) {
+					tag = tag.trim();
+					if (tag.startsWith("p=") && tag.length() > 2) {
+						publicKeys.put(recordName.toLowerCase(), DKIMUtil.decodePublicKey(tag.substring(2), recordName));
+						added++;
+					}
+				}
+			}
+			return added;
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static String keyName(String signingDomain, String selector) {
+		return (selector.trim()+"._domainkey."+signingDomain.trim()).toLowerCase();
+	}
+
+	public boolean isDNSLookup() {
+		return dnsLookup;
+	}
+
+	// false verifies only signatures whose public key was added
+	public void setDNSLookup(boolean dnsLookup) {
+		this.dnsLookup = dnsLookup;
+	}
+
+	public VerificationCache getVerificationCache() {
+		return verificationCache;
+	}
+
+	// signatures found valid before are confirmed by the hash of their signed headers, null disables the cache
+	public void setVerificationCache(VerificationCache verificationCache) {
+		this.verificationCache = verificationCache;
+	}
+
+	public VerificationLimits getVerificationLimits() {
+		return verificationLimits;
+	}
+
+	public void setVerificationLimits(VerificationLimits verificationLimits) {
+		this.verificationLimits = verificationLimits != null ? verificationLimits : new VerificationLimits();
+	}
+
+	// the added keys take precedence over the DNS
+	protected PublicKey getPublicKey(String signingDomain, String selector) throws DKIMSignerException {
+
+		PublicKey publicKey = publicKeys.get(keyName(signingDomain, selector));
+		if (publicKey != null) {
+			return publicKey;
+		}
+		if (!dnsLookup) {
+			throw new DKIMSignerException("No public key available for "+keyName(signingDomain, selector));
+		}
+		return DKIMUtil.lookupPublicKey(signingDomain, selector);
+	}
+
+	public VerificationResult verify(byte[] message) {
+		return verify(message, 0, message.length);
+	}
+
+	/*
+	 * Verifies the DKIM-Signature headers of the raw message in message[off..off+len), the lines may be
+	 * terminated by CRLF or LF. The first valid signature passes the message.
+	 */
+	public VerificationResult verify(byte[] message, int off, int len) {
+		return verify(ByteBuffer.wrap(message, off, len));
+	}
+
+	/*
+	 * Verifies the raw message between the position and the limit of the buffer in place, e.g. a region of
+	 * a memory-mapped file; a direct buffer is passed to the body canonicalization in chunks of 64 KB.
+	 * The position and the limit of the buffer aren't changed.
+	 */
+	public VerificationResult verify(ByteBuffer message) {
+
+		// the work for all signatures of the message is bounded together
+		VerificationLimits limits = verificationLimits;
+		int off = message.position();
+		int len = message.remaining();
+
+		ArrayList<String> headers = new ArrayList<String>();
+		int bodyOffset;
+		try {
+			bodyOffset = parseHeaders(message, off, off + len, headers, limits);
+		} catch (DKIMSignerException dse) {
+			return new VerificationResult(null, null, null, dse.getMessage());
+		}
+		int signatures = 0;
+		int[] remainingHeaderBytes = {limits.getMaxHeaderBytes()};
+		HashMap<String, byte[]> bodyHashes = new HashMap<String, byte[]>();
+
+		VerificationResult firstFailure = null;
+		for (int i = 0; i < headers.size(); i++) {
+			String header = headers.get(i);
+			if (!headerName(header).equalsIgnoreCase(DKIMSIGNATUREHEADER)) {
+				continue;
+			}
+			if (limits.getMaxSignatures() >= 0 && ++signatures > limits.getMaxSignatures()) {
+				break;
+			}
+
+			HashMap<String, String> tags = new HashMap<String, String>();
+			VerificationResult result;
+			try {
+				verifySignature(headers, i, tags, message, bodyOffset, off + len, limits, remainingHeaderBytes, bodyHashes);
+				result = new VerificationResult(tags.get("d"), tags.get("s"), header, null);
+			} catch (DKIMSignerException dse) {
+				result = new VerificationResult(tags.get("d"), tags.get("s"), header, dse.getMessage());
+			}
+			if (result.isPassed()) {
+				return result;
+			}
+			if (firstFailure == null) {
+				firstFailure = result;
+			}
+		}
+
+		if (firstFailure == null) {
+			return new VerificationResult(null, null, null, "The message has no "+DKIMSIGNATUREHEADER+" header");
+		}
+		return firstFailure;
+	}
+
+	/*
+	 * Adds the header fields with their folded continuation lines joined by CRLF to headers and
+	 * returns the offset of the body. Stops with an exception as soon as the header block exceeds the limits.
+	 */
+	private static int parseHeaders(ByteBuffer message, int off, int end, List<String> headers, VerificationLimits limits) throws DKIMSignerException {
+
+		int maxBytes = limits.getMaxHeaderBlockBytes();
+		int maxLines = limits.getMaxHeaderLines();
+		// the empty line may follow a header block of exactly maxBytes
+		int scanEnd = maxBytes >= 0 ? (int) Math.min(end, (long) off + maxBytes + 2) : end;
+		int lines = 0;
+
+		// the continuation lines are collected first, a header folded many times would be copied for every line otherwise
+		StringBuilder folded = null;
+		int pos = off;
+		while (pos < end) {
+			if (maxLines >= 0 && ++lines > maxLines + 1) {
+				throw new DKIMSignerException("The header block exceeds the limit of "+maxLines+" lines");
+			}
+			int lineEnd = pos;
+			while (lineEnd < scanEnd && message.get(lineEnd) != '\n') {
+				lineEnd++;
+			}
+			if (lineEnd == scanEnd && scanEnd < end) {
+				throw new DKIMSignerException("The header block exceeds the limit of "+maxBytes+" bytes");
+			}
+			int next = lineEnd < end ? lineEnd + 1 : end;
+			if (lineEnd > pos && message.get(lineEnd-1) == '\r') {
+				lineEnd--;
+			}
+
+			// the empty line separates the body
+			if (lineEnd == pos) {
+				addFolded(headers, folded);
+				return next;
+			}
+			if (maxBytes >= 0 && next - off > maxBytes) {
+				throw new DKIMSignerException("The header block exceeds the limit of "+maxBytes+" bytes");
+			}
+
+			String line = latin1(message, pos, lineEnd - pos);
+			if ((message.get(pos) == ' ' || message.get(pos) == '\t') && !headers.isEmpty()) {
+				if (folded == null) {
+					folded = new StringBuilder(headers.get(headers.size()-1));
+				}
+				folded.append("\r\n").append(line);
+			} else {
+				addFolded(headers, folded);
+				folded = null;
+				headers.add(line);
+			}
+			pos = next;
+		}
+		addFolded(headers, folded);
+		return end;
+	}
+
+	private static void addFolded(List<String> headers, StringBuilder folded) {
+
+		if (folded != null) {
+			headers.set(headers.size()-1, folded.toString());
+		}
+	}
+
+	private void verifySignature(List<String> headers, int signatureIndex, Map<String, String> tags, ByteBuffer message, int bodyOffset, int end,
+			VerificationLimits limits, int[] remainingHeaderBytes, Map<String, byte[]> bodyHashes) throws DKIMSignerException {
+
+		String[] signatureParts = DKIMUtil.splitHeader(headers.get(signatureIndex));
+		parseTags(signatureParts[1], tags);
+
+		String[] requiredTags = {"v", "a", "b", "bh", "d", "h", "s"};
+		for (String tag : requiredTags) {
+			if (tags.get(tag) == null) {
+				throw new DKIMSignerException("The signature has no "+tag+"= tag");
+			}
+		}
+		if (!"1".equals(tags.get("v"))) {
+			throw new DKIMSignerException("The signature version "+tags.get("v")+" is not supported");
+		}
+
+		SigningAlgorithm signingAlgorithm = SigningAlgorithm.forRfc4871Notation(tags.get("a"));
+		if (signingAlgorithm == null) {
+			throw new DKIMSignerException("The signing algorithm "+tags.get("a")+" is not supported");
+		}
+
+		String c = tags.get("c") != null ? tags.get("c") : "simple/simple";
+		int slash = c.indexOf('/');
+		Canonicalization headerCanonicalization = forType(slash < 0 ? c : c.substring(0, slash));
+		Canonicalization bodyCanonicalization = forType(slash < 0 ? "simple" : c.substring(slash + 1));
+
+		String signingDomain = tags.get("d");
+		String[] signedHeaders = tags.get("h").split(":");
+		if (limits.getMaxSignedHeaders() >= 0 && signedHeaders.length > limits.getMaxSignedHeaders()) {
+			throw new DKIMSignerException("The signature lists more than "+limits.getMaxSignedHeaders()+" headers");
+		}
+		boolean fromSigned = false;
+		for (String signedHeader : signedHeaders) {
+			fromSigned |= signedHeader.trim().equalsIgnoreCase("From");
+		}
+		if (!fromSigned) {
+			throw new DKIMSignerException("The From header is not signed");
+		}
+
+		String identity = tags.get("i");
+		if (identity != null) {
+			String identityDomain = identity.substring(identity.lastIndexOf('@') + 1).toLowerCase();
+			if (!identityDomain.equals(signingDomain.toLowerCase()) && !identityDomain.endsWith("."+signingDomain.toLowerCase())) {
+				throw new DKIMSignerException("The identity "+identity+" is not within the signing domain");
+			}
+		}
+
+		long length = -1;
+		try {
+			if (tags.get("x") != null && Long.parseLong(tags.get("x")) < System.currentTimeMillis() / 1000) {
+				throw new DKIMSignerException("The signature has expired");
+			}
+			if (tags.get("l") != null) {
+				length = Long.parseLong(tags.get("l"));
+			}
+		} catch (NumberFormatException nfe) {
+			throw new DKIMSignerException("The signature contains an invalid number", nfe);
+		}
+
+		// the instances of a header listed several times are taken from the bottom up, missing ones are skipped
+		String[] headerNames = new String[headers.size()];
+		for (int i = 0; i < headerNames.length; i++) {
+			headerNames[i] = headerName(headers.get(i)).toLowerCase();
+		}
+		HashMap<String, Integer> nextInstances = new HashMap<String, Integer>();
+		StringBuilder signedContent = new StringBuilder();
+		for (String signedHeader : signedHeaders) {
+			String name = signedHeader.trim().toLowerCase();
+			Integer next = nextInstances.get(name);
+			int i = next != null ? next.intValue() : headerNames.length - 1;
+			while (i >= 0 && (i == signatureIndex || !headerNames[i].equals(name))) {
+				i--;
+			}
+			nextInstances.put(name, i - 1);
+			if (i >= 0) {
+				String[] headerParts = DKIMUtil.splitHeader(headers.get(i));
+				signedContent.append(headerCanonicalization.canonicalizeHeader(headerParts[0], headerParts[1])).append("\r\n");
+				checkHeaderBytes(signedContent, limits, remainingHeaderBytes);
+			}
+		}
+		String unsignedValue = SIGNATUREVALUE.matcher(signatureParts[1]).replaceFirst("$1");
+		signedContent.append(headerCanonicalization.canonicalizeHeader(signatureParts[0], unsignedValue));
+		checkHeaderBytes(signedContent, limits, remainingHeaderBytes);
+		if (limits.getMaxHeaderBytes() >= 0) {
+			remainingHeaderBytes[0] -= signedContent.length();
+		}
+
+		// body hash, signatures with the same algorithm, body canonicalization and l= share it
+		MessageDigest messageDigest;
+		try {
+			messageDigest = MessageDigest.getInstance(signingAlgorithm.getJavaHashNotation());
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new DKIMSignerException("The hashing algorithm "+signingAlgorithm.getJavaHashNotation()+" is not known by the JVM", nsae);
+		}
+		String bodyHashKey = signingAlgorithm.getJavaHashNotation()+"/"+bodyCanonicalization.getType()+"/"+length;
+		byte[] bodyHash = bodyHashes.get(bodyHashKey);
+		if (bodyHash == null) {
+			BodyHasher bodyHasher = new BodyHasher(messageDigest);
+			bodyHasher.setLimit(length);
+			try {
+				OutputStream canonicalizer = bodyCanonicalization.getBodyCanonicalizer(bodyHasher);
+				writeBody(message, bodyOffset, end, canonicalizer);
+				canonicalizer.close();
+				bodyHash = bodyHasher.digest();
+			} catch (IOException ioe) {
+				throw new DKIMSignerException("The body canonicalization failed", ioe);
+			}
+			if (length >= 0 && bodyHasher.getLength() < length) {
+				throw new DKIMSignerException("The body is shorter than l="+length);
+			}
+			bodyHashes.put(bodyHashKey, bodyHash);
+		}
+		if (!DKIMUtil.base64Encode(bodyHash).equals(tags.get("bh"))) {
+			throw new DKIMSignerException("The body hash doesn't match");
+		}
+
+		byte[] signedBytes = latin1Bytes(signedContent.toString());
+
+		// a duplicate of a verified message has the same signed headers
+		VerificationCache verificationCache = this.verificationCache;
+		String cacheKey = null;
+		if (verificationCache != null) {
+			cacheKey = VerificationCache.key(signingDomain, tags.get("s"), tags.get("a"), tags.get("bh"), tags.get("b"), messageDigest.digest(signedBytes));
+			if (verificationCache.isVerified(cacheKey)) {
+				return;
+			}
+		}
+
+		PublicKey publicKey = getPublicKey(signingDomain, tags.get("s"));
+		if (limits.getMaxKeyBits() >= 0 && publicKey instanceof RSAPublicKey
+				&& ((RSAPublicKey) publicKey).getModulus().bitLength() > limits.getMaxKeyBits()) {
+			throw new DKIMSignerException("The public key is larger than "+limits.getMaxKeyBits()+" bits");
+		}
+		try {
+			Signature verificationService = Signature.getInstance(signingAlgorithm.getJavaSecNotation());
+			verificationService.initVerify(publicKey);
+			verificationService.update(signedBytes);
+			if (!verificationService.verify(DKIMUtil.base64Decode(tags.get("b")))) {
+				throw new DKIMSignerException("The signature doesn't match the public key");
+			}
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new DKIMSignerException("The signing algorithm "+signingAlgorithm.getJavaSecNotation()+" is not known by the JVM", nsae);
+		} catch (InvalidKeyException ike) {
+			throw new DKIMSignerException("The public key is invalid: "+ike.getLocalizedMessage(), ike);
+		} catch (SignatureException se) {
+			throw new DKIMSignerException("The signature couldn't be verified: "+se.getLocalizedMessage(), se);
+		}
+
+		if (verificationCache != null) {
+			verificationCache.addVerified(cacheKey);
+		}
+	}
+
+	// the canonicalized headers of a signature must fit into the remaining budget of the message
+	private static void checkHeaderBytes(StringBuilder signedContent, VerificationLimits limits, int[] remainingHeaderBytes) throws DKIMSignerException {
+
+		if (limits.getMaxHeaderBytes() >= 0 && signedContent.length() > remainingHeaderBytes[0]) {
+			remainingHeaderBytes[0] = 0;
+			throw new DKIMSignerException("The signed headers exceed the limit of "+limits.getMaxHeaderBytes()+" bytes per message");
+		}
+	}
+
+	// tag=value pairs separated by semicolons, the whitespace inside of the values is removed
+	private static void parseTags(String value, Map<String, String> tags) throws DKIMSignerException {
+
+		for (String tag : value.split(";")) {
+			tag = tag.trim();
+			if (tag.length() == 0) {
+				continue;
+			}
+			int eq = tag.indexOf('=');
+			if (eq < 1) {
+				throw new DKIMSignerException("The signature contains the malformed tag "+tag);
+			}
+			String name = tag.substring(0, eq).trim();
+			if (tags.put(name, tag.substring(eq + 1).replaceAll("[ \\t\\r\\n]", "")) != null) {
+				throw new DKIMSignerException("The signature contains the tag "+name+"= twice");
+			}
+		}
+	}
+
+	private static Canonicalization forType(String type) throws DKIMSignerException {
+
+		if (Canonicalization.SIMPLE.getType().equals(type)) {
+			return Canonicalization.SIMPLE;
+		}
+		if (Canonicalization.RELAXED.getType().equals(type)) {
+			return Canonicalization.RELAXED;
+		}
+		throw new DKIMSignerException("The canonicalization "+type+" is not supported");
+	}
+
+	private static String headerName(String header) {
+
+		int colonPos = header.indexOf(':');
+		return colonPos < 0 ? header : header.substring(0, colonPos).trim();
+	}
+
+	private static byte[] latin1Bytes(String s) {
+
+		try {
+			return s.getBytes("ISO-8859-1");
+		} catch (UnsupportedEncodingException uee) {
+			// every JVM supports ISO-8859-1
+			throw new IllegalStateException(uee);
+		}
+	}
+
+	private static String latin1(ByteBuffer b, int off, int len) {
+
+		if (b.hasArray()) {
+			try {
+				return new String(b.array(), b.arrayOffset() + off, len, "ISO-8859-1");
+			} catch (UnsupportedEncodingException uee) {
+				// every JVM supports ISO-8859-1
+				throw new IllegalStateException(uee);
+			}
+		}
+		char[] chars = new char[len];
+		for (int i = 0; i < len; i++) {
+			chars[i] = (char) (b.get(off + i) & 0xff);
+		}
+		return new String(chars);
+	}
+
+	// the body of a heap buffer is canonicalized directly, the one of a direct buffer in chunks
+	private static void writeBody(ByteBuffer message, int from, int end, OutputStream canonicalizer) throws IOException {
+
+		if (message.hasArray()) {
+			canonicalizer.write(message.array(), message.arrayOffset() + from, end - from);
+			return;
+		}
+		byte[] chunk = bodyChunks.get();
+		if (chunk == null) {
+			chunk = new byte[BODYCHUNKSIZE];
+			bodyChunks.set(chunk);
+		}
+		ByteBuffer body = message.duplicate();
+		body.limit(end);
+		body.position(from);
+		while (body.hasRemaining()) {
+			int len = Math.min(chunk.length, body.remaining());
+			body.get(chunk, 0, len);
+			canonicalizer.write(chunk, 0, len);
+		}
+	}
+}
@@ -0,0 +1,184 @@
+/* 
+ * Copyright 2008 The Apache Software Foundation or its licensors, as
+ * applicable.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A licence was granted to the ASF by Florian Sager on 30 November 2008
+ */
+
+package de.agitos.dkim;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * A bounded cache from raw header lines to their canonicalized form and their z= encoding, for headers
+ * that are identical in many messages, e.g. From, Reply-To, List-Unsubscribe or Content-Type.
+ * Lookups don't lock. If the cache is full, entries that weren't hit since the last sweep are evicted
+ * first (second chance, an approximation of LRU). A cache may be shared by several DKIMSigners.
+ */
+
+public class HeaderCache {
+
+	private int maxEntries;
+	private ConcurrentHashMap<String, Entry> entries;
+	private ConcurrentLinkedQueue<Entry> clock = new ConcurrentLinkedQueue<Entry>();
+
+	private AtomicLong hits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+	private AtomicLong evictions = new AtomicLong();
+
+	public static class Entry {
+
+		private String headerLine;
+		private Canonicalization canonicalization;
+		private String name;
+		private String canonicalizedHeader;
+		private volatile String zParamValue;
+		private volatile boolean referenced = false;
+
+		private Entry(String headerLine, Canonicalization canonicalization) throws DKIMSignerException {
+			String[] headerParts = DKIMUtil.splitHeader(headerLine);
+			this.headerLine = headerLine;
+			this.canonicalization = canonicalization;
+			this.name = headerParts[0];
+			this.canonicalizedHeader = canonicalization.canonicalizeHeader(headerParts[0], headerParts[1]);
+		}
+
+		// the field name as it occurs in the header line
+		public String getName() {
+			return name;
+		}
+
+		public String getCanonicalizedHeader() {
+			return canonicalizedHeader;
+		}
+
+		// the DKIM-Quoted-Printable value for z=, encoded on first use
+		public String getZParamValue() throws DKIMSignerException {
+			String zParamValue = this.zParamValue;
+			if (zParamValue == null) {
+				StringBuilder encoded = new StringBuilder(headerLine.length() + 16);
+				DKIMUtil.appendQuotedPrintable(encoded, DKIMUtil.splitHeader(headerLine)[1], true);
+				zParamValue = encoded.toString();
+				this.zParamValue = zParamValue;
+			}
+			return zParamValue;
+		}
+	}
+
+	public HeaderCache(int maxEntries) {
+
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("The cache needs room for one entry at least");
+		}
+		this.maxEntries = maxEntries;
+		this.entries = new ConcurrentHashMap<String, Entry>(Math.min(maxEntries, 1 << 16) * 4 / 3 + 1);
+	}
+
+	/*
+	 * Returns the entry of the header line canonicalized by canonicalization, a missing entry is created.
+	 */
+	public Entry lookup(String headerLine, Canonicalization canonicalization) throws DKIMSignerException {
+
+		Entry entry = entries.get(headerLine);
+		if (entry != null && entry.canonicalization == canonicalization) {
+			if (!entry.referenced) {
+				entry.referenced = true;
+			}
+			hits.incrementAndGet();
+			return entry;
+		}
+		misses.incrementAndGet();
+
+		Entry created = new Entry(headerLine, canonicalization);
+		if (entry != null) {
+			// canonicalized differently by another configuration
+			if (entries.replace(headerLine, entry, created)) {
+				clock.offer(created);
+			}
+			return created;
+		}
+		if (entries.putIfAbsent(headerLine, created) == null) {
+			clock.offer(created);
+			while (entries.size() > maxEntries) {
+				if (!evict()) {
+					break;
+				}
+			}
+		}
+		return created;
+	}
+
+	// passes the clock hand over the entries and removes the first one that wasn't hit since its last pass
+	private boolean evict() {
+
+		while (true) {
+			Entry entry = clock.poll();
+			if (entry == null) {
+				return false;
+			}
+			if (entries.get(entry.headerLine) != entry) {
+				// replaced in the meantime
+				continue;
+			}
+			if (entry.referenced) {
+				entry.referenced = false;
+				clock.offer(entry);
+			} else if (entries.remove(entry.headerLine, entry)) {
+				evictions.incrementAndGet();
+				return true;
+			}
+		}
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	// the share of lookups answered by the cache, 0 before the first lookup
+	public double getHitRatio() {
+		long hits = this.hits.get();
+		long lookups = hits + misses.get();
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	public void resetStatistics() {
+		hits.set(0);
+		misses.set(0);
+		evictions.set(0);
+	}
+
+	public void clear() {
+		entries.clear();
+		clock.clear();
+	}
+}
@@ -0,0 +1,201 @@
+/* 
+ * Copyright 2008 The Apache Software Foundation or its licensors, as
+ * applicable.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A licence was granted to the ASF by Florian Sager on 30 November 2008
+ */
+
+
+package de.agitos.dkim;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+/*
+ * The compiled selection of the headers to sign, built once per configuration of a DKIMSigner.
+ * Header lines are looked up case-insensitively by a hash table over the field name, without
+ * creating substrings for the many headers that aren't signed.
+ *
+ * Over-signed headers are listed in h= more often than they occur in the message, so no further
+ * instances (e.g. a second From) can be added without breaking the signature.
+ */
+
+public class HeaderPolicy {
+
+	private String[] headers;
+	private Entry[] table;
+	private int mask;
+	private String overSignedHeaderList;
+
+	public static class Entry {
+
+		private String name;
+		private int index;
+		private boolean variable;
+		private int overSignCount;
+
+		private Entry(String name, int index) {
+			this.name = name;
+			this.index = index;
+		}
+
+		// the name as configured
+		public String getName() {
+			return name;
+		}
+
+		// position within the configured headers
+		public int getIndex() {
+			return index;
+		}
+
+		// variable headers don't belong to the stable header prefix
+		public boolean isVariable() {
+			return variable;
+		}
+
+		public int getOverSignCount() {
+			return overSignCount;
+		}
+	}
+
+	/*
+	 * overSigned maps a header name to the number of additional listings in h=, such headers are signed
+	 * even if they are missing in headers.
+	 */
+	public HeaderPolicy(String[] headers, String[] variableHeaders, Map<String, Integer> overSigned) {
+
+		ArrayList<String> names = new ArrayList<String>();
+		for (String header : headers) {
+			if (header != null && !"".equals(header) && !containsIgnoreCase(names, header)) {
+				names.add(header);
+			}
+		}
+		if (overSigned != null) {
+			for (String header : overSigned.keySet()) {
+				if (!containsIgnoreCase(names, header)) {
+					names.add(header);
+				}
+			}
+		}
+		this.headers = names.toArray(new String[names.size()]);
+
+		int size = 16;
+		while (size < this.headers.length * 2) {
+			size <<= 1;
+		}
+		this.table = new Entry[size];
+		this.mask = size - 1;
+		for (int i = 0; i < this.headers.length; i++) {
+			String name = this.headers[i];
+			int pos = hash(name, name.length()) & mask;
+			while (table[pos] != null) {
+				pos = (pos + 1) & mask;
+			}
+			table[pos] = new Entry(name, i);
+		}
+
+		if (variableHeaders != null) {
+			for (String header : variableHeaders) {
+				Entry entry = lookup(header, header.length());
+				if (entry != null) {
+					entry.variable = true;
+				}
+			}
+		}
+
+		StringBuilder overSignedList = new StringBuilder();
+		if (overSigned != null) {
+			for (Map.Entry<String, Integer> o : overSigned.entrySet()) {
+				Entry entry = lookup(o.getKey(), o.getKey().length());
+				entry.overSignCount = o.getValue();
+				for (int i = 0; i < entry.overSignCount; i++) {
+					overSignedList.append(":").append(entry.name);
+				}
+			}
+		}
+		this.overSignedHeaderList = overSignedList.toString();
+	}
+
+	public String[] getHeaders() {
+		return headers.clone();
+	}
+
+	public int size() {
+		return headers.length;
+	}
+
+	// e.g. ":From:Subject", to be appended to the h= list
+	public String getOverSignedHeaderList() {
+		return overSignedHeaderList;
+	}
+
+	public Entry lookup(String name) {
+		return lookup(name, name.length());
+	}
+
+	/*
+	 * Looks up the field name of a header line, i.e. the characters before the colon.
+	 */
+	public Entry lookupHeaderLine(String headerLine) {
+
+		int colonPos = headerLine.indexOf(':');
+		if (colonPos == -1) {
+			return null;
+		}
+		// obsolete syntax allows whitespace before the colon
+		while (colonPos > 0 && (headerLine.charAt(colonPos-1) == ' ' || headerLine.charAt(colonPos-1) == '\t')) {
+			colonPos--;
+		}
+		return lookup(headerLine, colonPos);
+	}
+
+	private Entry lookup(String s, int len) {
+
+		int pos = hash(s, len) & mask;
+		Entry entry;
+		while ((entry = table[pos]) != null) {
+			if (entry.name.length() == len && entry.name.regionMatches(true, 0, s, 0, len)) {
+				return entry;
+			}
+			pos = (pos + 1) & mask;
+		}
+		return null;
+	}
+
+	// case-insensitive for the ASCII field names
+	private static int hash(String s, int len) {
+
+		int h = 0;
+		for (int i = 0; i < len; i++) {
+			char c = s.charAt(i);
+			if (c >= 'A' && c <= 'Z') {
+				c += 'a' - 'A';
+			}
+			h = 31 * h + c;
+		}
+		return h ^ (h >>> 16);
+	}
+
+	private static boolean containsIgnoreCase(ArrayList<String> names, String name) {
+
+		for (String n : names) {
+			if (n.equalsIgnoreCase(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
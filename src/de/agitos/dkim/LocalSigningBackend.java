@@ -0,0 +1,102 @@
+/* 
+ * Copyright 2008 The Apache Software Foundation or its licensors, as
+ * applicable.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A licence was granted to the ASF by Florian Sager on 30 November 2008
+ */
+
+package de.agitos.dkim;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/*
+ * SigningBackend with an in-process private key, e.g. inside a SigningDaemon or as a stand-in for tests.
+ * The hash is signed by the raw signing algorithm (NONEwithRSA) after prepending its DigestInfo.
+ */
+
+public class LocalSigningBackend implements SigningBackend {
+
+	private PrivateKey privkey;
+	private Provider provider;
+
+	// raw signature services by their java notation, pooled for concurrent use
+	private ConcurrentHashMap<String, ConcurrentLinkedQueue<Signature>> signatureServices = new ConcurrentHashMap<String, ConcurrentLinkedQueue<Signature>>();
+
+	public LocalSigningBackend(PrivateKey privkey) {
+		this(privkey, null);
+	}
+
+	// the provider may be null for the default provider resolution
+	public LocalSigningBackend(PrivateKey privkey, Provider provider) {
+		this.privkey = privkey;
+		this.provider = provider;
+	}
+
+	public byte[] sign(String signingDomain, String selector, SigningAlgorithm signingAlgorithm, byte[] hash) throws DKIMSignerException {
+
+		String javaRawSecNotation = signingAlgorithm.getJavaRawSecNotation();
+		if (javaRawSecNotation == null || signingAlgorithm.getDigestInfoPrefix() == null) {
+			throw new DKIMSignerException("The signing algorithm "+signingAlgorithm.getRfc4871Notation()+" doesn't support separate hashing");
+		}
+
+		ConcurrentLinkedQueue<Signature> pool = signatureServices.get(javaRawSecNotation);
+		if (pool == null) {
+			signatureServices.putIfAbsent(javaRawSecNotation, new ConcurrentLinkedQueue<Signature>());
+			pool = signatureServices.get(javaRawSecNotation);
+		}
+
+		Signature signatureService = pool.poll();
+		if (signatureService == null) {
+			signatureService = createSignatureService(javaRawSecNotation);
+		}
+
+		byte[] signedSignature;
+		try {
+			signatureService.update(signingAlgorithm.getDigestInfoPrefix());
+			signatureService.update(hash);
+			signedSignature = signatureService.sign();
+		} catch (SignatureException se) {
+			throw new DKIMSignerException("The signing operation by Java security failed", se);
+		}
+
+		pool.offer(signatureService);
+		return signedSignature;
+	}
+
+	private Signature createSignatureService(String javaSecNotation) throws DKIMSignerException {
+
+		Signature signatureService;
+		try {
+			signatureService = ProviderSelector.getSignature(javaSecNotation, provider);
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new DKIMSignerException("The signing algorithm "+javaSecNotation+" is not known by the JVM", nsae);
+		}
+
+		try {
+			signatureService.initSign(privkey);
+		} catch (InvalidKeyException ike) {
+			throw new DKIMSignerException("The provided private key is invalid", ike);
+		}
+
+		return signatureService;
+	}
+}
@@ -0,0 +1,146 @@
+/* 
+ * Copyright 2008 The Apache Software Foundation or its licensors, as
+ * applicable.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A licence was granted to the ASF by Florian Sager on 30 November 2008
+ */
+
+package de.agitos.dkim;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/*
+ * BodyHasher that hashes in a separate thread while the writing thread keeps canonicalizing.
+ *
+ * The canonicalized body is copied into fixed-size chunks which circulate in a bounded ring:
+ * filled chunks are passed to the hashing thread, hashed chunks are returned for reuse.
+ * The writer blocks if all chunks wait for hashing.
+ */
+
+public class PipelinedBodyHasher extends BodyHasher {
+
+	private static ExecutorService hashingThreads = Executors.newCachedThreadPool(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "DKIM body hashing");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private static class Chunk {
+
+		private byte[] data;
+		private int length = 0;
+
+		private Chunk(int size) {
+			data = new byte[size];
+		}
+	}
+
+	// marks the end of the body
+	private static Chunk END = new Chunk(0);
+
+	private ArrayBlockingQueue<Chunk> filled;
+	private ArrayBlockingQueue<Chunk> free;
+	private Chunk current;
+	private Future<byte[]> result;
+
+	public PipelinedBodyHasher(MessageDigest messageDigest, int chunkSize, int chunks) {
+
+		super(messageDigest);
+
+		filled = new ArrayBlockingQueue<Chunk>(chunks + 1);
+		free = new ArrayBlockingQueue<Chunk>(chunks);
+		for (int i = 1; i < chunks; i++) {
+			free.add(new Chunk(chunkSize));
+		}
+		current = new Chunk(chunkSize);
+
+		result = hashingThreads.submit(new Callable<byte[]>() {
+			public byte[] call() throws InterruptedException {
+				return hashChunks();
+			}
+		});
+	}
+
+	private byte[] hashChunks() throws InterruptedException {
+
+		while (true) {
+			Chunk chunk = filled.take();
+			if (chunk == END) {
+				return messageDigest.digest();
+			}
+			messageDigest.update(chunk.data, 0, chunk.length);
+			chunk.length = 0;
+			free.put(chunk);
+		}
+	}
+
+	public void write(int b) throws IOException {
+		write(new byte[] {(byte) b}, 0, 1);
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+
+		len = hashable(len);
+		length += len;
+		while (len > 0) {
+			int n = Math.min(len, current.data.length - current.length);
+			System.arraycopy(b, off, current.data, current.length, n);
+			current.length += n;
+			off += n;
+			len -= n;
+
+			if (current.length == current.data.length) {
+				try {
+					filled.put(current);
+					current = free.take();
+				} catch (InterruptedException ie) {
+					abort();
+					throw new InterruptedIOException("Interrupted while waiting for the body hashing");
+				}
+			}
+		}
+	}
+
+	public byte[] digest() throws IOException {
+
+		try {
+			if (current.length > 0) {
+				filled.put(current);
+			}
+			filled.put(END);
+			return result.get();
+		} catch (InterruptedException ie) {
+			abort();
+			throw new InterruptedIOException("Interrupted while waiting for the body hashing");
+		} catch (ExecutionException ee) {
+			throw new IOException("The body hashing failed: "+ee.getCause());
+		}
+	}
+
+	public void abort() {
+		result.cancel(true);
+	}
+}
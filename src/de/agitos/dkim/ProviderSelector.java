@@ -0,0 +1,181 @@
+/* 
+ * Copyright 2008 The Apache Software Foundation or its licensors, as
+ * applicable.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A licence was granted to the ASF by Florian Sager on 30 November 2008
+ */
+
+package de.agitos.dkim;
+
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.Security;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.interfaces.RSAKey;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/*
+ * Creates the JCA services with an explicitly selected provider and finds the fastest
+ * installed provider for a signing algorithm by a short benchmark.
+ */
+
+public class ProviderSelector {
+
+	private static Logger log = Logger.getLogger(ProviderSelector.class.getName());
+
+	private static long PROBEMILLIS = 200;
+	private static int PROBEDATALENGTH = 1024;
+
+	// probed providers by algorithm and key, the probe runs only once per JVM
+	private static ConcurrentHashMap<String, Provider> fastestProviders = new ConcurrentHashMap<String, Provider>();
+
+	// uses the default provider resolution if provider is null or doesn't support the algorithm
+	public static Signature getSignature(String javaSecNotation, Provider provider) throws NoSuchAlgorithmException {
+
+		if (provider != null && provider.getService("Signature", javaSecNotation) != null) {
+			return Signature.getInstance(javaSecNotation, provider);
+		}
+		return Signature.getInstance(javaSecNotation);
+	}
+
+	public static MessageDigest getMessageDigest(String javaHashNotation, Provider provider) throws NoSuchAlgorithmException {
+
+		if (provider != null && provider.getService("MessageDigest", javaHashNotation) != null) {
+			return MessageDigest.getInstance(javaHashNotation, provider);
+		}
+		return MessageDigest.getInstance(javaHashNotation);
+	}
+
+	/*
+	 * Signs sample data with every provider supporting the signing algorithm for PROBEMILLIS each
+	 * and returns the provider with the highest throughput. Without a private key only the hashing is probed.
+	 */
+	public static Provider getFastestProvider(SigningAlgorithm signingAlgorithm, PrivateKey privkey) throws DKIMSignerException {
+
+		String probeKey = signingAlgorithm.getRfc4871Notation();
+		if (privkey != null) {
+			probeKey += "/"+privkey.getAlgorithm();
+			if (privkey instanceof RSAKey) {
+				probeKey += "/"+((RSAKey) privkey).getModulus().bitLength();
+			}
+		}
+
+		Provider fastest = fastestProviders.get(probeKey);
+		if (fastest != null) {
+			return fastest;
+		}
+
+		byte[] data = new byte[PROBEDATALENGTH];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) ('a' + i % 26);
+		}
+
+		double fastestRate = 0;
+		for (Provider provider : Security.getProviders()) {
+
+			double rate;
+			if (privkey != null) {
+				if (provider.getService("Signature", signingAlgorithm.getJavaSecNotation()) == null) {
+					continue;
+				}
+				rate = probeSignature(provider, signingAlgorithm, privkey, data);
+			} else {
+				if (provider.getService("MessageDigest", signingAlgorithm.getJavaHashNotation()) == null) {
+					continue;
+				}
+				rate = probeMessageDigest(provider, signingAlgorithm, data);
+			}
+
+			log.fine("Provider "+provider.getName()+" runs "+String.format("%.1f", rate)+" operations/s for "+probeKey);
+			if (rate > fastestRate) {
+				fastestRate = rate;
+				fastest = provider;
+			}
+		}
+
+		if (fastest == null) {
+			throw new DKIMSignerException("No provider supports the signing algorithm "+signingAlgorithm.getJavaSecNotation());
+		}
+
+		log.info("Selected provider "+fastest.getName()+" for "+probeKey+" with "+String.format("%.1f", fastestRate)+" operations/s");
+
+		fastestProviders.putIfAbsent(probeKey, fastest);
+		return fastestProviders.get(probeKey);
+	}
+
+	// returns operations per second or 0 if the provider can't handle the key
+	private static double probeSignature(Provider provider, SigningAlgorithm signingAlgorithm, PrivateKey privkey, byte[] data) {
+
+		try {
+			Signature signature = Signature.getInstance(signingAlgorithm.getJavaSecNotation(), provider);
+			signature.initSign(privkey);
+
+			// the first round warms up the provider, the second one is measured
+			double rate = 0;
+			for (int round = 0; round < 2; round++) {
+				long start = System.nanoTime();
+				long end = start + PROBEMILLIS * 1000000;
+				int operations = 0;
+				long now;
+				do {
+					signature.update(data);
+					signature.sign();
+					operations++;
+					now = System.nanoTime();
+				} while (now < end);
+				rate = operations * 1e9 / (now - start);
+			}
+			return rate;
+
+		} catch (NoSuchAlgorithmException nsae) {
+			return 0;
+		} catch (InvalidKeyException ike) {
+			return 0;
+		} catch (SignatureException se) {
+			return 0;
+		}
+	}
+
+	private static double probeMessageDigest(Provider provider, SigningAlgorithm signingAlgorithm, byte[] data) {
+
+		try {
+			MessageDigest messageDigest = MessageDigest.getInstance(signingAlgorithm.getJavaHashNotation(), provider);
+
+			double rate = 0;
+			for (int round = 0; round < 2; round++) {
+				long start = System.nanoTime();
+				long end = start + PROBEMILLIS * 1000000;
+				int operations = 0;
+				long now;
+				do {
+					messageDigest.update(data);
+					messageDigest.digest();
+					operations++;
+					now = System.nanoTime();
+				} while (now < end);
+				rate = operations * 1e9 / (now - start);
+			}
+			return rate;
+
+		} catch (NoSuchAlgorithmException nsae) {
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,342 @@
+/* 
+ * Copyright 2008 The Apache Software Foundation or its licensors, as
+ * applicable.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A licence was granted to the ASF by Florian Sager on 30 November 2008
+ */
+
+package de.agitos.dkim;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * SigningBackend that delegates the signing of hashes to a SigningDaemon.
+ *
+ * All threads share one connection: requests are pipelined without waiting for the previous
+ * responses, and the requests queued while a batch is written are sent together with a single flush.
+ * A broken connection fails the pending requests and is reestablished by the next request.
+ * A request that isn't answered within the request timeout fails alone: its connection is replaced,
+ * the other requests pending on it are sent once more over the new connection.
+ * Every new connection authenticates with the client name and secret registered at the daemon.
+ */
+
+public class RemoteSigningBackend implements SigningBackend {
+
+	private String host;
+	private int port;
+	private String clientName;
+	private byte[] secret;
+	private int connectTimeout = 5000;
+	private long requestTimeout = 10000;
+
+	private AtomicInteger requestIds = new AtomicInteger();
+	private Connection connection;
+
+	public RemoteSigningBackend(String host, int port, String clientName, String secret) {
+		this.host = host;
+		this.port = port;
+		this.clientName = clientName;
+		this.secret = SigningDaemon.utf8(secret);
+	}
+
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	public void setRequestTimeout(long requestTimeout) {
+		this.requestTimeout = requestTimeout;
+	}
+
+	public byte[] sign(String signingDomain, String selector, SigningAlgorithm signingAlgorithm, byte[] hash) throws DKIMSignerException {
+
+		Request request = new Request(requestIds.incrementAndGet(), signingDomain, selector, signingAlgorithm.getRfc4871Notation(), hash);
+		submit(request);
+
+		try {
+			if (!request.done.await(requestTimeout, TimeUnit.MILLISECONDS)) {
+				if (timedOut(request)) {
+					throw new DKIMSignerException("The signing daemon "+host+":"+port+" didn't answer within "+requestTimeout+"ms");
+				}
+				// the response arrived meanwhile
+				request.done.await();
+			}
+		} catch (InterruptedException ie) {
+			abandon(request);
+			Thread.currentThread().interrupt();
+			throw new DKIMSignerException("Waiting for the signing daemon was interrupted", ie);
+		}
+
+		if (request.signature == null) {
+			throw new DKIMSignerException("The signing daemon "+host+":"+port+" failed: "+request.error);
+		}
+		return request.signature;
+	}
+
+	public synchronized void close() {
+		if (connection != null) {
+			connection.close("The connection was closed");
+			connection = null;
+		}
+	}
+
+	private synchronized void submit(Request request) throws DKIMSignerException {
+
+		Connection requestConnection = getConnection();
+		request.connection = requestConnection;
+		requestConnection.submit(request);
+	}
+
+	private synchronized void abandon(Request request) {
+		request.connection.pending.remove(request.id);
+	}
+
+	/*
+	 * Returns false if the request was answered meanwhile. Otherwise the daemon is stuck or the connection
+	 * is half open: the connection is replaced and its other pending requests are sent once more.
+	 */
+	private synchronized boolean timedOut(Request request) {
+
+		Connection timedOut = request.connection;
+		if (timedOut.pending.remove(request.id) == null) {
+			return false;
+		}
+
+		List<Request> others = new ArrayList<Request>();
+		Iterator<Request> iter = timedOut.pending.values().iterator();
+		while (iter.hasNext()) {
+			Request other = iter.next();
+			iter.remove();
+			others.add(other);
+		}
+		timedOut.close("The signing daemon didn't answer within "+requestTimeout+"ms");
+		if (connection == timedOut) {
+			connection = null;
+		}
+
+		for (Request other : others) {
+			if (other.resent) {
+				other.fail("The signing daemon didn't answer the resent request");
+				continue;
+			}
+			other.resent = true;
+			try {
+				submit(other);
+			} catch (DKIMSignerException dse) {
+				other.fail(dse.getMessage());
+			}
+		}
+		return true;
+	}
+
+	private synchronized Connection getConnection() throws DKIMSignerException {
+
+		if (connection == null || connection.closed) {
+			try {
+				Socket socket = new Socket();
+				socket.setTcpNoDelay(true);
+				socket.connect(new InetSocketAddress(host, port), connectTimeout);
+				boolean authenticated = false;
+				try {
+					authenticate(socket);
+					authenticated = true;
+				} finally {
+					if (!authenticated) {
+						socket.close();
+					}
+				}
+				connection = new Connection(socket);
+			} catch (IOException ioe) {
+				throw new DKIMSignerException("Could not connect to the signing daemon "+host+":"+port, ioe);
+			}
+		}
+		return connection;
+	}
+
+	// answers the challenge of the daemon, see SigningDaemon
+	private void authenticate(Socket socket) throws IOException, DKIMSignerException {
+
+		socket.setSoTimeout(connectTimeout);
+		DataInputStream in = new DataInputStream(socket.getInputStream());
+		DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+
+		byte[] nonce = new byte[16];
+		in.readFully(nonce);
+		byte[] mac = SigningDaemon.authenticator(secret, nonce);
+		out.writeUTF(clientName);
+		out.writeInt(mac.length);
+		out.write(mac);
+		out.flush();
+
+		if (!in.readBoolean()) {
+			throw new DKIMSignerException("The signing daemon "+host+":"+port+" rejected the client "+clientName+": "+in.readUTF());
+		}
+		socket.setSoTimeout(0);
+	}
+
+	private static class Request {
+
+		private int id;
+		private String signingDomain;
+		private String selector;
+		private String algorithm;
+		private byte[] hash;
+
+		private volatile Connection connection;
+		private boolean resent = false;
+
+		private CountDownLatch done = new CountDownLatch(1);
+		private byte[] signature;
+		private String error;
+
+		private Request(int id, String signingDomain, String selector, String algorithm, byte[] hash) {
+			this.id = id;
+			this.signingDomain = signingDomain;
+			this.selector = selector;
+			this.algorithm = algorithm;
+			this.hash = hash;
+		}
+
+		private void fail(String error) {
+			this.error = error;
+			done.countDown();
+		}
+	}
+
+	private static class Connection {
+
+		private Socket socket;
+		private DataOutputStream out;
+		private DataInputStream in;
+		private Thread writer;
+
+		private LinkedBlockingQueue<Request> outgoing = new LinkedBlockingQueue<Request>();
+		private ConcurrentHashMap<Integer, Request> pending = new ConcurrentHashMap<Integer, Request>();
+		private volatile boolean closed = false;
+
+		private Connection(Socket socket) throws IOException {
+
+			this.socket = socket;
+			this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 16384));
+			this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 16384));
+
+			writer = new Thread(new Runnable() {
+				public void run() {
+					writeRequests();
+				}
+			}, "DKIM signing request writer");
+			writer.setDaemon(true);
+			writer.start();
+
+			Thread reader = new Thread(new Runnable() {
+				public void run() {
+					readResponses();
+				}
+			}, "DKIM signing response reader");
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		private void submit(Request request) throws DKIMSignerException {
+
+			pending.put(request.id, request);
+			outgoing.add(request);
+
+			// the connection may have been closed meanwhile, the request wouldn't be answered then
+			if (closed && pending.remove(request.id) != null) {
+				throw new DKIMSignerException("The connection to the signing daemon was closed");
+			}
+		}
+
+		private void writeRequests() {
+
+			List<Request> batch = new ArrayList<Request>();
+			try {
+				while (!closed) {
+					batch.add(outgoing.take());
+					outgoing.drainTo(batch);
+
+					for (Request request : batch) {
+						SigningDaemon.writeRequest(out, request.id, request.signingDomain, request.selector, request.algorithm, request.hash);
+					}
+					out.flush();
+					batch.clear();
+				}
+			} catch (InterruptedException ie) {
+				close("The request writer was interrupted");
+			} catch (IOException ioe) {
+				close("Writing to the signing daemon failed: "+ioe.getLocalizedMessage());
+			}
+		}
+
+		private void readResponses() {
+
+			try {
+				while (!closed) {
+					int id = in.readInt();
+					boolean success = in.readBoolean();
+					byte[] signature = null;
+					String error = null;
+					if (success) {
+						signature = new byte[in.readInt()];
+						in.readFully(signature);
+					} else {
+						error = in.readUTF();
+					}
+
+					Request request = pending.remove(id);
+					if (request != null) {
+						request.signature = signature;
+						request.error = error;
+						request.done.countDown();
+					}
+				}
+			} catch (IOException ioe) {
+				close("Reading from the signing daemon failed: "+ioe.getLocalizedMessage());
+			}
+		}
+
+		private void close(String reason) {
+
+			closed = true;
+			try {
+				socket.close();
+			} catch (IOException ioe) {}
+			if (writer != Thread.currentThread()) {
+				writer.interrupt();
+			}
+
+			Iterator<Request> iter = pending.values().iterator();
+			while (iter.hasNext()) {
+				Request request = iter.next();
+				iter.remove();
+				request.fail(reason);
+			}
+		}
+	}
+}
@@ -23,14 +23,25 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
+import javax.mail.BodyPart;
 import javax.mail.MessagingException;
 import javax.mail.Session;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
 import javax.mail.internet.MimeUtility;
 
 import com.sun.mail.smtp.SMTPMessage;
+import com.sun.mail.util.ASCIIUtility;
 import com.sun.mail.util.LineOutputStream;
 
 /*
@@ -42,7 +53,13 @@ import com.sun.mail.util.LineOutputStream;
 public class SMTPDKIMMessage extends SMTPMessage {
 
 	private DKIMSigner signer;
-	private String encodedBody;
+	private byte[] encodedBody;
+	private long encodedBodyLength;
+	private CapturedBody capturedBody;
+	private List<int[]> trustedBodySpans = new ArrayList<int[]>();
+	private String arcAuthenticationResults = null;
+	private String arcChainValidation = null;
+	private String[] arcSet = null;
 
 	public SMTPDKIMMessage(Session session, DKIMSigner signer) {
 		super(session);
@@ -59,6 +76,10 @@ public class SMTPDKIMMessage extends SMTPMessage {
 		this.signer = signer;
 	}
 
+	public DKIMSigner getSigner() {
+		return signer;
+	}
+
 	/**
 	 * Output the message as an RFC 822 format stream, without
 	 * specified headers.  If the <code>saved</code> flag is not set,
@@ -79,20 +100,47 @@ public class SMTPDKIMMessage extends SMTPMessage {
 	 */
 	public void writeTo(OutputStream os, String[] ignoreList) throws IOException, MessagingException {
 
-		ByteArrayOutputStream osBody = new ByteArrayOutputStream();
-
 		// Inside saveChanges() it is assured that content encodings are set in all parts of the body
 		if (!saved) {
 			saveChanges();
 		}
 
+		// the body is captured in a reused buffer of the current thread within the global budget,
+		// it is only valid until the end of writeTo(); a thread per task, e.g. a virtual thread
+		// per message, creates a new buffer for every message, see SigningBuffers
+		SigningBuffers buffers = SigningBuffers.get();
+		SigningBuffers.BodyBuffer bodyBuffer = buffers.takeBodyBuffer();
+		CapturedBody osBody = new CapturedBody(bodyBuffer, BodyBufferBudget.getGlobal());
+		try {
+			writeSigned(os, ignoreList, osBody);
+		} finally {
+			encodedBody = null;
+			encodedBodyLength = 0;
+			capturedBody = null;
+			trustedBodySpans.clear();
+			arcSet = null;
+			osBody.release();
+			buffers.returnBodyBuffer(bodyBuffer);
+		}
+	}
+
+	private void writeSigned(OutputStream os, String[] ignoreList, CapturedBody osBody) throws IOException, MessagingException {
+
 		// First, write out the body to the body buffer
 		if (modified) {
 			// Finally, the content. Encode if required.
 			// XXX: May need to account for ESMTP ?
 			OutputStream osEncoding = MimeUtility.encode(osBody, this.getEncoding());
-			this.getDataHandler().writeTo(osEncoding);
-			osEncoding.flush(); // Needed to complete encoding
+			MimeMultipart multipart = osEncoding == osBody ? getMultipartContent() : null;
+			if (multipart != null) {
+				writeMultipart(multipart, osBody, signer.getPartEncodingExecutor());
+			} else {
+				this.getDataHandler().writeTo(osEncoding);
+				osEncoding.flush(); // Needed to complete encoding
+				if ("base64".equalsIgnoreCase(this.getEncoding()) && !osBody.isSpilled()) {
+					trustedBodySpans.add(new int[] {0, (int) osBody.size()});
+				}
+			}
 		} else {
 			// Else, the content is untouched, so we can just output it
 			// Finally, the content. 
@@ -112,7 +160,10 @@ public class SMTPDKIMMessage extends SMTPMessage {
 			}
 			osBody.flush();
 		}
-		encodedBody = osBody.toString();
+		osBody.flush();
+		capturedBody = osBody;
+		encodedBody = osBody.getBuffer();
+		encodedBodyLength = osBody.size();
 
 		// Second, sign the message
 		String signatureHeaderLine;
@@ -127,6 +178,11 @@ public class SMTPDKIMMessage extends SMTPMessage {
 		
 		// set generated signature to the top 
 		los.writeln(signatureHeaderLine);
+		if (arcSet != null) {
+			for (String arcHeaderLine : arcSet) {
+				los.writeln(arcHeaderLine);
+			}
+		}
 
 		Enumeration hdrLines = getNonMatchingHeaderLines(ignoreList);
 		while (hdrLines.hasMoreElements()) {
@@ -137,16 +193,232 @@ public class SMTPDKIMMessage extends SMTPMessage {
 		los.writeln();
 
 		// Send signed mail to waiting DATA command
-		os.write(osBody.toByteArray());
+		osBody.writeTo(os);
 		os.flush();
 	}
 
+	/*
+	 * Returns the content if it was set as a MimeMultipart object. A DataSource of a multipart type
+	 * is written as it is and must not be serialized from its parsed parts, its DataHandler returns
+	 * a new (lazily parsed) MimeMultipart on every call.
+	 */
+	private MimeMultipart getMultipartContent() throws IOException, MessagingException {
+
+		if (!this.isMimeType("multipart/*")) {
+			return null;
+		}
+		Object multipart = this.getDataHandler().getContent();
+		if (multipart instanceof MimeMultipart && multipart == this.getDataHandler().getContent() && !overridesWriteTo(multipart, MimeMultipart.class)) {
+			return (MimeMultipart) multipart;
+		}
+		return null;
+	}
+
+	/*
+	 * Writes the multipart like MimeMultipart.writeTo() does and records the base64 encoded content
+	 * of the body parts as trusted spans. With an executor the body parts are encoded in parallel
+	 * into separate buffers that are joined in order afterwards.
+	 */
+	private void writeMultipart(MimeMultipart multipart, CapturedBody os, ExecutorService executor) throws IOException, MessagingException {
+
+		int count = multipart.getCount();
+		List<Future<EncodedPart>> encodedParts = new ArrayList<Future<EncodedPart>>(count);
+		if (executor != null) {
+			for (int i = 1; i < count; i++) {
+				final BodyPart part = multipart.getBodyPart(i);
+				encodedParts.add(executor.submit(new Callable<EncodedPart>() {
+					public EncodedPart call() throws IOException, MessagingException {
+						ByteArrayOutputStream osPart = new ByteArrayOutputStream();
+						int contentOffset = writePart(part, osPart);
+						return new EncodedPart(osPart.toByteArray(), contentOffset);
+					}
+				}));
+			}
+		}
+
+		String boundary = "--" + new ContentType(multipart.getContentType()).getParameter("boundary");
+		LineOutputStream los = new LineOutputStream(os);
+
+		try {
+			String preamble = multipart.getPreamble();
+			if (preamble != null) {
+				byte[] pb = ASCIIUtility.getBytes(preamble);
+				los.write(pb);
+				// make sure it ends with a newline
+				if (pb.length > 0 && !(pb[pb.length-1] == '\r' || pb[pb.length-1] == '\n')) {
+					los.writeln();
+				}
+			}
+
+			for (int i = 0; i < count; i++) {
+				los.writeln(boundary);
+				long offset = os.size();
+				int contentOffset;
+				if (i == 0 || executor == null) {
+					// the first part is encoded by the current thread meanwhile
+					contentOffset = writePart(multipart.getBodyPart(i), os);
+				} else {
+					EncodedPart encodedPart = encodedParts.get(i-1).get();
+					os.write(encodedPart.bytes);
+					contentOffset = encodedPart.contentOffset;
+				}
+				if (contentOffset >= 0 && !os.isSpilled()) {
+					trustedBodySpans.add(new int[] {(int) offset + contentOffset, (int) os.size()});
+				}
+				los.writeln();
+			}
+
+			los.writeln(boundary + "--");
+
+		} catch (InterruptedException ie) {
+			throw new MessagingException("Interrupted while encoding the body parts", ie);
+		} catch (ExecutionException ee) {
+			if (ee.getCause() instanceof IOException) {
+				throw (IOException) ee.getCause();
+			}
+			if (ee.getCause() instanceof MessagingException) {
+				throw (MessagingException) ee.getCause();
+			}
+			if (ee.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) ee.getCause();
+			}
+			throw (Error) ee.getCause();
+		} finally {
+			for (Future<EncodedPart> encodedPart : encodedParts) {
+				encodedPart.cancel(true);
+			}
+		}
+	}
+
+	/*
+	 * Writes the body part like MimeBodyPart.writeTo() does. For base64 encoded parts the offset of the
+	 * encoded content, which reaches to the end of the part, is returned, otherwise -1.
+	 */
+	private static int writePart(BodyPart part, OutputStream os) throws IOException, MessagingException {
+
+		if (!(part instanceof MimeBodyPart) || overridesWriteTo(part, MimeBodyPart.class) || !"base64".equalsIgnoreCase(((MimeBodyPart) part).getEncoding())) {
+			part.writeTo(os);
+			return -1;
+		}
+
+		// LineOutputStream writes one byte per character
+		MimeBodyPart mimePart = (MimeBodyPart) part;
+		LineOutputStream los = new LineOutputStream(os);
+		int contentOffset = 2;
+		Enumeration<?> hdrLines = mimePart.getNonMatchingHeaderLines(null);
+		while (hdrLines.hasMoreElements()) {
+			String hdrLine = (String) hdrLines.nextElement();
+			los.writeln(hdrLine);
+			contentOffset += hdrLine.length() + 2;
+		}
+		los.writeln();
+
+		OutputStream osEncoding = MimeUtility.encode(os, "base64");
+		mimePart.getDataHandler().writeTo(osEncoding);
+		osEncoding.flush(); // Needed to complete encoding
+		return contentOffset;
+	}
+
+	// subclasses with their own writeTo(), e.g. PreencodedMimeBodyPart, are written by themselves
+	private static boolean overridesWriteTo(Object o, Class<?> base) {
+		try {
+			return o.getClass().getMethod("writeTo", OutputStream.class).getDeclaringClass() != base;
+		} catch (NoSuchMethodException nsme) {
+			return true;
+		}
+	}
+
+	private static class EncodedPart {
+
+		private byte[] bytes;
+		private int contentOffset;
+
+		public EncodedPart(byte[] bytes, int contentOffset) {
+			this.bytes = bytes;
+			this.contentOffset = contentOffset;
+		}
+	}
+
+	// the encoded body is available while the message is signed inside writeTo() or after setEncodedBody(),
+	// null once writeTo() has returned its pooled body buffer
 	public String getEncodedBody() {
-		return encodedBody;
+
+		if (!hasEncodedBody()) {
+			return null;
+		}
+		if (encodedBody == null) {
+			// spilled to disk
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			try {
+				writeEncodedBody(bos);
+			} catch (IOException ioe) {
+				throw new IllegalStateException("The spilled body can't be read", ioe);
+			}
+			return bos.toString();
+		}
+		return new String(encodedBody, 0, (int) encodedBodyLength);
 	}
 
 	public void setEncodedBody(String encodedBody) {
-		this.encodedBody = encodedBody;
+		this.encodedBody = encodedBody == null ? null : encodedBody.getBytes();
+		this.encodedBodyLength = this.encodedBody == null ? 0 : this.encodedBody.length;
+		this.capturedBody = null;
+		this.trustedBodySpans.clear();
+	}
+
+	// the body as written to the transport up to getEncodedBodyLength(), the signer hashes exactly these bytes;
+	// null if the body was spilled to disk, see writeEncodedBody()
+	protected byte[] getEncodedBodyBytes() {
+		return encodedBody;
+	}
+
+	protected long getEncodedBodyLength() {
+		return encodedBodyLength;
+	}
+
+	protected boolean hasEncodedBody() {
+		return encodedBody != null || capturedBody != null;
+	}
+
+	// copies the encoded body to os, also a body that was spilled to disk
+	protected void writeEncodedBody(OutputStream os) throws IOException {
+		if (capturedBody != null) {
+			capturedBody.writeTo(os);
+		} else if (encodedBody != null) {
+			os.write(encodedBody, 0, (int) encodedBodyLength);
+		}
+	}
+
+	/*
+	 * The {start, end} positions of base64 encoded content in the encoded body in ascending order.
+	 * These spans consist of non-empty CRLF terminated lines without whitespace, see BodyCanonicalizer.writeTrusted().
+	 */
+	protected List<int[]> getTrustedBodySpans() {
+		return trustedBodySpans;
+	}
+
+	public String getARCAuthenticationResults() {
+		return arcAuthenticationResults;
+	}
+
+	public String getARCChainValidation() {
+		return arcChainValidation;
+	}
+
+	/*
+	 * Seals the message with the next ARC set (RFC 8617) besides the DKIM signature, e.g. when forwarding it.
+	 * authenticationResults is the content of the ARC-Authentication-Results header after i= (authserv-id
+	 * and results), chainValidation the result of validating the ARC sets of the received message:
+	 * ARCChain.NONE if it has none, otherwise ARCChain.PASS or ARCChain.FAIL. null doesn't seal the message.
+	 */
+	public void setARCResults(String authenticationResults, String chainValidation) {
+		this.arcAuthenticationResults = authenticationResults;
+		this.arcChainValidation = chainValidation;
+	}
+
+	// the ARC-Seal, ARC-Message-Signature and ARC-Authentication-Results header lines created by the signer
+	protected void setARCSet(String[] arcSet) {
+		this.arcSet = arcSet;
 	}
 
 	// Don't allow to switch to 8-bit MIME, instead 7-bit ascii should be kept
@@ -0,0 +1,230 @@
+/* 
+ * Copyright 2008 The Apache Software Foundation or its licensors, as
+ * applicable.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A licence was granted to the ASF by Florian Sager on 30 November 2008
+ */
+
+
+package de.agitos.dkim;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * Verifies a sample of the signatures produced by a DKIMSigner with the public key in a background thread,
+ * e.g. to detect a key pair mismatch or a broken signing backend before receivers reject the messages.
+ * The canonicalized headers as hashed by the signer are verified against the signature and the body
+ * hash is computed again from a copy of the body, so a wrong bh= (e.g. from a BodyHashStore) is
+ * detected as well; every n-th signature is sampled, bodies larger than getMaxBodyLength() are not
+ * copied. If the verifications can't keep up, further samples are dropped instead of delaying the
+ * signing threads.
+ */
+
+public class SelfVerifier {
+
+	private static Logger log = Logger.getLogger(SelfVerifier.class.getName());
+
+	private static int MAXQUEUEDVERIFICATIONS = 1000;
+
+	private PublicKey publicKey;
+	private long sampleInterval;
+	private SelfVerificationListener listener = null;
+	private long maxBodyLength = 1024 * 1024;
+
+	private AtomicLong signatures = new AtomicLong();
+	private AtomicLong verified = new AtomicLong();
+	private AtomicLong failed = new AtomicLong();
+	private AtomicLong dropped = new AtomicLong();
+
+	private ThreadPoolExecutor verificationThread;
+
+	// used by the verification thread only
+	private HashMap<String, Signature> verificationServices = new HashMap<String, Signature>();
+	private HashMap<String, MessageDigest> messageDigests = new HashMap<String, MessageDigest>();
+
+	/*
+	 * sampleRate is the fraction of the signatures to verify, e.g. 0.01 for every 100th
+	 */
+	public SelfVerifier(PublicKey publicKey, double sampleRate) {
+
+		if (sampleRate <= 0 || sampleRate > 1) {
+			throw new IllegalArgumentException("The sample rate has to be within (0, 1]");
+		}
+		this.publicKey = publicKey;
+		this.sampleInterval = Math.max(1, Math.round(1 / sampleRate));
+
+		verificationThread = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(MAXQUEUEDVERIFICATIONS),
+			new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "DKIM self-verification");
+					thread.setDaemon(true);
+					return thread;
+				}
+			},
+			new RejectedExecutionHandler() {
+				public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+					dropped.incrementAndGet();
+				}
+			});
+	}
+
+	public PublicKey getPublicKey() {
+		return publicKey;
+	}
+
+	public SelfVerificationListener getListener() {
+		return listener;
+	}
+
+	public void setListener(SelfVerificationListener listener) {
+		this.listener = listener;
+	}
+
+	public long getMaxBodyLength() {
+		return maxBodyLength;
+	}
+
+	// the body hash of sampled messages with larger bodies isn't verified, the body would be copied for the verification thread
+	public void setMaxBodyLength(long maxBodyLength) {
+		this.maxBodyLength = maxBodyLength;
+	}
+
+	// number of signatures seen
+	public long getSignatureCount() {
+		return signatures.get();
+	}
+
+	public long getVerifiedCount() {
+		return verified.get();
+	}
+
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	// samples that were skipped because the verification thread was busy
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	// called by the signer for every signature, true if this one is to be verified
+	protected boolean sample() {
+		return signatures.getAndIncrement() % sampleInterval == 0;
+	}
+
+	/*
+	 * Queues the verification of a signature. signedContent are the canonicalized headers
+	 * including the DKIM-Signature header with an empty b= tag. The body hash is verified if
+	 * the encoded body is passed, limit is the signed body length or -1.
+	 */
+	protected void verify(final SigningAlgorithm signingAlgorithm, final byte[] signedContent, final byte[] signature, final String dkimSignatureHeader,
+			final byte[] body, final Canonicalization bodyCanonicalization, final long limit, final byte[] bodyHash) {
+
+		verificationThread.execute(new Runnable() {
+			public void run() {
+				String reason = check(signingAlgorithm, signedContent, signature);
+				if (reason == null && body != null) {
+					reason = checkBodyHash(signingAlgorithm, body, bodyCanonicalization, limit, bodyHash);
+				}
+				if (reason == null) {
+					verified.incrementAndGet();
+					return;
+				}
+				failed.incrementAndGet();
+				log.warning("Self-verification of a DKIM signature failed: "+reason);
+				SelfVerificationListener listener = SelfVerifier.this.listener;
+				if (listener != null) {
+					try {
+						listener.verificationFailed(dkimSignatureHeader, reason);
+					} catch (RuntimeException re) {
+						log.log(Level.WARNING, "The self-verification listener failed", re);
+					}
+				}
+			}
+		});
+	}
+
+	// returns the reason of a failure or null
+	private String check(SigningAlgorithm signingAlgorithm, byte[] signedContent, byte[] signature) {
+
+		try {
+			Signature verificationService = verificationServices.get(signingAlgorithm.getJavaSecNotation());
+			if (verificationService == null) {
+				verificationService = Signature.getInstance(signingAlgorithm.getJavaSecNotation());
+				verificationService.initVerify(publicKey);
+				verificationServices.put(signingAlgorithm.getJavaSecNotation(), verificationService);
+			}
+			verificationService.update(signedContent);
+			if (!verificationService.verify(signature)) {
+				return "The signature doesn't match the public key";
+			}
+			return null;
+		} catch (NoSuchAlgorithmException nsae) {
+			return "The signing algorithm "+signingAlgorithm.getJavaSecNotation()+" is not known by the JVM";
+		} catch (InvalidKeyException ike) {
+			return "The public key is invalid: "+ike.getLocalizedMessage();
+		} catch (SignatureException se) {
+			verificationServices.remove(signingAlgorithm.getJavaSecNotation());
+			return "The signature couldn't be verified: "+se.getLocalizedMessage();
+		}
+	}
+
+	// returns the reason of a failure or null
+	private String checkBodyHash(SigningAlgorithm signingAlgorithm, byte[] body, Canonicalization bodyCanonicalization, long limit, byte[] bodyHash) {
+
+		try {
+			MessageDigest messageDigest = messageDigests.get(signingAlgorithm.getJavaHashNotation());
+			if (messageDigest == null) {
+				messageDigest = MessageDigest.getInstance(signingAlgorithm.getJavaHashNotation());
+				messageDigests.put(signingAlgorithm.getJavaHashNotation(), messageDigest);
+			}
+			BodyHasher bodyHasher = new BodyHasher(messageDigest);
+			bodyHasher.setLimit(limit);
+			OutputStream canonicalizer = bodyCanonicalization.getBodyCanonicalizer(bodyHasher);
+			canonicalizer.write(body, 0, body.length);
+			canonicalizer.close();
+			if (!MessageDigest.isEqual(bodyHasher.digest(), bodyHash)) {
+				return "The body hash bh= doesn't match the body";
+			}
+			return null;
+		} catch (NoSuchAlgorithmException nsae) {
+			return "The hashing algorithm "+signingAlgorithm.getJavaHashNotation()+" is not known by the JVM";
+		} catch (IOException ioe) {
+			messageDigests.remove(signingAlgorithm.getJavaHashNotation());
+			return "The body hash couldn't be computed: "+ioe.getLocalizedMessage();
+		}
+	}
+
+	// stops the verification thread, queued verifications are discarded
+	public void shutdown() {
+		verificationThread.shutdownNow();
+	}
+}
@@ -27,18 +27,45 @@ package de.agitos.dkim;
 
 public class SigningAlgorithm {
 	
-	public static SigningAlgorithm SHA256withRSA = new SigningAlgorithm("rsa-sha256", "SHA256withRSA", "sha-256");
-	public static SigningAlgorithm SHA1withRSA = new SigningAlgorithm("rsa-sha1", "SHA1withRSA", "sha-1");
+	// DER encoded DigestInfo headers of PKCS #1 v1.5 signatures, see RFC 3447 section 9.2
+	private static byte[] SHA256DIGESTINFO = new byte[] {
+			0x30, 0x31, 0x30, 0x0d, 0x06, 0x09, 0x60, (byte) 0x86, 0x48, 0x01, 0x65, 0x03, 0x04, 0x02, 0x01, 0x05, 0x00, 0x04, 0x20};
+	private static byte[] SHA1DIGESTINFO = new byte[] {
+			0x30, 0x21, 0x30, 0x09, 0x06, 0x05, 0x2b, 0x0e, 0x03, 0x02, 0x1a, 0x05, 0x00, 0x04, 0x14};
+
+	public static SigningAlgorithm SHA256withRSA = new SigningAlgorithm("rsa-sha256", "SHA256withRSA", "sha-256", "NONEwithRSA", SHA256DIGESTINFO);
+	public static SigningAlgorithm SHA1withRSA = new SigningAlgorithm("rsa-sha1", "SHA1withRSA", "sha-1", "NONEwithRSA", SHA1DIGESTINFO);
+
+	// returns one of the predefined algorithms or null if the notation is unknown
+	public static SigningAlgorithm forRfc4871Notation(String rfc4871Notation) {
+
+		if (SHA256withRSA.getRfc4871Notation().equals(rfc4871Notation)) {
+			return SHA256withRSA;
+		}
+		if (SHA1withRSA.getRfc4871Notation().equals(rfc4871Notation)) {
+			return SHA1withRSA;
+		}
+		return null;
+	}
 
 	private String rfc4871Notation;
 	private String javaSecNotation;
 	private String javaHashNotation;
+	private String javaRawSecNotation;
+	private byte[] digestInfoPrefix;
 
 	// 1. argument: RFC 4871 format, 2. argument: java representation, 3. argument: java hashing digest
 	public SigningAlgorithm(String rfc4871Notation, String javaSecNotation, String javaHashNotation) {
+		this(rfc4871Notation, javaSecNotation, javaHashNotation, null, null);
+	}
+
+	// 4. argument: java representation signing a precomputed DigestInfo, 5. argument: DigestInfo prefix of the hash
+	public SigningAlgorithm(String rfc4871Notation, String javaSecNotation, String javaHashNotation, String javaRawSecNotation, byte[] digestInfoPrefix) {
 		this.rfc4871Notation = rfc4871Notation;
 		this.javaSecNotation = javaSecNotation;
 		this.javaHashNotation = javaHashNotation;
+		this.javaRawSecNotation = javaRawSecNotation;
+		this.digestInfoPrefix = digestInfoPrefix;
 	}
 
 	public String getJavaHashNotation() {
@@ -52,4 +79,13 @@ public class SigningAlgorithm {
 	public String getRfc4871Notation() {
 		return rfc4871Notation;
 	}
+
+	// null if the algorithm can't sign a hash that was computed separately
+	public String getJavaRawSecNotation() {
+		return javaRawSecNotation;
+	}
+
+	public byte[] getDigestInfoPrefix() {
+		return digestInfoPrefix;
+	}
 }
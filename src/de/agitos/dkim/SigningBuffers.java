@@ -0,0 +1,157 @@
+/* 
+ * Copyright 2008 The Apache Software Foundation or its licensors, as
+ * applicable.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A licence was granted to the ASF by Florian Sager on 30 November 2008
+ */
+
+
+package de.agitos.dkim;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/*
+ * Per-thread pool of the buffers used for body capture, header canonicalization and the serialization
+ * of the signature. Taking and returning a buffer doesn't allocate as long as the thread's pool isn't
+ * exhausted, nested use (e.g. signing inside writeTo()) simply takes further buffers.
+ *
+ * Buffers that grew beyond the retained sizes for a giant message are dropped on return instead of
+ * being kept for the lifetime of the thread.
+ *
+ * The pools only pay off for long-lived threads: with a new thread per message, e.g. the executor of
+ * Executors.newVirtualThreadPerTaskExecutor(), every message starts with an empty pool and allocates
+ * its buffers like without pooling. Sign on a fixed pool of platform threads to reuse the buffers.
+ */
+
+public class SigningBuffers {
+
+	private static int MAXPOOLEDBUFFERS = 8;
+
+	private static volatile int maxRetainedBodySize = 256 * 1024;
+	private static volatile int maxRetainedBuilderSize = 16 * 1024;
+
+	private static ThreadLocal<SigningBuffers> threadBuffers = new ThreadLocal<SigningBuffers>() {
+		protected SigningBuffers initialValue() {
+			return new SigningBuffers();
+		}
+	};
+
+	private ArrayList<BodyBuffer> bodyBuffers = new ArrayList<BodyBuffer>();
+	private ArrayList<StringBuilder> builders = new ArrayList<StringBuilder>();
+	private ArrayList<LinkedHashMap<String, String>> tagMaps = new ArrayList<LinkedHashMap<String, String>>();
+
+	private SigningBuffers() { }
+
+	// the buffers of the current thread
+	public static SigningBuffers get() {
+		return threadBuffers.get();
+	}
+
+	public static int getMaxRetainedBodySize() {
+		return maxRetainedBodySize;
+	}
+
+	// body buffers with a larger capacity are not kept for reuse, 0 disables the reuse
+	public static void setMaxRetainedBodySize(int maxRetainedBodySize) {
+		SigningBuffers.maxRetainedBodySize = maxRetainedBodySize;
+	}
+
+	public static int getMaxRetainedBuilderSize() {
+		return maxRetainedBuilderSize;
+	}
+
+	// string builders with a larger capacity are not kept for reuse, 0 disables the reuse
+	public static void setMaxRetainedBuilderSize(int maxRetainedBuilderSize) {
+		SigningBuffers.maxRetainedBuilderSize = maxRetainedBuilderSize;
+	}
+
+	public BodyBuffer takeBodyBuffer() {
+		int n = bodyBuffers.size();
+		return n > 0 ? bodyBuffers.remove(n - 1) : new BodyBuffer();
+	}
+
+	public void returnBodyBuffer(BodyBuffer buffer) {
+		if (buffer.capacity() <= maxRetainedBodySize && bodyBuffers.size() < MAXPOOLEDBUFFERS) {
+			buffer.reset();
+			bodyBuffers.add(buffer);
+		}
+	}
+
+	public StringBuilder takeBuilder() {
+		int n = builders.size();
+		return n > 0 ? builders.remove(n - 1) : new StringBuilder();
+	}
+
+	public void returnBuilder(StringBuilder builder) {
+		if (builder.capacity() <= maxRetainedBuilderSize && builders.size() < MAXPOOLEDBUFFERS) {
+			builder.setLength(0);
+			builders.add(builder);
+		}
+	}
+
+	public LinkedHashMap<String, String> takeTagMap() {
+		int n = tagMaps.size();
+		return n > 0 ? tagMaps.remove(n - 1) : new LinkedHashMap<String, String>();
+	}
+
+	public void returnTagMap(LinkedHashMap<String, String> tagMap) {
+		if (tagMaps.size() < MAXPOOLEDBUFFERS) {
+			tagMap.clear();
+			tagMaps.add(tagMap);
+		}
+	}
+
+	/*
+	 * A ByteArrayOutputStream whose content can be read without copying it.
+	 */
+	public static class BodyBuffer extends ByteArrayOutputStream {
+
+		public BodyBuffer() {
+			super(8192);
+		}
+
+		// valid up to size()
+		public byte[] getBuffer() {
+			return buf;
+		}
+
+		public int capacity() {
+			return buf.length;
+		}
+
+		// appends the next length bytes of the stream without an intermediate buffer
+		public void readFully(InputStream in, int length) throws IOException {
+
+			if (count + length > buf.length) {
+				byte[] grown = new byte[Math.max(buf.length * 2, count + length)];
+				System.arraycopy(buf, 0, grown, 0, count);
+				buf = grown;
+			}
+			int end = count + length;
+			while (count < end) {
+				int n = in.read(buf, count, end - count);
+				if (n < 0) {
+					throw new EOFException();
+				}
+				count += n;
+			}
+		}
+	}
+}
@@ -0,0 +1,441 @@
+/* 
+ * Copyright 2008 The Apache Software Foundation or its licensors, as
+ * applicable.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A licence was granted to the ASF by Florian Sager on 30 November 2008
+ */
+
+package de.agitos.dkim;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+ * Keeps the private keys of several signing domains and signs hashes for RemoteSigningBackends,
+ * so the keys don't have to be deployed to every sending JVM. Binds to the loopback interface by default.
+ *
+ * Every client is registered by addClient() with a shared secret and the signing domains it may sign for.
+ * A connection starts with a challenge, the secret itself is never sent:
+ *   daemon:   nonce (16 bytes)
+ *   client:   UTF client name, int length, HMAC-SHA256 of the nonce keyed by the secret
+ *   daemon:   boolean accepted, UTF error message if rejected
+ *
+ * Requests and responses are then pipelined over the connection and answered in the order of completion:
+ *   request:  int id, UTF signing domain, UTF selector, UTF algorithm (RFC 4871 notation), int length, hash
+ *   response: int id, boolean success, then int length, signature if successful or UTF error message
+ *
+ * The clients file has one line "<client name> <secret> <signingdomain>[,<signingdomain> ...]" per client,
+ * it should be readable by the daemon's user only.
+ *
+ * Usage: java de.agitos.dkim.SigningDaemon <port> <clients file> <signingdomain> <selector> <privatekey.der> [<signingdomain> <selector> <privatekey.der> ...]
+ */
+
+public class SigningDaemon {
+
+	private static int NONCELENGTH = 16;
+	private static int HANDSHAKETIMEOUT = 10000;
+	private static String HMACALGORITHM = "HmacSHA256";
+
+	private InetAddress bindAddress;
+	private int port;
+	private ServerSocket serverSocket;
+	private ExecutorService signingThreads;
+	private volatile boolean running = false;
+
+	private ConcurrentHashMap<String, SigningBackend> signingBackends = new ConcurrentHashMap<String, SigningBackend>();
+	private ConcurrentHashMap<String, Client> clients = new ConcurrentHashMap<String, Client>();
+	private SecureRandom random = new SecureRandom();
+
+	public SigningDaemon(int port) throws IOException {
+		this(InetAddress.getByName(null), port);
+	}
+
+	// port 0 binds to a free port, see getPort()
+	public SigningDaemon(InetAddress bindAddress, int port) {
+		this.bindAddress = bindAddress;
+		this.port = port;
+	}
+
+	public void addKey(String signingDomain, String selector, PrivateKey privkey) {
+		addSigningBackend(signingDomain, selector, new LocalSigningBackend(privkey));
+	}
+
+	// signs the hashes of the key by another backend, e.g. one that keeps the key in a hardware module
+	public void addSigningBackend(String signingDomain, String selector, SigningBackend signingBackend) {
+		signingBackends.put(keyName(signingDomain, selector), signingBackend);
+	}
+
+	public void removeKey(String signingDomain, String selector) {
+		signingBackends.remove(keyName(signingDomain, selector));
+	}
+
+	/*
+	 * Allows the client to sign for the signing domains after it proved to know the secret.
+	 */
+	public void addClient(String clientName, String secret, String[] signingDomains) {
+
+		if (secret.length() < 16) {
+			throw new IllegalArgumentException("The secret of the client "+clientName+" must have 16 characters at least");
+		}
+		Set<String> domains = new HashSet<String>();
+		for (String signingDomain : signingDomains) {
+			domains.add(signingDomain.trim().toLowerCase());
+		}
+		clients.put(clientName, new Client(clientName, utf8(secret), domains));
+	}
+
+	public void removeClient(String clientName) {
+		clients.remove(clientName);
+	}
+
+	// lines "<client name> <secret> <signingdomain>[,<signingdomain> ...]", empty lines and lines starting with # are ignored
+	public void loadClients(File clientsFile) throws IOException {
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(clientsFile), "UTF-8"));
+		try {
+			int lineNumber = 0;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+				String[] fields = line.split("\\s+");
+				if (fields.length != 3) {
+					throw new IOException("Line "+lineNumber+" of "+clientsFile+" is no client definition");
+				}
+				addClient(fields[0], fields[1], fields[2].split(","));
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static String keyName(String signingDomain, String selector) {
+		return (selector.trim()+"._domainkey."+signingDomain.trim()).toLowerCase();
+	}
+
+	public int getPort() {
+		return serverSocket != null ? serverSocket.getLocalPort() : port;
+	}
+
+	public synchronized void start() throws IOException {
+
+		if (running) {
+			return;
+		}
+
+		serverSocket = new ServerSocket();
+		serverSocket.bind(new InetSocketAddress(bindAddress, port));
+		signingThreads = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "DKIM signing daemon worker");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		running = true;
+
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				acceptConnections();
+			}
+		}, "DKIM signing daemon");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	public synchronized void stop() {
+
+		running = false;
+		try {
+			serverSocket.close();
+		} catch (IOException ioe) {}
+		signingThreads.shutdownNow();
+	}
+
+	private void acceptConnections() {
+
+		while (running) {
+			try {
+				final Socket socket = serverSocket.accept();
+				socket.setTcpNoDelay(true);
+				Thread handler = new Thread(new Runnable() {
+					public void run() {
+						handleConnection(socket);
+					}
+				}, "DKIM signing daemon connection "+socket.getRemoteSocketAddress());
+				handler.setDaemon(true);
+				handler.start();
+			} catch (IOException ioe) {
+				// the server socket was closed by stop()
+			}
+		}
+	}
+
+	private void handleConnection(final Socket socket) {
+
+		final LinkedBlockingQueue<Response> responses = new LinkedBlockingQueue<Response>();
+
+		Thread writer = new Thread(new Runnable() {
+			public void run() {
+				writeResponses(socket, responses);
+			}
+		}, "DKIM signing daemon writer "+socket.getRemoteSocketAddress());
+		writer.setDaemon(true);
+
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 16384));
+			final Client client = authenticate(socket, in);
+			writer.start();
+
+			while (running) {
+				final int id = in.readInt();
+				final String signingDomain = in.readUTF();
+				final String selector = in.readUTF();
+				final String algorithm = in.readUTF();
+
+				// the hash must have the length of the algorithm's digest, anything else is a protocol violation
+				SigningAlgorithm signingAlgorithm = SigningAlgorithm.forRfc4871Notation(algorithm);
+				if (signingAlgorithm == null) {
+					throw new IOException("Unknown signing algorithm "+algorithm);
+				}
+				int hashLength = in.readInt();
+				if (hashLength != digestLength(signingAlgorithm)) {
+					throw new IOException("Invalid hash length "+hashLength+" for "+algorithm);
+				}
+				final byte[] hash = new byte[hashLength];
+				in.readFully(hash);
+
+				signingThreads.execute(new Runnable() {
+					public void run() {
+						responses.add(signHash(client, id, signingDomain, selector, algorithm, hash));
+					}
+				});
+			}
+		} catch (Exception e) {
+			// connection closed by the client or the daemon was stopped
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException ioe) {}
+			writer.interrupt();
+		}
+	}
+
+	/*
+	 * Sends the challenge and checks the response of the client, throws an IOException if it is rejected.
+	 */
+	private Client authenticate(Socket socket, DataInputStream in) throws IOException {
+
+		socket.setSoTimeout(HANDSHAKETIMEOUT);
+		DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+
+		byte[] nonce = new byte[NONCELENGTH];
+		random.nextBytes(nonce);
+		out.write(nonce);
+		out.flush();
+
+		String clientName = in.readUTF();
+		int macLength = in.readInt();
+		if (macLength < 0 || macLength > 64) {
+			throw new IOException("Invalid authentication from "+socket.getRemoteSocketAddress());
+		}
+		byte[] mac = new byte[macLength];
+		in.readFully(mac);
+
+		Client client = clients.get(clientName);
+		if (client == null || !MessageDigest.isEqual(mac, authenticator(client.secret, nonce))) {
+			out.writeBoolean(false);
+			out.writeUTF("Authentication failed");
+			out.flush();
+			throw new IOException("Authentication of "+clientName+" from "+socket.getRemoteSocketAddress()+" failed");
+		}
+		out.writeBoolean(true);
+		out.flush();
+
+		socket.setSoTimeout(0);
+		return client;
+	}
+
+	// HMAC-SHA256 of the nonce keyed by the secret, computed by RemoteSigningBackend as well
+	protected static byte[] authenticator(byte[] secret, byte[] nonce) throws IOException {
+
+		try {
+			Mac mac = Mac.getInstance(HMACALGORITHM);
+			mac.init(new SecretKeySpec(secret, HMACALGORITHM));
+			return mac.doFinal(nonce);
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new IOException(HMACALGORITHM+" is not known by the JVM");
+		} catch (InvalidKeyException ike) {
+			throw new IOException("The secret can't be used as "+HMACALGORITHM+" key");
+		}
+	}
+
+	protected static byte[] utf8(String s) {
+
+		try {
+			return s.getBytes("UTF-8");
+		} catch (java.io.UnsupportedEncodingException uee) {
+			// every JVM supports UTF-8
+			throw new IllegalStateException(uee);
+		}
+	}
+
+	private static int digestLength(SigningAlgorithm signingAlgorithm) throws IOException {
+
+		try {
+			return MessageDigest.getInstance(signingAlgorithm.getJavaHashNotation()).getDigestLength();
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new IOException("The hashing algorithm "+signingAlgorithm.getJavaHashNotation()+" is not known by the JVM");
+		}
+	}
+
+	private Response signHash(Client client, int id, String signingDomain, String selector, String algorithm, byte[] hash) {
+
+		if (!client.signingDomains.contains(signingDomain.trim().toLowerCase())) {
+			return new Response(id, null, "The client "+client.name+" may not sign for "+signingDomain);
+		}
+
+		SigningBackend signingBackend = signingBackends.get(keyName(signingDomain, selector));
+		if (signingBackend == null) {
+			return new Response(id, null, "No key available for "+keyName(signingDomain, selector));
+		}
+
+		SigningAlgorithm signingAlgorithm = SigningAlgorithm.forRfc4871Notation(algorithm);
+		if (signingAlgorithm == null) {
+			return new Response(id, null, "Unknown signing algorithm "+algorithm);
+		}
+
+		try {
+			return new Response(id, signingBackend.sign(signingDomain, selector, signingAlgorithm, hash), null);
+		} catch (DKIMSignerException dse) {
+			return new Response(id, null, dse.getMessage());
+		}
+	}
+
+	private void writeResponses(Socket socket, LinkedBlockingQueue<Response> responses) {
+
+		List<Response> batch = new ArrayList<Response>();
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 16384));
+			while (true) {
+				batch.add(responses.take());
+				responses.drainTo(batch);
+
+				for (Response response : batch) {
+					out.writeInt(response.id);
+					out.writeBoolean(response.signature != null);
+					if (response.signature != null) {
+						out.writeInt(response.signature.length);
+						out.write(response.signature);
+					} else {
+						out.writeUTF(response.error);
+					}
+				}
+				out.flush();
+				batch.clear();
+			}
+		} catch (Exception e) {
+			// connection closed
+			try {
+				socket.close();
+			} catch (IOException ioe) {}
+		}
+	}
+
+	protected static void writeRequest(DataOutputStream out, int id, String signingDomain, String selector, String algorithm, byte[] hash) throws IOException {
+
+		out.writeInt(id);
+		out.writeUTF(signingDomain);
+		out.writeUTF(selector);
+		out.writeUTF(algorithm);
+		out.writeInt(hash.length);
+		out.write(hash);
+	}
+
+	private static class Client {
+
+		private String name;
+		private byte[] secret;
+		private Set<String> signingDomains;
+
+		private Client(String name, byte[] secret, Set<String> signingDomains) {
+			this.name = name;
+			this.secret = secret;
+			this.signingDomains = signingDomains;
+		}
+	}
+
+	private static class Response {
+
+		private int id;
+		private byte[] signature;
+		private String error;
+
+		private Response(int id, byte[] signature, String error) {
+			this.id = id;
+			this.signature = signature;
+			this.error = error;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		if (args.length < 5 || (args.length - 2) % 3 != 0) {
+			System.out.println("Usage: java de.agitos.dkim.SigningDaemon <port> <clients file> <signingdomain> <selector> <privatekey.der> [<signingdomain> <selector> <privatekey.der> ...]");
+			System.exit(1);
+		}
+
+		SigningDaemon daemon = new SigningDaemon(Integer.parseInt(args[0]));
+		daemon.loadClients(new File(args[1]));
+		for (int i = 2; i < args.length; i += 3) {
+			daemon.addKey(args[i], args[i+1], DKIMUtil.readPrivateKey(args[i+2]));
+		}
+		daemon.start();
+
+		System.out.println("DKIM signing daemon listening on port "+daemon.getPort());
+		Thread.currentThread().join();
+	}
+}
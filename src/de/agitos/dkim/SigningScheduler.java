@@ -0,0 +1,379 @@
+/* 
+ * Copyright 2008 The Apache Software Foundation or its licensors, as
+ * applicable.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A licence was granted to the ASF by Florian Sager on 30 November 2008
+ */
+
+package de.agitos.dkim;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.activation.DataHandler;
+import javax.activation.FileDataSource;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+
+/*
+ * Shares the signing threads fairly between tenants (signing domains), so a large campaign of one
+ * tenant doesn't delay the mail of the others. Each tenant has its own queue; the queues are served
+ * by deficit round robin: in each round a tenant may use QUANTUM cost units times its weight, a message
+ * costs one unit plus one per 64 KB. Transactional messages bypass the tenant queues in a priority lane,
+ * a tenant may have up to setMaxPriorityTasks() messages there, its further transactional messages are
+ * queued with its other messages, so a tenant can't take over the signing threads by the priority lane.
+ */
+
+public class SigningScheduler {
+
+	private static int QUANTUM = 4;
+	private static int COSTBYTESPERUNIT = 65536;
+
+	private ReentrantLock lock = new ReentrantLock();
+	private Condition workAvailable = lock.newCondition();
+
+	// guarded by lock
+	private LinkedList<Task> priorityLane = new LinkedList<Task>();
+	private LinkedList<Tenant> activeTenants = new LinkedList<Tenant>();
+	private boolean shutdown = false;
+	private int maxPriorityTasks = 16;
+
+	private ConcurrentHashMap<String, Tenant> tenants = new ConcurrentHashMap<String, Tenant>();
+	private ConcurrentHashMap<String, Integer> weights = new ConcurrentHashMap<String, Integer>();
+	private Thread[] workers;
+
+	private static class Task {
+
+		private FutureTask<?> future;
+		private Tenant tenant;
+		private int cost;
+		private long enqueued;
+
+		private Task(FutureTask<?> future, Tenant tenant, int cost) {
+			this.future = future;
+			this.tenant = tenant;
+			this.cost = cost;
+			this.enqueued = System.nanoTime();
+		}
+	}
+
+	/*
+	 * The queue and the statistics of a tenant, the counters are updated while holding the scheduler's lock.
+	 */
+	public static class Tenant {
+
+		private String name;
+		private LinkedList<Task> queue = new LinkedList<Task>();
+		private long deficit = 0;
+		private boolean quantumGranted = false;
+		private int priorityQueued = 0;
+
+		private volatile int queueLength = 0;
+		private volatile long started = 0;
+		private volatile long totalWait = 0;
+		private volatile long maxWait = 0;
+
+		private Tenant(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		// queued messages including those in the priority lane
+		public int getQueueLength() {
+			return queueLength;
+		}
+
+		// messages taken by a signing thread
+		public long getStartedCount() {
+			return started;
+		}
+
+		// the average time between submitting and starting to sign in ms
+		public double getAverageWaitMillis() {
+			long started = this.started;
+			return started == 0 ? 0 : totalWait / 1e6 / started;
+		}
+
+		public double getMaxWaitMillis() {
+			return maxWait / 1e6;
+		}
+	}
+
+	public SigningScheduler(int threads) {
+
+		workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread(new Runnable() {
+				public void run() {
+					work();
+				}
+			}, "DKIM signing scheduler "+i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+	}
+
+	// a tenant with weight 2 gets twice the signing time of a tenant with the default weight 1 while both are busy
+	public void setWeight(String tenant, int weight) {
+
+		if (weight < 1) {
+			throw new IllegalArgumentException("The weight has to be 1 at least");
+		}
+		weights.put(tenant.toLowerCase(), weight);
+	}
+
+	public int getWeight(String tenant) {
+		Integer weight = weights.get(tenant.toLowerCase());
+		return weight == null ? 1 : weight.intValue();
+	}
+
+	public int getMaxPriorityTasks() {
+		return maxPriorityTasks;
+	}
+
+	// the number of queued transactional messages per tenant in the priority lane
+	public void setMaxPriorityTasks(int maxPriorityTasks) {
+
+		lock.lock();
+		try {
+			this.maxPriorityTasks = maxPriorityTasks;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * Queues the signing of the message for the tenant of its signing domain, the Future returns the
+	 * signed message as it is sent. Transactional messages are signed before all queued messages of the tenants.
+	 * The cost is estimated from the content of the message, see estimateSize().
+	 */
+	public Future<byte[]> sign(SMTPDKIMMessage message, boolean transactional) throws MessagingException {
+
+		long size;
+		try {
+			size = estimateSize(message);
+		} catch (IOException ioe) {
+			size = -1;
+		}
+		return sign(message, size, transactional);
+	}
+
+	// the size of the rendered message is passed by the caller, e.g. the size of a stored campaign message
+	public Future<byte[]> sign(final SMTPDKIMMessage message, long size, boolean transactional) throws MessagingException {
+
+		return submit(message.getSigner().getSigningDomain(), new Callable<byte[]>() {
+			public byte[] call() throws Exception {
+				ByteArrayOutputStream signedMessage = new ByteArrayOutputStream();
+				message.writeTo(signedMessage);
+				return signedMessage.toByteArray();
+			}
+		}, cost(size), transactional);
+	}
+
+	// one unit plus one per 64 KB, an unknown size costs one unit
+	static int cost(long size) {
+		return 1 + (int) Math.min(Integer.MAX_VALUE - 1, Math.max(0, size) / COSTBYTESPERUNIT);
+	}
+
+	/*
+	 * Estimates the size of the rendered part before it is rendered, Part.getSize() is -1 for content that
+	 * wasn't rendered yet. Counts the text of text parts, the files of FileDataSources (base64 encoded)
+	 * and the sum of the parts of a multipart. Other content is unknown and counted as 0, -1 if nothing is known.
+	 */
+	static long estimateSize(Part part) throws MessagingException, IOException {
+
+		int size = part.getSize();
+		if (size >= 0) {
+			return size;
+		}
+		DataHandler dataHandler = part.getDataHandler();
+		if (dataHandler != null && dataHandler.getDataSource() instanceof FileDataSource) {
+			return ((FileDataSource) dataHandler.getDataSource()).getFile().length() * 4 / 3;
+		}
+		if (part.isMimeType("text/*") || part.isMimeType("multipart/*")) {
+			Object content = part.getContent();
+			if (content instanceof String) {
+				return ((String) content).length();
+			}
+			if (content instanceof Multipart) {
+				Multipart multipart = (Multipart) content;
+				long total = -1;
+				for (int i = 0; i < multipart.getCount(); i++) {
+					long partSize = estimateSize(multipart.getBodyPart(i));
+					if (partSize >= 0) {
+						total = Math.max(0, total) + partSize;
+					}
+				}
+				return total;
+			}
+		}
+		return -1;
+	}
+
+	// queues any signing related work of a tenant with the given cost in units, see QUANTUM
+	public <T> Future<T> submit(String tenant, Callable<T> work, int cost, boolean transactional) {
+
+		FutureTask<T> future = new FutureTask<T>(work);
+		Tenant queue = getTenant(tenant);
+		Task task = new Task(future, queue, Math.max(1, cost));
+
+		lock.lock();
+		try {
+			if (shutdown) {
+				throw new RejectedExecutionException("The signing scheduler is shut down");
+			}
+			if (transactional && queue.priorityQueued < maxPriorityTasks) {
+				queue.priorityQueued++;
+				priorityLane.add(task);
+			} else {
+				if (queue.queue.isEmpty()) {
+					activeTenants.add(queue);
+				}
+				queue.queue.add(task);
+			}
+			queue.queueLength++;
+			workAvailable.signal();
+		} finally {
+			lock.unlock();
+		}
+		return future;
+	}
+
+	private Tenant getTenant(String name) {
+
+		String key = name.toLowerCase();
+		Tenant tenant = tenants.get(key);
+		if (tenant == null) {
+			tenant = new Tenant(key);
+			Tenant existing = tenants.putIfAbsent(key, tenant);
+			if (existing != null) {
+				tenant = existing;
+			}
+		}
+		return tenant;
+	}
+
+	// the statistics of a tenant, null if it didn't submit anything
+	public Tenant getTenantStatistics(String tenant) {
+		return tenants.get(tenant.toLowerCase());
+	}
+
+	public List<Tenant> getTenants() {
+		return new ArrayList<Tenant>(tenants.values());
+	}
+
+	public int getPriorityQueueLength() {
+
+		lock.lock();
+		try {
+			return priorityLane.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void work() {
+
+		while (true) {
+			Task task;
+			lock.lock();
+			try {
+				while (priorityLane.isEmpty() && activeTenants.isEmpty()) {
+					if (shutdown) {
+						return;
+					}
+					workAvailable.awaitUninterruptibly();
+				}
+				task = next();
+				Tenant tenant = task.tenant;
+				long wait = System.nanoTime() - task.enqueued;
+				tenant.queueLength--;
+				tenant.started++;
+				tenant.totalWait += wait;
+				if (wait > tenant.maxWait) {
+					tenant.maxWait = wait;
+				}
+			} finally {
+				lock.unlock();
+			}
+			task.future.run();
+		}
+	}
+
+	// deficit round robin over the tenants with queued messages, called while holding the lock
+	private Task next() {
+
+		if (!priorityLane.isEmpty()) {
+			Task task = priorityLane.removeFirst();
+			task.tenant.priorityQueued--;
+			return task;
+		}
+		while (true) {
+			Tenant tenant = activeTenants.getFirst();
+			if (!tenant.quantumGranted) {
+				tenant.deficit += (long) QUANTUM * getWeight(tenant.name);
+				tenant.quantumGranted = true;
+			}
+			Task task = tenant.queue.getFirst();
+			if (task.cost <= tenant.deficit) {
+				tenant.deficit -= task.cost;
+				tenant.queue.removeFirst();
+				if (tenant.queue.isEmpty()) {
+					// an idle tenant doesn't save up credit
+					tenant.deficit = 0;
+					tenant.quantumGranted = false;
+					activeTenants.removeFirst();
+				}
+				return task;
+			}
+			// the tenant used its quantum, the next one's turn
+			tenant.quantumGranted = false;
+			activeTenants.removeFirst();
+			activeTenants.addLast(tenant);
+		}
+	}
+
+	// the queued work is completed before the threads terminate
+	public void shutdown() {
+
+		lock.lock();
+		try {
+			shutdown = true;
+			workAvailable.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void awaitTermination() throws InterruptedException {
+		for (Thread worker : workers) {
+			worker.join();
+		}
+	}
+}
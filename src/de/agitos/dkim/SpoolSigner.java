@@ -0,0 +1,349 @@
+/*
+ * Copyright 2008 The Apache Software Foundation or its licensors, as
+ * applicable.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A licence was granted to the ASF by Florian Sager on 30 November 2008
+ */
+
+package de.agitos.dkim;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.SharedInputStream;
+
+/*
+ * Signs pre-rendered messages in a spool directory, e.g. campaign mails that are handed off
+ * to the MTA later on. All messages are signed in parallel by one shared DKIMSigner.
+ *
+ * Every file with the input suffix (default ".eml") is read into a pooled buffer of the signing thread,
+ * files larger than the map threshold (default 256 KB) are memory-mapped instead, since mapping and
+ * unmapping costs more than copying a small file. The signed message is written to a temporary file
+ * that is renamed to the input filename plus the output suffix (default ".signed").
+ * Files that already have a signed counterpart are skipped, so an interrupted run can simply be restarted.
+ *
+ * Usage: java de.agitos.dkim.SpoolSigner <signingdomain> <selector> <privatekey.der> <spooldir> [threads]
+ */
+
+public class SpoolSigner {
+
+	private DKIMSigner signer;
+	private Session session;
+	private int threads;
+	private String inputSuffix = ".eml";
+	private String outputSuffix = ".signed";
+	private PrintStream progressStream = System.err;
+	private long progressInterval = 10000;
+	private long mapThreshold = 256 * 1024;
+
+	private AtomicLong signedCount = new AtomicLong();
+	private AtomicLong skippedCount = new AtomicLong();
+	private AtomicLong failedCount = new AtomicLong();
+	private AtomicLong bytesSigned = new AtomicLong();
+
+	public SpoolSigner(DKIMSigner signer) {
+		this(signer, Runtime.getRuntime().availableProcessors());
+	}
+
+	public SpoolSigner(DKIMSigner signer, int threads) {
+		this.signer = signer;
+		this.threads = threads < 1 ? 1 : threads;
+		this.session = Session.getInstance(new Properties());
+	}
+
+	public String getInputSuffix() {
+		return inputSuffix;
+	}
+
+	public void setInputSuffix(String inputSuffix) {
+		this.inputSuffix = inputSuffix;
+	}
+
+	public String getOutputSuffix() {
+		return outputSuffix;
+	}
+
+	public void setOutputSuffix(String outputSuffix) {
+		this.outputSuffix = outputSuffix;
+	}
+
+	// progress is reported every progressInterval milliseconds, a null stream disables the reports
+	public void setProgressStream(PrintStream progressStream) {
+		this.progressStream = progressStream;
+	}
+
+	public void setProgressInterval(long progressInterval) {
+		this.progressInterval = progressInterval;
+	}
+
+	public long getMapThreshold() {
+		return mapThreshold;
+	}
+
+	// larger files are memory-mapped, smaller ones are read into a pooled buffer
+	public void setMapThreshold(long mapThreshold) {
+		this.mapThreshold = mapThreshold;
+	}
+
+	public long getSignedCount() {
+		return signedCount.get();
+	}
+
+	public long getSkippedCount() {
+		return skippedCount.get();
+	}
+
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	public long getBytesSigned() {
+		return bytesSigned.get();
+	}
+
+	/*
+	 * Signs all messages below spoolDir and blocks until all of them are written.
+	 * Returns the number of messages signed by this call.
+	 */
+	public long signSpool(File spoolDir) throws IOException, InterruptedException {
+
+		if (!spoolDir.isDirectory()) {
+			throw new IOException(spoolDir+" is no directory");
+		}
+
+		long signedBefore = signedCount.get();
+		final long start = System.currentTimeMillis();
+
+		// the bounded queue lets the directory walk wait for the workers instead of queueing millions of files
+		ThreadPoolExecutor workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(threads * 64), new ThreadPoolExecutor.CallerRunsPolicy());
+
+		ScheduledExecutorService reporter = null;
+		if (progressStream != null && progressInterval > 0) {
+			reporter = Executors.newSingleThreadScheduledExecutor();
+			reporter.scheduleAtFixedRate(new Runnable() {
+				public void run() {
+					reportProgress(start);
+				}
+			}, progressInterval, progressInterval, TimeUnit.MILLISECONDS);
+		}
+
+		try {
+			walk(spoolDir, workers);
+		} finally {
+			workers.shutdown();
+			workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			if (reporter != null) {
+				reporter.shutdownNow();
+				reportProgress(start);
+			}
+		}
+
+		return signedCount.get() - signedBefore;
+	}
+
+	private void walk(File dir, ThreadPoolExecutor workers) {
+
+		String[] names = dir.list();
+		if (names == null) {
+			return;
+		}
+
+		for (String name : names) {
+			final File file = new File(dir, name);
+			if (name.endsWith(inputSuffix) && file.isFile()) {
+				if (new File(dir, name+outputSuffix).exists()) {
+					skippedCount.incrementAndGet();
+					continue;
+				}
+				workers.execute(new Runnable() {
+					public void run() {
+						try {
+							signFile(file);
+							signedCount.incrementAndGet();
+						} catch (Exception e) {
+							failedCount.incrementAndGet();
+							if (progressStream != null) {
+								progressStream.println("Signing "+file+" failed: "+e.getLocalizedMessage());
+							}
+						}
+					}
+				});
+			} else if (file.isDirectory()) {
+				walk(file, workers);
+			}
+		}
+	}
+
+	/*
+	 * Signs a single message file and writes the signed message beside it.
+	 */
+	public void signFile(File file) throws IOException, MessagingException {
+
+		File signedFile = new File(file.getParentFile(), file.getName()+outputSuffix);
+		File tempFile = new File(file.getParentFile(), "."+file.getName()+".tmp");
+
+		FileInputStream fis = new FileInputStream(file);
+		SigningBuffers.BodyBuffer fileBuffer = null;
+		try {
+			FileChannel channel = fis.getChannel();
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException(file+" is too large for signing");
+			}
+
+			// the message reads its content directly from the buffer or the mapping instead of copying it
+			ByteBuffer content;
+			if (size > mapThreshold) {
+				content = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			} else {
+				fileBuffer = SigningBuffers.get().takeBodyBuffer();
+				fileBuffer.readFully(fis, (int) size);
+				content = ByteBuffer.wrap(fileBuffer.getBuffer(), 0, fileBuffer.size());
+			}
+			SMTPDKIMMessage message = new SMTPDKIMMessage(session, new ByteBufferInputStream(content), signer);
+
+			OutputStream os = new BufferedOutputStream(new FileOutputStream(tempFile), 65536);
+			try {
+				message.writeTo(os);
+			} finally {
+				os.close();
+			}
+
+			// the rename is atomic, so the MTA never sees a partially written message
+			if (!tempFile.renameTo(signedFile)) {
+				throw new IOException("Could not rename "+tempFile+" to "+signedFile);
+			}
+			bytesSigned.addAndGet(size);
+		} finally {
+			fis.close();
+			tempFile.delete();
+			if (fileBuffer != null) {
+				SigningBuffers.get().returnBodyBuffer(fileBuffer);
+			}
+		}
+	}
+
+	private void reportProgress(long start) {
+
+		long signed = signedCount.get();
+		double seconds = Math.max(System.currentTimeMillis() - start, 1) / 1000.0;
+
+		progressStream.println("Signed "+signed+" messages (skipped "+skippedCount.get()+", failed "+failedCount.get()+") in "
+				+String.format("%.1f", seconds)+"s: "+String.format("%.1f", signed / seconds)+" msg/s, "
+				+String.format("%.2f", bytesSigned.get() / seconds / (1024 * 1024))+" MB/s");
+	}
+
+	/*
+	 * Exposes a buffered or memory-mapped message as a SharedInputStream, so MimeMessage keeps the
+	 * body as a slice of the buffer.
+	 */
+	private static class ByteBufferInputStream extends InputStream implements SharedInputStream {
+
+		private ByteBuffer buf;
+		private int start;
+		private int mark;
+
+		public ByteBufferInputStream(ByteBuffer buf) {
+			this.buf = buf;
+			this.start = buf.position();
+			this.mark = this.start;
+		}
+
+		public int read() {
+			return buf.hasRemaining() ? buf.get() & 0xff : -1;
+		}
+
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			if (!buf.hasRemaining()) {
+				return -1;
+			}
+			len = Math.min(len, buf.remaining());
+			buf.get(b, off, len);
+			return len;
+		}
+
+		public long skip(long n) {
+			int skipped = (int) Math.max(0, Math.min(n, buf.remaining()));
+			buf.position(buf.position() + skipped);
+			return skipped;
+		}
+
+		public int available() {
+			return buf.remaining();
+		}
+
+		public boolean markSupported() {
+			return true;
+		}
+
+		public void mark(int readlimit) {
+			mark = buf.position();
+		}
+
+		public void reset() {
+			buf.position(mark);
+		}
+
+		public long getPosition() {
+			return buf.position() - start;
+		}
+
+		public InputStream newStream(long start, long end) {
+			ByteBuffer slice = buf.duplicate();
+			if (end == -1) {
+				end = buf.limit() - this.start;
+			}
+			slice.limit(this.start + (int) end);
+			slice.position(this.start + (int) start);
+			return new ByteBufferInputStream(slice.slice());
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		if (args.length < 4) {
+			System.out.println("Usage: java de.agitos.dkim.SpoolSigner <signingdomain> <selector> <privatekey.der> <spooldir> [threads]");
+			System.exit(1);
+		}
+
+		DKIMSigner signer = new DKIMSigner(args[0], args[1], args[2]);
+
+		SpoolSigner spoolSigner = args.length > 4 ? new SpoolSigner(signer, Integer.parseInt(args[4])) : new SpoolSigner(signer);
+		spoolSigner.signSpool(new File(args[3]));
+
+		System.exit(spoolSigner.getFailedCount() > 0 ? 2 : 0);
+	}
+}
@@ -0,0 +1,131 @@
+/* 
+ * Copyright 2008 The Apache Software Foundation or its licensors, as
+ * applicable.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A licence was granted to the ASF by Florian Sager on 30 November 2008
+ */
+
+package de.agitos.dkim;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Remembers the signatures a DKIMVerifier found valid, so duplicates of a message (e.g. from a mailing list
+ * fan-out) are confirmed by comparing the hash of their signed headers instead of a public key operation
+ * and a key lookup. The body hash is still computed for every message. Entries expire after a TTL, so a
+ * revoked key is noticed; if the cache is full, the least recently used entry is evicted.
+ */
+
+public class VerificationCache {
+
+	private int maxEntries;
+	private long ttl;
+	private Entries entries;
+
+	private AtomicLong hits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+
+	/*
+	 * The expiry times by key in the order of access, the least recently used entry is removed beyond maxEntries.
+	 */
+	private static class Entries extends LinkedHashMap<String, Long> {
+
+		private static final long serialVersionUID = 1L;
+
+		private int maxEntries;
+
+		private Entries(int maxEntries) {
+			super(16, 0.75f, true);
+			this.maxEntries = maxEntries;
+		}
+
+		protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+			return size() > maxEntries;
+		}
+	}
+
+	// ttl in ms
+	public VerificationCache(int maxEntries, long ttl) {
+
+		this.maxEntries = maxEntries;
+		this.ttl = ttl;
+		this.entries = new Entries(maxEntries);
+	}
+
+	/*
+	 * The key consists of the d=, s=, a=, bh= and b= tags of the signature and the hash of the signed headers.
+	 */
+	public static String key(String signingDomain, String selector, String algorithm, String bodyHash, String signature, byte[] headerHash) {
+		return signingDomain.toLowerCase()+";"+selector.toLowerCase()+";"+algorithm+";"+bodyHash+";"+signature+";"+DKIMUtil.base64Encode(headerHash);
+	}
+
+	public boolean isVerified(String key) {
+
+		Long expires;
+		synchronized (entries) {
+			expires = entries.get(key);
+			if (expires != null && expires.longValue() < System.currentTimeMillis()) {
+				entries.remove(key);
+				expires = null;
+			}
+		}
+		if (expires == null) {
+			misses.incrementAndGet();
+			return false;
+		}
+		hits.incrementAndGet();
+		return true;
+	}
+
+	public void addVerified(String key) {
+
+		Long expires = Long.valueOf(System.currentTimeMillis() + ttl);
+		synchronized (entries) {
+			entries.put(key, expires);
+		}
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public double getHitRatio() {
+		long hits = this.hits.get();
+		long lookups = hits + misses.get();
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+}
@@ -0,0 +1,98 @@
+/* 
+ * Copyright 2008 The Apache Software Foundation or its licensors, as
+ * applicable.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A licence was granted to the ASF by Florian Sager on 30 November 2008
+ */
+
+package de.agitos.dkim;
+
+/*
+ * Bounds the work a DKIMVerifier spends on a single message, whose signatures are controlled by the
+ * sender. The header block is parsed up to maxHeaderBlockBytes and maxHeaderLines, a larger one fails
+ * the message. A message with more signatures is verified by its first maxSignatures ones only; a signature
+ * with too many h= entries, too many canonicalized header bytes or a too large key fails before
+ * the expensive steps. A negative value disables a limit.
+ */
+
+public class VerificationLimits {
+
+	private int maxHeaderBlockBytes = 1024 * 1024;
+	private int maxHeaderLines = 10000;
+	private int maxSignatures = 8;
+	private int maxSignedHeaders = 64;
+	private int maxHeaderBytes = 256 * 1024;
+	private int maxKeyBits = 4096;
+
+	public VerificationLimits() {}
+
+	public int getMaxHeaderBlockBytes() {
+		return maxHeaderBlockBytes;
+	}
+
+	// the raw header block of a message up to the empty line, including the line terminators
+	public void setMaxHeaderBlockBytes(int maxHeaderBlockBytes) {
+		this.maxHeaderBlockBytes = maxHeaderBlockBytes < 0 ? -1 : maxHeaderBlockBytes;
+	}
+
+	public int getMaxHeaderLines() {
+		return maxHeaderLines;
+	}
+
+	// the lines of the header block including the continuation lines of folded headers
+	public void setMaxHeaderLines(int maxHeaderLines) {
+		this.maxHeaderLines = maxHeaderLines < 0 ? -1 : maxHeaderLines;
+	}
+
+	public int getMaxSignatures() {
+		return maxSignatures;
+	}
+
+	// the DKIM-Signature headers verified per message from top to bottom, further ones are ignored
+	public void setMaxSignatures(int maxSignatures) {
+		this.maxSignatures = maxSignatures < 0 ? -1 : maxSignatures;
+	}
+
+	public int getMaxSignedHeaders() {
+		return maxSignedHeaders;
+	}
+
+	// the entries of the h= tag of a signature
+	public void setMaxSignedHeaders(int maxSignedHeaders) {
+		this.maxSignedHeaders = maxSignedHeaders < 0 ? -1 : maxSignedHeaders;
+	}
+
+	public int getMaxHeaderBytes() {
+		return maxHeaderBytes;
+	}
+
+	// the canonicalized header bytes of all signatures of a message together
+	public void setMaxHeaderBytes(int maxHeaderBytes) {
+		this.maxHeaderBytes = maxHeaderBytes < 0 ? -1 : maxHeaderBytes;
+	}
+
+	public int getMaxKeyBits() {
+		return maxKeyBits;
+	}
+
+	// the size of the RSA modulus of a public key
+	public void setMaxKeyBits(int maxKeyBits) {
+		this.maxKeyBits = maxKeyBits < 0 ? -1 : maxKeyBits;
+	}
+
+	public String toString() {
+		return "maxHeaderBlockBytes="+maxHeaderBlockBytes+", maxHeaderLines="+maxHeaderLines+", maxSignatures="+maxSignatures+", maxSignedHeaders="+maxSignedHeaders+", maxHeaderBytes="+maxHeaderBytes+", maxKeyBits="+maxKeyBits;
+	}
+}
@@ -0,0 +1,66 @@
+/* 
+ * Copyright 2008 The Apache Software Foundation or its licensors, as
+ * applicable.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A licence was granted to the ASF by Florian Sager on 30 November 2008
+ */
+
+package de.agitos.dkim;
+
+/*
+ * The outcome of the verification of a message by a DKIMVerifier. If a message has several signatures,
+ * this is the first valid one or, if none is valid, the first one that failed.
+ */
+
+public class VerificationResult {
+
+	private String signingDomain;
+	private String selector;
+	private String signatureHeader;
+	private String failureReason;
+
+	public VerificationResult(String signingDomain, String selector, String signatureHeader, String failureReason) {
+		this.signingDomain = signingDomain;
+		this.selector = selector;
+		this.signatureHeader = signatureHeader;
+		this.failureReason = failureReason;
+	}
+
+	public boolean isPassed() {
+		return failureReason == null;
+	}
+
+	// d= of the signature, null if the message has no signature or d= is missing
+	public String getSigningDomain() {
+		return signingDomain;
+	}
+
+	public String getSelector() {
+		return selector;
+	}
+
+	public String getSignatureHeader() {
+		return signatureHeader;
+	}
+
+	// null if the signature is valid
+	public String getFailureReason() {
+		return failureReason;
+	}
+
+	public String toString() {
+		return (isPassed() ? "pass" : "fail ("+failureReason+")")+(signingDomain != null ? " d="+signingDomain+" s="+selector : "");
+	}
+}
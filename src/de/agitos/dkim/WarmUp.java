@@ -0,0 +1,132 @@
+/* 
+ * Copyright 2008 The Apache Software Foundation or its licensors, as
+ * applicable.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A licence was granted to the ASF by Florian Sager on 30 November 2008
+ */
+
+package de.agitos.dkim;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+import javax.activation.DataHandler;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+
+/*
+ * Signs synthetic messages to load the classes of the signing path and let the JIT compile it
+ * before the first real message is sent, see DKIMSigner.warmUp().
+ *
+ * The main method can be used to create a class list for an AppCDS archive of short-lived senders:
+ *   java -XX:DumpLoadedClassList=dkim.classlist de.agitos.dkim.WarmUp <signingdomain> <selector> <privatekey.der> [messages]
+ */
+
+public class WarmUp {
+
+	private static String TEXT = "Hello,\r\n\r\nthis  message warms up\tthe DKIM signing path.  \r\n\r\nRegards\r\n\r\n";
+	private static String UNICODETEXT = "Gr\u00fc\u00dfe,  \u00e4\u00f6\u00fc sind  kodiert.\r\n";
+
+	// the signer is a private copy, see DKIMSigner.warmUp()
+	static void warmUp(DKIMSigner signer, int messages) throws DKIMSignerException {
+
+		Session session = Session.getInstance(new Properties());
+		OutputStream discard = new OutputStream() {
+			public void write(int b) { }
+			public void write(byte[] b, int off, int len) { }
+		};
+
+		byte[] attachment = new byte[16384];
+		for (int i = 0; i < attachment.length; i++) {
+			attachment[i] = (byte) (i * 31);
+		}
+
+		try {
+			for (int i = 0; i < messages; i++) {
+
+				SMTPDKIMMessage message = new SMTPDKIMMessage(session, signer);
+				message.setFrom(new InternetAddress("warmup@"+signer.getSigningDomain()));
+				message.setRecipient(Message.RecipientType.TO, new InternetAddress("warmup"+i+"@"+signer.getSigningDomain()));
+				message.setSubject("Warm-up  message "+i);
+
+				// 7bit text, quoted-printable text and a multipart message with a base64 attachment
+				switch (i % 3) {
+				case 0:
+					message.setText(TEXT);
+					break;
+				case 1:
+					message.setText(UNICODETEXT, "UTF-8");
+					break;
+				default:
+					MimeMultipart multipart = new MimeMultipart();
+					MimeBodyPart textPart = new MimeBodyPart();
+					textPart.setText(TEXT);
+					multipart.addBodyPart(textPart);
+					MimeBodyPart attachmentPart = new MimeBodyPart();
+					attachmentPart.setDataHandler(new DataHandler(new ByteArrayDataSource(attachment, "application/octet-stream")));
+					attachmentPart.setFileName("warmup.bin");
+					multipart.addBodyPart(attachmentPart);
+					message.setContent(multipart);
+				}
+
+				message.writeTo(discard);
+			}
+
+			// canonicalizations not used by the signer are warmed up directly, through the same streams as in signing
+			MessageDigest messageDigest = MessageDigest.getInstance(signer.getSigningAlgorithm().getJavaHashNotation());
+			byte[] text = TEXT.getBytes("US-ASCII");
+			Canonicalization[] canonicalizations = new Canonicalization[] {Canonicalization.SIMPLE, Canonicalization.RELAXED};
+			for (Canonicalization canonicalization : canonicalizations) {
+				for (int i = 0; i < messages; i++) {
+					canonicalization.canonicalizeHeader("Subject", " Warm-up  message "+i);
+					BodyHasher bodyHasher = new BodyHasher(messageDigest);
+					OutputStream canonicalizer = canonicalization.getBodyCanonicalizer(bodyHasher);
+					canonicalizer.write(text, 0, text.length);
+					canonicalizer.close();
+					bodyHasher.digest();
+				}
+			}
+
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new DKIMSignerException("The hashing algorithm "+signer.getSigningAlgorithm().getJavaHashNotation()+" is not known by the JVM", nsae);
+		} catch (MessagingException me) {
+			throw new DKIMSignerException("The warm-up failed", me);
+		} catch (IOException ioe) {
+			throw new DKIMSignerException("The warm-up failed", ioe);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		if (args.length < 3) {
+			System.out.println("Usage: java de.agitos.dkim.WarmUp <signingdomain> <selector> <privatekey.der> [messages]");
+			System.exit(1);
+		}
+
+		DKIMSigner signer = new DKIMSigner(args[0], args[1], args[2]);
+
+		long start = System.currentTimeMillis();
+		signer.warmUp(args.length > 3 ? Integer.parseInt(args[3]) : DKIMSigner.WARMUPMESSAGES);
+		System.out.println("Warm-up finished after "+(System.currentTimeMillis() - start)+"ms");
+	}
+}
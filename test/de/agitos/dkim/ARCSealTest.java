@@ -0,0 +1,285 @@
+/*
+ * Copyright 2008 The Apache Software Foundation or its licensors, as
+ * applicable.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A licence was granted to the ASF by Florian Sager on 30 November 2008
+ */
+
+package de.agitos.dkim;
+
+import java.io.ByteArrayInputStream;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+
+/*
+ * Checks ARC sealing (RFC 8617) by an independent verification of the ARC sets: a message forwarded over three
+ * relays carries the instances i=1, 2 and 3, the ARC-Message-Signature of the last relay and the ARC-Seal over
+ * all sets verify for all canonicalizations, a changed earlier set breaks the seal, cv=fail seals only its own
+ * set, a broken or missing chain can't be sealed with cv=pass, and the ARC-Message-Signature covers the complete
+ * body despite l=. Exits with 1 on the first failed check.
+ *
+ * Usage: java de.agitos.dkim.ARCSealTest
+ */
+
+public class ARCSealTest {
+
+	private static Pattern INSTANCE = Pattern.compile("i=(\\d+)");
+	private static Pattern SIGNATUREVALUE = Pattern.compile("([;\\s]b=)[^;]*");
+
+	private static Session session = Session.getInstance(new Properties());
+
+	public static void main(String args[]) throws Exception {
+
+		KeyPair keyPair = TestUtil.generateKeyPair();
+		DKIMSigner signer = new DKIMSigner("example.com", "default", keyPair.getPrivate());
+		byte[] forwarded = null;
+
+		for (Canonicalization headerCanonicalization : new Canonicalization[] {Canonicalization.SIMPLE, Canonicalization.RELAXED}) {
+			for (Canonicalization bodyCanonicalization : new Canonicalization[] {Canonicalization.SIMPLE, Canonicalization.RELAXED}) {
+				signer.setHeaderCanonicalization(headerCanonicalization);
+				signer.setBodyCanonicalization(bodyCanonicalization);
+				String type = headerCanonicalization.getType()+"/"+bodyCanonicalization.getType()+" ";
+
+				// the first relay starts the chain, the following ones extend it
+				SMTPDKIMMessage message = TestUtil.createMessage(signer, "ARC  sealed", "Hello  world \r\n\r\n");
+				message.setARCResults("relay1.example.com; spf=pass smtp.mailfrom=example.com", ARCChain.NONE);
+				forwarded = TestUtil.sign(message);
+				checkLastSet(type+"relay 1", forwarded, 1, ARCChain.NONE, keyPair.getPublic());
+				for (int relay = 2; relay <= 3; relay++) {
+					forwarded = forward(forwarded, signer, "relay"+relay+".example.com; arc=pass", ARCChain.PASS);
+					checkLastSet(type+"relay "+relay, forwarded, relay, ARCChain.PASS, keyPair.getPublic());
+				}
+			}
+		}
+
+		// a changed earlier set breaks the seal of the last one, not its message signature
+		byte[] changed = new String(forwarded, "ISO-8859-1").replaceFirst("spf=pass", "spf=fail").getBytes("ISO-8859-1");
+		Map<Integer, String[]> sets = getSets(getHeaders(changed));
+		TestUtil.check("changed set 1 breaks the seal of set 3", !verifySeal(sets, 3, keyPair.getPublic()));
+		TestUtil.check("changed set 1 keeps the message signature of set 3", verifyMessageSignature(changed, sets.get(3)[1], keyPair.getPublic()));
+
+		// a broken chain can only be sealed with cv=fail, the seal covers its own set then
+		byte[] broken = removeHeader(forwarded, "ARC-Seal: i=1;");
+		TestUtil.check("broken chain not sealed with cv=pass", fails(broken, signer, ARCChain.PASS, "The ARC chain is broken"));
+		byte[] failed = forward(broken, signer, "relay4.example.com; arc=fail", ARCChain.FAIL);
+		checkLastSet("broken chain sealed with cv=fail", failed, 4, ARCChain.FAIL, keyPair.getPublic());
+		TestUtil.check("failed chain not sealed with cv=pass", fails(failed, signer, ARCChain.PASS, "The ARC chain is broken"));
+
+		// a message without a chain can only be sealed with cv=none
+		SMTPDKIMMessage message = TestUtil.createMessage(signer, "No chain", "Hello\r\n");
+		message.setARCResults("relay1.example.com; spf=pass", ARCChain.PASS);
+		TestUtil.check("missing chain not sealed with cv=pass", fails(message, "has to be none"));
+
+		// l= applies to the DKIM signature only
+		signer.setMaxSignedBodyLength(10);
+		message = TestUtil.createMessage(signer, "ARC with l=", TestUtil.bodyText);
+		message.setARCResults("relay1.example.com; spf=pass", ARCChain.NONE);
+		byte[] limited = TestUtil.sign(message);
+		sets = getSets(getHeaders(limited));
+		TestUtil.check("DKIM signature with l=10", "10".equals(TestUtil.getTag(limited, "DKIM-Signature", "l")));
+		TestUtil.check("ARC-Message-Signature without l=", !getTags(sets.get(1)[1]).containsKey("l"));
+		checkLastSet("ARC with l=", limited, 1, ARCChain.NONE, keyPair.getPublic());
+
+		System.out.println("ARCSeal checks passed");
+	}
+
+	private static byte[] forward(byte[] received, DKIMSigner signer, String authenticationResults, String chainValidation) throws Exception {
+
+		SMTPDKIMMessage message = new SMTPDKIMMessage(session, new ByteArrayInputStream(received), signer);
+		message.setARCResults(authenticationResults, chainValidation);
+		return TestUtil.sign(message);
+	}
+
+	private static boolean fails(byte[] received, DKIMSigner signer, String chainValidation, String error) throws Exception {
+
+		SMTPDKIMMessage message = new SMTPDKIMMessage(session, new ByteArrayInputStream(received), signer);
+		message.setARCResults("relay.example.com; arc=pass", chainValidation);
+		return fails(message, error);
+	}
+
+	private static boolean fails(SMTPDKIMMessage message, String error) throws Exception {
+
+		try {
+			TestUtil.sign(message);
+			return false;
+		} catch (MessagingException me) {
+			System.out.println("       "+me.getMessage());
+			return me.getMessage().indexOf(error) >= 0;
+		}
+	}
+
+	// the sets 1 to instance are complete (with cv=fail the last one), the last one has the chain validation,
+	// its message signature and its seal verify
+	private static void checkLastSet(String name, byte[] signed, int instance, String chainValidation, PublicKey publicKey) throws Exception {
+
+		Map<Integer, String[]> sets = getSets(getHeaders(signed));
+		boolean complete = sets.size() == instance;
+		for (int i = ARCChain.FAIL.equals(chainValidation) ? instance : 1; i <= instance; i++) {
+			complete &= sets.get(i) != null && sets.get(i)[0] != null && sets.get(i)[1] != null && sets.get(i)[2] != null;
+		}
+		TestUtil.check(name+": instances 1 to "+instance, complete);
+		String[] set = sets.get(instance);
+		TestUtil.check(name+": ARC-Authentication-Results of i="+instance, set[0].startsWith(ARCChain.AUTHENTICATIONRESULTSHEADER+": i="+instance+"; "));
+		TestUtil.check(name+": cv="+chainValidation, chainValidation.equals(getTags(set[2]).get("cv")));
+		TestUtil.check(name+": ARC-Message-Signature verifies", verifyMessageSignature(signed, set[1], publicKey));
+		TestUtil.check(name+": ARC-Seal verifies", verifySeal(sets, instance, publicKey));
+	}
+
+	private static boolean verifyMessageSignature(byte[] signed, String messageSignature, PublicKey publicKey) throws Exception {
+
+		List<String> headers = getHeaders(signed);
+		Map<String, String> tags = getTags(messageSignature);
+		String[] canonicalizations = tags.get("c").split("/");
+		Canonicalization headerCanonicalization = canonicalizations[0].equals("relaxed") ? Canonicalization.RELAXED : Canonicalization.SIMPLE;
+		Canonicalization bodyCanonicalization = canonicalizations[1].equals("relaxed") ? Canonicalization.RELAXED : Canonicalization.SIMPLE;
+
+		String message = new String(signed, "ISO-8859-1");
+		String body = bodyCanonicalization.canonicalizeBody(message.substring(message.indexOf("\r\n\r\n") + 4));
+		String bodyHash = DKIMUtil.base64Encode(MessageDigest.getInstance("SHA-256").digest(body.getBytes("ISO-8859-1"))).replaceAll("\\s", "");
+		if (!bodyHash.equals(tags.get("bh"))) {
+			return false;
+		}
+
+		// the instances of a header listed several times are taken from the bottom up
+		StringBuilder signedContent = new StringBuilder();
+		Map<String, Integer> used = new HashMap<String, Integer>();
+		for (String name : tags.get("h").split(":")) {
+			name = name.trim().toLowerCase();
+			int skip = used.containsKey(name) ? used.get(name) : 0;
+			used.put(name, skip + 1);
+			for (int i = headers.size() - 1; i >= 0; i--) {
+				if (getName(headers.get(i)).equals(name) && skip-- == 0) {
+					signedContent.append(canonicalize(headerCanonicalization, headers.get(i))).append("\r\n");
+					break;
+				}
+			}
+		}
+		signedContent.append(canonicalize(headerCanonicalization, withoutSignatureValue(messageSignature)));
+		return verify(signedContent.toString(), tags.get("b"), publicKey);
+	}
+
+	// the seal covers all sets up to its instance, relaxed, with cv=fail only its own set
+	private static boolean verifySeal(Map<Integer, String[]> sets, int instance, PublicKey publicKey) throws Exception {
+
+		String seal = sets.get(instance)[2];
+		boolean failed = ARCChain.FAIL.equals(getTags(seal).get("cv"));
+		StringBuilder signedContent = new StringBuilder();
+		for (int i = failed ? instance : 1; i <= instance; i++) {
+			String[] set = sets.get(i);
+			signedContent.append(canonicalize(Canonicalization.RELAXED, set[0])).append("\r\n");
+			signedContent.append(canonicalize(Canonicalization.RELAXED, set[1])).append("\r\n");
+			if (i < instance) {
+				signedContent.append(canonicalize(Canonicalization.RELAXED, set[2])).append("\r\n");
+			}
+		}
+		signedContent.append(canonicalize(Canonicalization.RELAXED, withoutSignatureValue(seal)));
+		return verify(signedContent.toString(), getTags(seal).get("b"), publicKey);
+	}
+
+	private static boolean verify(String signedContent, String signature, PublicKey publicKey) throws Exception {
+
+		Signature verifier = Signature.getInstance("SHA256withRSA");
+		verifier.initVerify(publicKey);
+		verifier.update(signedContent.getBytes("ISO-8859-1"));
+		return verifier.verify(DKIMUtil.base64Decode(signature));
+	}
+
+	// the header lines with their folding
+	private static List<String> getHeaders(byte[] message) throws Exception {
+
+		String s = new String(message, "ISO-8859-1");
+		List<String> headers = new ArrayList<String>();
+		for (String line : s.substring(0, s.indexOf("\r\n\r\n")).split("\r\n")) {
+			if (line.startsWith(" ") || line.startsWith("\t")) {
+				headers.set(headers.size() - 1, headers.get(headers.size() - 1)+"\r\n"+line);
+			} else {
+				headers.add(line);
+			}
+		}
+		return headers;
+	}
+
+	// per instance: authentication results, message signature and seal
+	private static Map<Integer, String[]> getSets(List<String> headers) {
+
+		Map<Integer, String[]> sets = new TreeMap<Integer, String[]>();
+		for (String header : headers) {
+			String name = getName(header);
+			int index = name.equals("arc-authentication-results") ? 0 : name.equals("arc-message-signature") ? 1 : name.equals("arc-seal") ? 2 : -1;
+			Matcher matcher = INSTANCE.matcher(header);
+			if (index < 0 || !matcher.find()) {
+				continue;
+			}
+			Integer instance = Integer.valueOf(matcher.group(1));
+			if (!sets.containsKey(instance)) {
+				sets.put(instance, new String[3]);
+			}
+			sets.get(instance)[index] = header;
+		}
+		return sets;
+	}
+
+	private static Map<String, String> getTags(String header) {
+
+		Map<String, String> tags = new LinkedHashMap<String, String>();
+		for (String tag : header.substring(header.indexOf(':') + 1).split(";")) {
+			int eq = tag.indexOf('=');
+			if (eq > 0) {
+				tags.put(tag.substring(0, eq).trim(), tag.substring(eq + 1).replaceAll("\\s", ""));
+			}
+		}
+		return tags;
+	}
+
+	private static String getName(String header) {
+		return header.substring(0, header.indexOf(':')).trim().toLowerCase();
+	}
+
+	private static String canonicalize(Canonicalization canonicalization, String header) {
+
+		int colon = header.indexOf(':');
+		return canonicalization.canonicalizeHeader(header.substring(0, colon), header.substring(colon + 1));
+	}
+
+	private static String withoutSignatureValue(String header) {
+		return SIGNATUREVALUE.matcher(header).replaceFirst("$1");
+	}
+
+	private static byte[] removeHeader(byte[] message, String headerStart) throws Exception {
+
+		StringBuilder result = new StringBuilder();
+		for (String header : getHeaders(message)) {
+			if (!header.startsWith(headerStart)) {
+				result.append(header).append("\r\n");
+			}
+		}
+		String s = new String(message, "ISO-8859-1");
+		return result.append(s.substring(s.indexOf("\r\n\r\n") + 2)).toString().getBytes("ISO-8859-1");
+	}
+}
@@ -0,0 +1,225 @@
+/* 
+ * Copyright 2008 The Apache Software Foundation or its licensors, as
+ * applicable.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A licence was granted to the ASF by Florian Sager on 30 November 2008
+ */
+
+package de.agitos.dkim;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import javax.activation.DataHandler;
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+
+/*
+ * Measures the bytes allocated per message by the header canonicalization, the body hashing and the
+ * complete signing in SMTPDKIMMessage.writeTo() on a fixed corpus and exits with 1 if one of them exceeds
+ * its budget, so allocation regressions break the build (ant runAllocationTest).
+ *
+ * The budgets in bytes per message can be overridden by the system properties dkim.budget.header,
+ * dkim.budget.body and dkim.budget.signing. Needs a JVM that supports com.sun.management.ThreadMXBean.
+ *
+ * Usage: java de.agitos.dkim.AllocationTest [<iterations>]
+ */
+
+public class AllocationTest {
+
+	// about 1.2 times the allocations on JDK 8 (header 15.0-15.5 KB, body 8.2 KB, full signing 165-168 KB),
+	// newer JDKs with compact strings allocate less; lower them when an optimization saves allocations
+	private static long HEADERBUDGET = 19 * 1024;
+	private static long BODYBUDGET = 10 * 1024;
+	private static long SIGNINGBUDGET = 204 * 1024;
+
+	private static com.sun.management.ThreadMXBean threadMXBean;
+
+	public static void main(String args[]) throws Exception {
+
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean) || !((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+			TestUtil.msgAndExit("The JVM doesn't measure the allocated memory per thread");
+		}
+		threadMXBean = (com.sun.management.ThreadMXBean) bean;
+		threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+		KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+		keyPairGenerator.initialize(2048);
+		DKIMSigner dkimSigner = new DKIMSigner("example.com", "alloc", keyPairGenerator.generateKeyPair().getPrivate());
+		dkimSigner.setIdentity("alloctest@example.com");
+		dkimSigner.setHeaderCanonicalization(Canonicalization.RELAXED);
+		dkimSigner.setBodyCanonicalization(Canonicalization.RELAXED);
+
+		Session session = Session.getInstance(new Properties(), null);
+		final List<SMTPDKIMMessage> corpus = corpus(session, dkimSigner);
+
+		// the headers and the encoded bodies as the signer sees them
+		final List<String[]> headers = new ArrayList<String[]>();
+		final List<byte[]> bodies = new ArrayList<byte[]>();
+		for (SMTPDKIMMessage msg : corpus) {
+			ByteArrayOutputStream signed = new ByteArrayOutputStream();
+			msg.writeTo(signed);
+			byte[] b = signed.toByteArray();
+			int bodyStart = 0;
+			while (!(b[bodyStart] == '\r' && b[bodyStart+1] == '\n' && b[bodyStart+2] == '\r' && b[bodyStart+3] == '\n')) {
+				bodyStart++;
+			}
+			byte[] body = new byte[b.length - bodyStart - 4];
+			System.arraycopy(b, bodyStart + 4, body, 0, body.length);
+			bodies.add(body);
+
+			Enumeration<?> headerLines = msg.getAllHeaderLines();
+			while (headerLines.hasMoreElements()) {
+				headers.add(DKIMUtil.splitHeader((String) headerLines.nextElement()));
+			}
+		}
+		final int messages = corpus.size();
+
+		final MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+		final OutputStream nullStream = new OutputStream() {
+			public void write(int b) {}
+			public void write(byte[] b, int off, int len) {}
+		};
+
+		boolean withinBudget = true;
+
+		withinBudget &= measure("header canonicalization", budget("dkim.budget.header", HEADERBUDGET), iterations, messages, new Task() {
+			public void run() throws Exception {
+				for (String[] header : headers) {
+					Canonicalization.SIMPLE.canonicalizeHeader(header[0], header[1]);
+					Canonicalization.RELAXED.canonicalizeHeader(header[0], header[1]);
+				}
+			}
+		});
+
+		withinBudget &= measure("body hashing", budget("dkim.budget.body", BODYBUDGET), iterations, messages, new Task() {
+			public void run() throws Exception {
+				for (byte[] body : bodies) {
+					BodyHasher bodyHasher = new BodyHasher(messageDigest);
+					OutputStream canonicalizer = Canonicalization.RELAXED.getBodyCanonicalizer(bodyHasher);
+					canonicalizer.write(body, 0, body.length);
+					canonicalizer.close();
+					bodyHasher.digest();
+				}
+			}
+		});
+
+		withinBudget &= measure("full signing", budget("dkim.budget.signing", SIGNINGBUDGET), iterations / 10, messages, new Task() {
+			public void run() throws Exception {
+				for (SMTPDKIMMessage msg : corpus) {
+					msg.writeTo(nullStream);
+				}
+			}
+		});
+
+		if (!withinBudget) {
+			System.out.println("Allocation budget exceeded");
+			System.exit(1);
+		}
+	}
+
+	private interface Task {
+		public void run() throws Exception;
+	}
+
+	// runs the task after a warm-up and compares the bytes allocated per message by this thread with the budget
+	private static boolean measure(String name, long budget, int iterations, int messages, Task task) throws Exception {
+
+		for (int i = 0; i < iterations; i++) {
+			task.run();
+		}
+
+		long threadId = Thread.currentThread().getId();
+		long before = threadMXBean.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < iterations; i++) {
+			task.run();
+		}
+		long perMessage = (threadMXBean.getThreadAllocatedBytes(threadId) - before) / ((long) iterations * messages);
+
+		boolean withinBudget = perMessage <= budget;
+		System.out.println((withinBudget ? "ok       " : "EXCEEDED ")+name+": "+perMessage+" bytes per message, budget "+budget);
+		return withinBudget;
+	}
+
+	private static long budget(String property, long defaultBudget) {
+
+		String value = System.getProperty(property);
+		return value != null ? Long.parseLong(value) : defaultBudget;
+	}
+
+	// a fixed mix of plain text, text with whitespace runs and a multipart message with an attachment
+	private static List<SMTPDKIMMessage> corpus(Session session, DKIMSigner dkimSigner) throws Exception {
+
+		List<SMTPDKIMMessage> corpus = new ArrayList<SMTPDKIMMessage>();
+
+		SMTPDKIMMessage msg = message(session, dkimSigner, 1);
+		msg.setText(TestUtil.bodyText);
+		corpus.add(msg);
+
+		msg = message(session, dkimSigner, 2);
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 200; i++) {
+			text.append("Line ").append(i).append(" with  double spaces\tand a tab  \r\n");
+		}
+		msg.setText(text.toString());
+		corpus.add(msg);
+
+		msg = message(session, dkimSigner, 3);
+		MimeMultipart multipart = new MimeMultipart();
+		MimeBodyPart textPart = new MimeBodyPart();
+		textPart.setText(TestUtil.bodyText);
+		multipart.addBodyPart(textPart);
+		byte[] attachment = new byte[64 * 1024];
+		new Random(1).nextBytes(attachment);
+		MimeBodyPart attachmentPart = new MimeBodyPart();
+		attachmentPart.setDataHandler(new DataHandler(new ByteArrayDataSource(attachment, "application/octet-stream")));
+		attachmentPart.setFileName("attachment.bin");
+		multipart.addBodyPart(attachmentPart);
+		msg.setContent(multipart);
+		corpus.add(msg);
+
+		for (SMTPDKIMMessage m : corpus) {
+			m.saveChanges();
+		}
+		return corpus;
+	}
+
+	private static SMTPDKIMMessage message(Session session, DKIMSigner dkimSigner, int i) throws Exception {
+
+		SMTPDKIMMessage msg = new SMTPDKIMMessage(session, dkimSigner);
+		msg.setFrom(new InternetAddress("alloctest@example.com"));
+		msg.setRecipients(Message.RecipientType.TO, InternetAddress.parse("rcpt"+i+"@example.org", false));
+		msg.setSubject("DKIM for JavaMail: AllocationTest message "+i);
+		msg.setSentDate(new Date(1230000000000L));
+		msg.setHeader("Reply-To", "noreply@example.com");
+		return msg;
+	}
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2008 The Apache Software Foundation or its licensors, as
+ * applicable.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A licence was granted to the ASF by Florian Sager on 30 November 2008
+ */
+
+package de.agitos.dkim;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.sun.mail.util.CRLFOutputStream;
+
+/*
+ * Compares the streaming BodyCanonicalizer byte for byte with the String based Canonicalization.canonicalizeBody()
+ * of both algorithms: CR, LF, SP and HTAB at every position of an eight byte word, trailing whitespace and empty
+ * lines, the empty body and random bodies written in random pieces at random array offsets.
+ * Exits with 1 on the first failed check.
+ *
+ * Usage: java de.agitos.dkim.BodyCanonicalizerTest [random bodies]
+ */
+
+public class BodyCanonicalizerTest {
+
+	private static Canonicalization[] CANONICALIZATIONS = new Canonicalization[] {Canonicalization.SIMPLE, Canonicalization.RELAXED};
+	private static String[] SPECIALS = new String[] {"\r", "\n", "\r\n", " ", "\t", "  ", " \t", "\u000b", "\f", " \r\n", "\t\r\n"};
+	private static byte[] ALPHABET = "ab=.  \t\t\r\n\r\n\u000b\f".getBytes();
+
+	private static Random random = new Random(4871);
+	private static String failure;
+
+	public static void main(String args[]) throws Exception {
+
+		int randomBodies = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+		// empty bodies: nothing written, an empty write and only empty lines
+		boolean passed = true;
+		for (Canonicalization canonicalization : CANONICALIZATIONS) {
+			passed &= compare(canonicalization, new byte[0], 0, new int[0]);
+			passed &= compare(canonicalization, new byte[0], 0, new int[] {0});
+			passed &= compare(canonicalization, "\r\n\r\n".getBytes(), 0, new int[] {4});
+		}
+		TestUtil.check("empty bodies"+failure(), passed);
+
+		// every special sequence at every position of the first two words, the words starting at every array offset
+		passed = true;
+		for (Canonicalization canonicalization : CANONICALIZATIONS) {
+			for (String special : SPECIALS) {
+				for (int length = 0; length <= 24; length++) {
+					for (int position = 0; position <= length; position++) {
+						byte[] body = insert("abcdefghijklmnopqrstuvwx".substring(0, length), special, position).getBytes("ISO-8859-1");
+						for (int offset = 0; offset < 8; offset++) {
+							passed &= compare(canonicalization, body, offset, new int[] {body.length});
+						}
+					}
+				}
+			}
+		}
+		TestUtil.check("CR, LF, SP and HTAB at every offset mod 8"+failure(), passed);
+
+		// trailing whitespace and empty lines, with and without a final line terminator
+		passed = true;
+		String[] endings = new String[] {"", " ", "\t", "  \t ", "\r\n", " \r\n", "\t\r\n", "\r\n\r\n", "\r\n \r\n", "\r\n\t\r\n\r\n", " \r\n \r\n ", "\n\n", "\r", "\r\r\n"};
+		for (Canonicalization canonicalization : CANONICALIZATIONS) {
+			for (String ending : endings) {
+				for (int length = 0; length <= 17; length++) {
+					byte[] body = ("Zeile  mit\tText und Leerzeichen".substring(0, length)+ending).getBytes("ISO-8859-1");
+					for (int offset = 0; offset < 8; offset++) {
+						passed &= compare(canonicalization, body, offset, new int[] {body.length});
+						passed &= compare(canonicalization, body, offset, pieces(body.length));
+					}
+				}
+			}
+		}
+		TestUtil.check("trailing whitespace and empty lines"+failure(), passed);
+
+		// random bodies of the special characters, written in random pieces
+		passed = true;
+		for (int i = 0; i < randomBodies && passed; i++) {
+			byte[] body = new byte[random.nextInt(80)];
+			for (int j = 0; j < body.length; j++) {
+				body[j] = random.nextInt(4) == 0 ? (byte) (0x21 + random.nextInt(0xde)) : ALPHABET[random.nextInt(ALPHABET.length)];
+			}
+			Canonicalization canonicalization = CANONICALIZATIONS[i % 2];
+			passed &= compare(canonicalization, body, random.nextInt(8), random.nextBoolean() ? new int[] {body.length} : pieces(body.length));
+		}
+		TestUtil.check(randomBodies+" random bodies"+failure(), passed);
+
+		System.out.println("BodyCanonicalizer checks passed");
+	}
+
+	// writes the body in pieces of the given lengths from an array that starts offset bytes before it
+	private static boolean compare(Canonicalization canonicalization, byte[] body, int offset, int[] pieces) throws Exception {
+
+		byte[] padded = new byte[offset + body.length + 8];
+		Arrays.fill(padded, (byte) 'p');
+		System.arraycopy(body, 0, padded, offset, body.length);
+
+		ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+		BodyCanonicalizer canonicalizer = new BodyCanonicalizer(streamed, canonicalization == Canonicalization.RELAXED);
+		int position = offset;
+		for (int piece : pieces) {
+			canonicalizer.write(padded, position, piece);
+			position += piece;
+		}
+		canonicalizer.close();
+
+		ByteArrayOutputStream crlfBody = new ByteArrayOutputStream();
+		CRLFOutputStream crlfos = new CRLFOutputStream(crlfBody);
+		crlfos.write(body);
+		crlfos.flush();
+		byte[] expected = canonicalization.canonicalizeBody(crlfBody.toString("ISO-8859-1")).getBytes("ISO-8859-1");
+
+		if (!Arrays.equals(expected, streamed.toByteArray())) {
+			failure = canonicalization.getType()+" body \""+escape(body)+"\" at offset "+offset+" in "+pieces.length+" pieces: expected \""
+				+escape(expected)+"\" but was \""+escape(streamed.toByteArray())+"\"";
+			return false;
+		}
+		return true;
+	}
+
+	private static int[] pieces(int length) {
+
+		int[] pieces = new int[length == 0 ? 1 : 1 + random.nextInt(length)];
+		for (int i = 0; i < pieces.length - 1; i++) {
+			pieces[i] = random.nextInt(length + 1);
+			length -= pieces[i];
+		}
+		pieces[pieces.length - 1] = length;
+		return pieces;
+	}
+
+	private static String insert(String text, String special, int position) {
+		return text.substring(0, position)+special+text.substring(position);
+	}
+
+	private static String failure() {
+		return failure == null ? "" : ": "+failure;
+	}
+
+	private static String escape(byte[] b) {
+
+		StringBuffer sb = new StringBuffer();
+		for (byte c : b) {
+			if (c == '\r') {
+				sb.append("\\r");
+			} else if (c == '\n') {
+				sb.append("\\n");
+			} else if (c == '\t') {
+				sb.append("\\t");
+			} else if (c < 0x20 || c > 0x7e) {
+				sb.append(String.format("\\x%02x", c & 0xff));
+			} else {
+				sb.append((char) c);
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,185 @@
+/* 
+ * Copyright 2008 The Apache Software Foundation or its licensors, as
+ * applicable.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A licence was granted to the ASF by Florian Sager on 30 November 2008
+ */
+
+package de.agitos.dkim;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Checks the BodyHashStore: entries are found along the probe sequence, a colliding fingerprint hash is
+ * rejected by the body length and CRC32, a full table replaces entries without ever returning a wrong hash,
+ * a torn slot (e.g. a crashed writer) is rejected by its checksum and entries written by another process
+ * are reused. Exits with 1 on the first failed check.
+ *
+ * Usage: java de.agitos.dkim.BodyHashStoreTest
+ */
+
+public class BodyHashStoreTest {
+
+	private static int SLOTS = 16;
+	private static int SLOTSIZE = 80;
+	private static int HEADERSIZE = 24;
+	private static String HASHALGORITHM = "sha-256";
+
+	public static void main(String args[]) throws Exception {
+
+		// the second process reads the entries of the first one and adds its own
+		if (args.length == 2 && args[0].equals("child")) {
+			BodyHashStore store = new BodyHashStore(new File(args[1]), SLOTS);
+			TestUtil.check("child: entry of the parent process reused", Arrays.equals(lookup(store, "parent"), hash("parent")));
+			store(store, "child");
+			store.close();
+			System.exit(0);
+		}
+
+		File file = File.createTempFile("bodyhashes", ".store");
+		file.delete();
+		try {
+			BodyHashStore store = new BodyHashStore(file, SLOTS);
+
+			// probing: a full table finds all of its entries
+			List<String> bodies = new ArrayList<String>();
+			for (int i = 0; i < SLOTS / 2; i++) {
+				bodies.add("body "+i);
+				store(store, "body "+i);
+			}
+			int found = 0;
+			for (String body : bodies) {
+				if (Arrays.equals(lookup(store, body), hash(body))) {
+					found++;
+				}
+			}
+			TestUtil.check("all "+bodies.size()+" entries found by probing", found == bodies.size());
+
+			// a colliding fingerprint hash is rejected by the length and the CRC32 of the body
+			long[] hashedLength = new long[1];
+			BodyHashStore.BodyFingerprint fingerprint = fingerprint(store, "body 0");
+			TestUtil.check("same hash with another length misses", store.lookup(collision(fingerprint, fingerprint.getChecksum(), 7), -1, HASHALGORITHM, Canonicalization.RELAXED, hashedLength) == null);
+			TestUtil.check("same hash with another CRC32 misses", store.lookup(collision(fingerprint, fingerprint.getChecksum() ^ 1, 6), -1, HASHALGORITHM, Canonicalization.RELAXED, hashedLength) == null);
+			TestUtil.check("same hash, length and CRC32 hits", store.lookup(collision(fingerprint, fingerprint.getChecksum(), 6), -1, HASHALGORITHM, Canonicalization.RELAXED, hashedLength) != null);
+
+			// the same body with another limit or canonicalization is a different entry
+			TestUtil.check("other limit misses", store.lookup(fingerprint, 3, HASHALGORITHM, Canonicalization.RELAXED, hashedLength) == null);
+			TestUtil.check("other canonicalization misses", store.lookup(fingerprint, -1, HASHALGORITHM, Canonicalization.SIMPLE, hashedLength) == null);
+			TestUtil.check("unknown body misses", lookup(store, "body x") == null);
+
+			// the fingerprint is keyed by the random seed of the store file
+			File otherFile = File.createTempFile("bodyhashes", ".store");
+			otherFile.delete();
+			BodyHashStore otherStore = new BodyHashStore(otherFile, SLOTS);
+			TestUtil.check("other store, other fingerprint", fingerprint(otherStore, "body 0").getHash() != fingerprint.getHash());
+			otherStore.close();
+			otherFile.delete();
+
+			// replacing: a table that is too small loses entries, but never returns the hash of another body
+			for (int i = 0; i < SLOTS * 8; i++) {
+				store(store, "more "+i);
+			}
+			boolean wrong = false;
+			int kept = 0;
+			for (int i = 0; i < SLOTS * 8; i++) {
+				byte[] hash = lookup(store, "more "+i);
+				wrong |= hash != null && !Arrays.equals(hash, hash("more "+i));
+				kept += hash != null ? 1 : 0;
+			}
+			TestUtil.check("replaced entries return no wrong hash", !wrong);
+			TestUtil.check("the latest entries are kept ("+kept+")", Arrays.equals(lookup(store, "more "+(SLOTS * 8 - 1)), hash("more "+(SLOTS * 8 - 1))));
+
+			// torn slot: every slot with a damaged byte is rejected by its checksum
+			store(store, "torn");
+			TestUtil.check("entry before tearing found", Arrays.equals(lookup(store, "torn"), hash("torn")));
+			RandomAccessFile raw = new RandomAccessFile(file, "rw");
+			for (int i = 0; i < SLOTS; i++) {
+				long position = HEADERSIZE + (long) i * SLOTSIZE + 70;
+				raw.seek(position);
+				int b = raw.read();
+				raw.seek(position);
+				raw.write(b ^ 0x01);
+			}
+			raw.close();
+			TestUtil.check("torn slot rejected", lookup(store, "torn") == null);
+			store(store, "torn");
+			TestUtil.check("torn slot rewritten", Arrays.equals(lookup(store, "torn"), hash("torn")));
+
+			// cross-process reuse
+			store(store, "parent");
+			String java = System.getProperty("java.home")+File.separator+"bin"+File.separator+"java";
+			Process child = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), BodyHashStoreTest.class.getName(), "child", file.getPath())
+					.redirectErrorStream(true).start();
+			byte[] output = new byte[4096];
+			int len;
+			while ((len = child.getInputStream().read(output)) > 0) {
+				System.out.write(output, 0, len);
+			}
+			TestUtil.check("child process succeeded", child.waitFor() == 0);
+			TestUtil.check("entry of the child process reused", Arrays.equals(lookup(store, "child"), hash("child")));
+			store.close();
+
+			// reopening keeps the entries
+			store = new BodyHashStore(file, SLOTS);
+			TestUtil.check("entries survive reopening", Arrays.equals(lookup(store, "parent"), hash("parent")));
+			store.close();
+		} finally {
+			file.delete();
+		}
+		System.out.println("BodyHashStore checks passed");
+	}
+
+	private static void store(BodyHashStore store, String body) throws Exception {
+		store.store(fingerprint(store, body), -1, HASHALGORITHM, Canonicalization.RELAXED, body.length(), hash(body));
+	}
+
+	private static byte[] lookup(BodyHashStore store, String body) throws Exception {
+		long[] hashedLength = new long[1];
+		return store.lookup(fingerprint(store, body), -1, HASHALGORITHM, Canonicalization.RELAXED, hashedLength);
+	}
+
+	private static BodyHashStore.BodyFingerprint fingerprint(BodyHashStore store, String body) throws Exception {
+		BodyHashStore.BodyFingerprint fingerprint = store.createFingerprint();
+		fingerprint.write(body.getBytes("US-ASCII"));
+		return fingerprint;
+	}
+
+	// a fingerprint of another body with the same hash
+	private static BodyHashStore.BodyFingerprint collision(final BodyHashStore.BodyFingerprint fingerprint, final int checksum, final long length) {
+		return new BodyHashStore.BodyFingerprint(0) {
+			public long getHash() {
+				return fingerprint.getHash();
+			}
+
+			public int getChecksum() {
+				return checksum;
+			}
+
+			public long getLength() {
+				return length;
+			}
+		};
+	}
+
+	// a distinct stand-in for the body hash
+	private static byte[] hash(String body) throws Exception {
+		return MessageDigest.getInstance("SHA-256").digest(("hash of "+body).getBytes("US-ASCII"));
+	}
+}
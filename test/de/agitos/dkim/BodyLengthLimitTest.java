@@ -0,0 +1,126 @@
+/*
+ * Copyright 2008 The Apache Software Foundation or its licensors, as
+ * applicable.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A licence was granted to the ASF by Florian Sager on 30 November 2008
+ */
+
+package de.agitos.dkim;
+
+import java.security.KeyPair;
+
+/*
+ * Checks the signed body length: l= states the number of hashed bytes of the canonicalized body, limited by
+ * setMaxSignedBodyLength() also across the slices of a large body, content appended or changed behind l=
+ * still verifies, a change within l= or a body cut below l= fails. Exits with 1 on the first failed check.
+ *
+ * Usage: java de.agitos.dkim.BodyLengthLimitTest
+ */
+
+public class BodyLengthLimitTest {
+
+	private static String FOOTER = "--\r\nThe footer  of a mailing list\r\n";
+
+	public static void main(String args[]) throws Exception {
+
+		KeyPair keyPair = TestUtil.generateKeyPair();
+		DKIMVerifier verifier = TestUtil.createVerifier(keyPair);
+		StringBuffer largeText = new StringBuffer();
+		for (int i = 0; i < 4000; i++) {
+			largeText.append("Line ").append(i).append(" of a large body  with\twhitespace \r\n");
+		}
+
+		for (Canonicalization canonicalization : new Canonicalization[] {Canonicalization.SIMPLE, Canonicalization.RELAXED}) {
+			DKIMSigner signer = new DKIMSigner("example.com", "default", keyPair.getPrivate());
+			signer.setBodyCanonicalization(canonicalization);
+			String type = canonicalization.getType()+": ";
+
+			// no l= by default, the complete body with setLengthParam()
+			byte[] signed = TestUtil.sign(TestUtil.createMessage(signer, "Complete body", TestUtil.bodyText));
+			TestUtil.check(type+"no l= by default", TestUtil.getTag(signed, "DKIM-Signature", "l") == null);
+			signer.setLengthParam(true);
+			signed = TestUtil.sign(TestUtil.createMessage(signer, "Complete body", TestUtil.bodyText));
+			TestUtil.check(type+"l= of the complete body", length(signed) == canonicalBodyLength(signed, canonicalization));
+			signer.setLengthParam(false);
+
+			// the leading 100 bytes
+			signer.setMaxSignedBodyLength(100);
+			signed = TestUtil.sign(TestUtil.createMessage(signer, "Leading part", TestUtil.bodyText));
+			TestUtil.check(type+"l=100", length(signed) == 100);
+			check(type+"signed message", verifier.verify(signed), null);
+			check(type+"appended footer", verifier.verify(append(signed, FOOTER)), null);
+			check(type+"changed behind l=", verifier.verify(replaceInBody(signed, "reputation", "REPUTATION")), null);
+			check(type+"changed within l=", verifier.verify(replaceInBody(signed, "Hello", "Hallo")), "The body hash doesn't match");
+			check(type+"body cut below l=", verifier.verify(cutBody(signed, 50)), "The body is shorter than l=");
+
+			// a limit beyond the body signs the complete body
+			signer.setMaxSignedBodyLength(1000000);
+			signed = TestUtil.sign(TestUtil.createMessage(signer, "Short body", TestUtil.bodyText));
+			TestUtil.check(type+"l= of a body shorter than the limit", length(signed) == canonicalBodyLength(signed, canonicalization));
+			check(type+"short body", verifier.verify(signed), null);
+
+			// l=0 signs no body at all
+			signer.setMaxSignedBodyLength(0);
+			signed = TestUtil.sign(TestUtil.createMessage(signer, "No body", TestUtil.bodyText));
+			TestUtil.check(type+"l=0", length(signed) == 0);
+			check(type+"replaced body with l=0", verifier.verify(replaceInBody(signed, "Hello", "Hallo")), null);
+
+			// a limit across the slices in which a large body is canonicalized
+			signer.setMaxSignedBodyLength(70000);
+			signed = TestUtil.sign(TestUtil.createMessage(signer, "Large body", largeText.toString()));
+			TestUtil.check(type+"l=70000 of a large body", length(signed) == 70000);
+			check(type+"large body with footer", verifier.verify(append(signed, FOOTER)), null);
+			check(type+"large body changed within l=", verifier.verify(replaceInBody(signed, "Line 1000 ", "Line 1001 ")), "The body hash doesn't match");
+		}
+
+		System.out.println("BodyLengthLimit checks passed");
+	}
+
+	private static void check(String name, VerificationResult result, String failureReason) {
+
+		if (failureReason == null) {
+			TestUtil.check(name+" verifies ("+result+")", result.isPassed());
+		} else {
+			TestUtil.check(name+" fails ("+result+")", !result.isPassed() && result.getFailureReason().startsWith(failureReason));
+		}
+	}
+
+	private static long length(byte[] signed) throws Exception {
+		return Long.parseLong(TestUtil.getTag(signed, "DKIM-Signature", "l"));
+	}
+
+	private static int canonicalBodyLength(byte[] signed, Canonicalization canonicalization) throws Exception {
+
+		String message = new String(signed, "ISO-8859-1");
+		return canonicalization.canonicalizeBody(message.substring(message.indexOf("\r\n\r\n") + 4)).length();
+	}
+
+	private static byte[] append(byte[] signed, String text) throws Exception {
+		return (new String(signed, "ISO-8859-1")+text).getBytes("ISO-8859-1");
+	}
+
+	private static byte[] replaceInBody(byte[] signed, String text, String replacement) throws Exception {
+
+		String message = new String(signed, "ISO-8859-1");
+		int bodyStart = message.indexOf("\r\n\r\n") + 4;
+		return (message.substring(0, bodyStart)+message.substring(bodyStart).replaceFirst(text, replacement)).getBytes("ISO-8859-1");
+	}
+
+	private static byte[] cutBody(byte[] signed, int length) throws Exception {
+
+		String message = new String(signed, "ISO-8859-1");
+		return message.substring(0, message.indexOf("\r\n\r\n") + 4 + length).getBytes("ISO-8859-1");
+	}
+}
@@ -0,0 +1,106 @@
+/* 
+ * Copyright 2008 The Apache Software Foundation or its licensors, as
+ * applicable.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A licence was granted to the ASF by Florian Sager on 30 November 2008
+ */
+
+package de.agitos.dkim;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+
+/*
+ * This example sends a campaign by a BulkSender with 1, 2, 4 and 8 pooled connections to an
+ * in-process SMTPSink that needs some milliseconds per message like a real server, the throughput
+ * grows with the number of connections. The sink verifies every signature.
+ *
+ * Usage: java de.agitos.dkim.BulkSendExample [<messages per run> [<server delay in ms>]]
+ */
+
+public class BulkSendExample {
+
+	public static void main(String args[]) throws Exception {
+
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 400;
+		long responseDelay = args.length > 1 ? Long.parseLong(args[1]) : 20;
+
+		KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+		keyPairGenerator.initialize(2048);
+		KeyPair keyPair = keyPairGenerator.generateKeyPair();
+
+		final DKIMVerifier verifier = new DKIMVerifier();
+		verifier.setDNSLookup(false);
+		verifier.addPublicKey("example.com", "bulk", keyPair.getPublic());
+		final AtomicLong failed = new AtomicLong();
+		SMTPSink sink = new SMTPSink(new SMTPSink.MessageHandler() {
+			public void messageReceived(byte[] message) {
+				if (!verifier.verify(message).isPassed()) {
+					failed.incrementAndGet();
+				}
+			}
+		});
+		sink.setResponseDelay(responseDelay);
+		sink.start();
+
+		Properties props = new Properties();
+		props.put("mail.smtp.host", "localhost");
+		props.put("mail.smtp.port", String.valueOf(sink.getPort()));
+		Session session = Session.getInstance(props, null);
+
+		// one signer for all messages
+		DKIMSigner dkimSigner = new DKIMSigner("example.com", "bulk", keyPair.getPrivate());
+		dkimSigner.setIdentity("campaign@example.com");
+		dkimSigner.setHeaderCache(new HeaderCache(1000));
+
+		for (int connections = 1; connections <= 8; connections *= 2) {
+			BulkSender bulkSender = new BulkSender(session, connections);
+			bulkSender.setMaxMessagesPerConnection(50);
+
+			long start = System.nanoTime();
+			List<Future<?>> results = new ArrayList<Future<?>>();
+			for (int i = 0; i < messages; i++) {
+				Message msg = new SMTPDKIMMessage(session, dkimSigner);
+				msg.setFrom(new InternetAddress("campaign@example.com"));
+				msg.setRecipients(Message.RecipientType.TO, InternetAddress.parse("rcpt"+i+"@example.org", false));
+				msg.setSubject("DKIM for JavaMail: BulkSendExample Testmessage");
+				msg.setText(TestUtil.bodyText);
+				results.add(bulkSender.send(msg));
+			}
+			for (Future<?> result : results) {
+				result.get();
+			}
+			long elapsed = System.nanoTime() - start;
+			bulkSender.close();
+
+			System.out.printf("%d connections: %.1f messages/s, %d connects%n", connections, messages * 1e9 / elapsed, bulkSender.getConnectCount());
+		}
+
+		sink.stop();
+		System.out.println("signatures failed: "+failed.get()+", header cache hit ratio: "+dkimSigner.getHeaderCache().getHitRatio());
+		if (failed.get() > 0) {
+			System.exit(1);
+		}
+	}
+}
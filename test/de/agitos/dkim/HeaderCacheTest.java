@@ -0,0 +1,163 @@
+/*
+ * Copyright 2008 The Apache Software Foundation or its licensors, as
+ * applicable.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A licence was granted to the ASF by Florian Sager on 30 November 2008
+ */
+
+package de.agitos.dkim;
+
+import java.security.KeyPair;
+import java.util.Date;
+import java.util.Properties;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+
+/*
+ * Checks the HeaderCache: a repeated header line is a hit with the canonicalized form and the z= value of an
+ * uncached signer, another canonicalization replaces the entry, a full cache evicts the entries that weren't
+ * hit since the last sweep first, and a signer with the cache counts a hit for every stable header of the
+ * second message and signs the same DKIM-Signature as a signer without the cache. Exits with 1 on the first
+ * failed check.
+ *
+ * Usage: java de.agitos.dkim.HeaderCacheTest
+ */
+
+public class HeaderCacheTest {
+
+	private static String LISTUNSUBSCRIBE = "List-Unsubscribe: <mailto:unsubscribe@example.com?subject=list;id=42>,\r\n\t<https://example.com/unsubscribe?id=42>";
+
+	public static void main(String args[]) throws Exception {
+
+		// a hit returns the entry of the miss
+		HeaderCache cache = new HeaderCache(3);
+		HeaderCache.Entry entry = cache.lookup(LISTUNSUBSCRIBE, Canonicalization.RELAXED);
+		TestUtil.check("first lookup misses", cache.getMissCount() == 1 && cache.getHitCount() == 0);
+		TestUtil.check("second lookup hits the same entry", cache.lookup(LISTUNSUBSCRIBE, Canonicalization.RELAXED) == entry && cache.getHitCount() == 1);
+		String[] headerParts = DKIMUtil.splitHeader(LISTUNSUBSCRIBE);
+		TestUtil.check("name "+entry.getName(), entry.getName().equals("List-Unsubscribe"));
+		TestUtil.check("canonicalized header", entry.getCanonicalizedHeader().equals(Canonicalization.RELAXED.canonicalizeHeader(headerParts[0], headerParts[1])));
+		StringBuilder zParamValue = new StringBuilder();
+		DKIMUtil.appendQuotedPrintable(zParamValue, headerParts[1], true);
+		TestUtil.check("z= value "+entry.getZParamValue(), entry.getZParamValue().equals(zParamValue.toString()));
+
+		// another canonicalization replaces the entry
+		HeaderCache.Entry simple = cache.lookup(LISTUNSUBSCRIBE, Canonicalization.SIMPLE);
+		TestUtil.check("other canonicalization misses", simple != entry && cache.getMissCount() == 2 && cache.size() == 1);
+		TestUtil.check("simple canonicalized header", simple.getCanonicalizedHeader().equals(LISTUNSUBSCRIBE));
+
+		// second chance: the entry hit since the last sweep survives, the oldest one that wasn't is evicted
+		cache.clear();
+		cache.resetStatistics();
+		cache.lookup("A: 1", Canonicalization.RELAXED);
+		cache.lookup("B: 2", Canonicalization.RELAXED);
+		cache.lookup("C: 3", Canonicalization.RELAXED);
+		cache.lookup("A: 1", Canonicalization.RELAXED);
+		cache.lookup("D: 4", Canonicalization.RELAXED);
+		TestUtil.check("one eviction at the bound", cache.size() == 3 && cache.getEvictionCount() == 1);
+		cache.resetStatistics();
+		cache.lookup("A: 1", Canonicalization.RELAXED);
+		cache.lookup("C: 3", Canonicalization.RELAXED);
+		cache.lookup("D: 4", Canonicalization.RELAXED);
+		TestUtil.check("hit entry kept", cache.getHitCount() == 3 && cache.getMissCount() == 0);
+		cache.lookup("B: 2", Canonicalization.RELAXED);
+		TestUtil.check("entry without hit evicted", cache.getMissCount() == 1);
+
+		// the signer looks up the stable headers, the variable ones (To, Date, Message-ID) aren't cached
+		KeyPair keyPair = TestUtil.generateKeyPair();
+		DKIMSigner cachedSigner = createSigner(keyPair);
+		cache = new HeaderCache(100);
+		cachedSigner.setHeaderCache(cache);
+		DKIMSigner signer = createSigner(keyPair);
+
+		byte[] signed = TestUtil.sign(createMessage(cachedSigner, "<first@example.com>"));
+		int stableHeaders = count(TestUtil.getTag(signed, "DKIM-Signature", "h"), new String[] {"To", "Date", "Message-ID"});
+		TestUtil.check("first message: "+cache.getMissCount()+" misses for "+stableHeaders+" stable headers", cache.getMissCount() == stableHeaders && cache.getHitCount() == 0);
+		signed = TestUtil.sign(createMessage(cachedSigner, "<second@example.com>"));
+		TestUtil.check("second message: "+cache.getHitCount()+" hits", cache.getHitCount() == stableHeaders && cache.getMissCount() == stableHeaders);
+
+		// the same signature as without the cache, signed within the same second for the same t=
+		String cachedSignature = null;
+		String uncachedSignature = null;
+		for (int i = 0; i < 3; i++) {
+			byte[] cachedMessage = TestUtil.sign(createMessage(cachedSigner, "<same@example.com>"));
+			byte[] uncachedMessage = TestUtil.sign(createMessage(signer, "<same@example.com>"));
+			cachedSignature = signatureHeader(cachedMessage);
+			uncachedSignature = signatureHeader(uncachedMessage);
+			if (TestUtil.getTag(cachedMessage, "DKIM-Signature", "t").equals(TestUtil.getTag(uncachedMessage, "DKIM-Signature", "t"))) {
+				break;
+			}
+		}
+		TestUtil.check("same DKIM-Signature as without the cache", cachedSignature.equals(uncachedSignature));
+		VerificationResult result = TestUtil.createVerifier(keyPair).verify(signed);
+		TestUtil.check("second message verifies ("+result+")", result.isPassed());
+
+		System.out.println("HeaderCache checks passed");
+	}
+
+	private static DKIMSigner createSigner(KeyPair keyPair) throws Exception {
+
+		DKIMSigner signer = new DKIMSigner("example.com", "default", keyPair.getPrivate());
+		signer.addHeaderToSign("List-Unsubscribe");
+		signer.setZParam(true);
+		return signer;
+	}
+
+	// a message with fixed Date and Message-ID
+	private static SMTPDKIMMessage createMessage(DKIMSigner signer, final String messageID) throws MessagingException {
+
+		SMTPDKIMMessage message = new SMTPDKIMMessage(Session.getInstance(new Properties()), signer) {
+			protected void updateMessageID() throws MessagingException {
+				setHeader("Message-ID", messageID);
+			}
+		};
+		message.setFrom(new InternetAddress("\"Example Sender\" <sender@example.com>"));
+		message.setRecipients(Message.RecipientType.TO, "rcpt@example.org");
+		message.setSentDate(new Date(1230000000000L));
+		message.setSubject("Newsletter; issue =42=");
+		message.addHeaderLine(LISTUNSUBSCRIBE);
+		message.setText(TestUtil.bodyText);
+		return message;
+	}
+
+	private static String signatureHeader(byte[] signed) throws Exception {
+
+		String message = new String(signed, "ISO-8859-1");
+		int end = message.indexOf("\r\n");
+		while (message.charAt(end + 2) == ' ' || message.charAt(end + 2) == '\t') {
+			end = message.indexOf("\r\n", end + 2);
+		}
+		return message.substring(0, end);
+	}
+
+	// the number of headers in the list apart from the excluded ones
+	private static int count(String headerList, String[] excluded) {
+
+		int count = 0;
+		for (String header : headerList.split(":")) {
+			boolean stable = true;
+			for (String name : excluded) {
+				stable &= !header.equalsIgnoreCase(name);
+			}
+			if (stable) {
+				count++;
+			}
+		}
+		return count;
+	}
+}
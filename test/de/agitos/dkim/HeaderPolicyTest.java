@@ -0,0 +1,115 @@
+/*
+ * Copyright 2008 The Apache Software Foundation or its licensors, as
+ * applicable.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A licence was granted to the ASF by Florian Sager on 30 November 2008
+ */
+
+package de.agitos.dkim;
+
+import java.security.KeyPair;
+import java.util.LinkedHashMap;
+
+/*
+ * Checks the HeaderPolicy and over-signing: header lines are looked up case-insensitively by their field name,
+ * an over-signed header is listed once more in h= than it occurs, also if it is missing, and a From or Reply-To
+ * added after signing then breaks the signature, while it doesn't without over-signing. Exits with 1 on the
+ * first failed check.
+ *
+ * Usage: java de.agitos.dkim.HeaderPolicyTest
+ */
+
+public class HeaderPolicyTest {
+
+	public static void main(String args[]) throws Exception {
+
+		// the lookup of field names
+		LinkedHashMap<String, Integer> overSigned = new LinkedHashMap<String, Integer>();
+		overSigned.put("From", 1);
+		overSigned.put("X-Campaign", 2);
+		HeaderPolicy policy = new HeaderPolicy(new String[] {"From", "Subject", "subject", "To", ""}, new String[] {"To"}, overSigned);
+		TestUtil.check("duplicate and empty names dropped, over-signed names added", policy.size() == 4);
+		TestUtil.check("case-insensitive lookup", policy.lookupHeaderLine("SUBJECT: Hello") == policy.lookup("Subject"));
+		TestUtil.check("whitespace before the colon", policy.lookupHeaderLine("From \t: sender@example.com") == policy.lookup("from"));
+		TestUtil.check("prefix of a name not found", policy.lookupHeaderLine("From-Address: x") == null && policy.lookupHeaderLine("Fro: x") == null);
+		TestUtil.check("line without colon not found", policy.lookupHeaderLine("From sender@example.com") == null);
+		TestUtil.check("variable header", policy.lookup("To").isVariable() && !policy.lookup("From").isVariable());
+		TestUtil.check("over-signed header list "+policy.getOverSignedHeaderList(), policy.getOverSignedHeaderList().equals(":From:X-Campaign:X-Campaign"));
+
+		KeyPair keyPair = TestUtil.generateKeyPair();
+		DKIMVerifier verifier = TestUtil.createVerifier(keyPair);
+		DKIMSigner signer = new DKIMSigner("example.com", "default", keyPair.getPrivate());
+
+		// without over-signing a second From above the signed one is ignored by the verifier
+		byte[] signed = TestUtil.sign(TestUtil.createMessage(signer, "Not over-signed", TestUtil.bodyText));
+		TestUtil.check("From listed once in h="+TestUtil.getTag(signed, "DKIM-Signature", "h"), count(TestUtil.getTag(signed, "DKIM-Signature", "h"), "From") == 1);
+		TestUtil.check("added From passes without over-signing", verifier.verify(addHeader(signed, "From: attacker@example.net")).isPassed());
+
+		// over-signed: listed once more in h=, a missing Reply-To is listed as well
+		signer.setOverSignedHeader("From", 1);
+		signer.setOverSignedHeader("Reply-To", 1);
+		signed = TestUtil.sign(TestUtil.createMessage(signer, "Over-signed", TestUtil.bodyText));
+		String h = TestUtil.getTag(signed, "DKIM-Signature", "h");
+		TestUtil.check("From listed twice in h="+h, count(h, "From") == 2);
+		TestUtil.check("missing Reply-To listed once", count(h, "Reply-To") == 1);
+		VerificationResult result = verifier.verify(signed);
+		TestUtil.check("over-signed message verifies ("+result+")", result.isPassed());
+		result = verifier.verify(addHeader(signed, "From: attacker@example.net"));
+		TestUtil.check("added From fails ("+result+")", !result.isPassed());
+		result = verifier.verify(addHeader(signed, "Reply-To: attacker@example.net"));
+		TestUtil.check("added Reply-To fails ("+result+")", !result.isPassed());
+
+		// several instances of a signed header are listed in h= and taken from the bottom up by the verifier
+		signer.addHeaderToSign("X-Tag");
+		SMTPDKIMMessage message = TestUtil.createMessage(signer, "Two instances", TestUtil.bodyText);
+		message.addHeader("X-Tag", "first");
+		message.addHeader("X-Tag", "second");
+		signed = TestUtil.sign(message);
+		h = TestUtil.getTag(signed, "DKIM-Signature", "h");
+		result = verifier.verify(signed);
+		TestUtil.check("two instances listed twice in h=, verifies ("+result+")", count(h, "X-Tag") == 2 && result.isPassed());
+
+		// 0 ends over-signing
+		signer.setOverSignedHeader("From", 0);
+		signer.setOverSignedHeader("Reply-To", 0);
+		signed = TestUtil.sign(TestUtil.createMessage(signer, "Not over-signed again", TestUtil.bodyText));
+		h = TestUtil.getTag(signed, "DKIM-Signature", "h");
+		TestUtil.check("over-signing ended, h="+h, count(h, "From") == 1 && count(h, "Reply-To") == 0);
+
+		System.out.println("HeaderPolicy checks passed");
+	}
+
+	// inserts the header line below the DKIM-Signature, the first header
+	private static byte[] addHeader(byte[] signed, String headerLine) throws Exception {
+
+		String message = new String(signed, "ISO-8859-1");
+		int pos = message.indexOf("\r\n");
+		while (message.charAt(pos + 2) == ' ' || message.charAt(pos + 2) == '\t') {
+			pos = message.indexOf("\r\n", pos + 2);
+		}
+		return (message.substring(0, pos + 2)+headerLine+"\r\n"+message.substring(pos + 2)).getBytes("ISO-8859-1");
+	}
+
+	private static int count(String headerList, String name) {
+
+		int count = 0;
+		for (String header : headerList.split(":")) {
+			if (header.equalsIgnoreCase(name)) {
+				count++;
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2008 The Apache Software Foundation or its licensors, as
+ * applicable.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A licence was granted to the ASF by Florian Sager on 30 November 2008
+ */
+
+package de.agitos.dkim;
+
+import java.io.InterruptedIOException;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ * Checks the PipelinedBodyHasher: the digest equals the one of BodyHasher for bodies written in random pieces
+ * across the chunk boundaries, a limit hashes only the leading bytes, a writer interrupted while all chunks
+ * wait for hashing fails and stops the hashing thread, and a signer with pipelined hashing signs the same
+ * body hash as without. Exits with 1 on the first failed check.
+ *
+ * Usage: java de.agitos.dkim.PipelinedBodyHasherTest
+ */
+
+public class PipelinedBodyHasherTest {
+
+	private static int CHUNKSIZE = 64;
+	private static int CHUNKS = 3;
+
+	private static Random random = new Random(3107);
+
+	public static void main(String args[]) throws Exception {
+
+		// the digest of random bodies in random pieces, also bodies shorter than a chunk and multiples of it
+		boolean passed = true;
+		for (int i = 0; i < 2000 && passed; i++) {
+			byte[] body = new byte[i < 10 ? i * CHUNKSIZE / 2 : random.nextInt(20 * CHUNKSIZE)];
+			random.nextBytes(body);
+			passed &= Arrays.equals(hash(new PipelinedBodyHasher(sha256(), CHUNKSIZE, CHUNKS), body), hash(new BodyHasher(sha256()), body));
+		}
+		TestUtil.check("same digest as BodyHasher", passed);
+
+		// a limit hashes the leading bytes, within the first chunk, on a chunk boundary and behind it
+		byte[] body = new byte[10 * CHUNKSIZE];
+		random.nextBytes(body);
+		passed = true;
+		for (int limit : new int[] {0, 1, CHUNKSIZE - 1, CHUNKSIZE, 3 * CHUNKSIZE + 5, body.length, body.length + 1}) {
+			BodyHasher pipelined = new PipelinedBodyHasher(sha256(), CHUNKSIZE, CHUNKS);
+			pipelined.setLimit(limit);
+			byte[] digest = hash(pipelined, body);
+			int hashed = Math.min(limit, body.length);
+			passed &= pipelined.getLength() == hashed && Arrays.equals(digest, sha256().digest(Arrays.copyOf(body, hashed)));
+		}
+		TestUtil.check("limit hashes only the leading bytes", passed);
+
+		// a writer waiting for a free chunk is interrupted, the hasher is aborted and its thread is released
+		final CountDownLatch hashing = new CountDownLatch(1);
+		final PipelinedBodyHasher stalled = new PipelinedBodyHasher(new MessageDigest("stalled") {
+			protected void engineUpdate(byte input) {
+			}
+			protected void engineUpdate(byte[] input, int offset, int len) {
+				hashing.countDown();
+				try {
+					new CountDownLatch(1).await();
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			protected byte[] engineDigest() {
+				return new byte[0];
+			}
+			protected void engineReset() {
+			}
+		}, CHUNKSIZE, CHUNKS);
+		ExecutorService threads = Executors.newSingleThreadExecutor();
+		Future<Void> writer = threads.submit(new Callable<Void>() {
+			public Void call() throws Exception {
+				stalled.write(new byte[100 * CHUNKSIZE], 0, 100 * CHUNKSIZE);
+				return null;
+			}
+		});
+		hashing.await();
+		Thread.sleep(200);
+		TestUtil.check("writer waits while all chunks wait for hashing", !writer.isDone());
+		threads.shutdownNow();
+		try {
+			writer.get();
+			TestUtil.check("interrupted writer fails", false);
+		} catch (ExecutionException ee) {
+			TestUtil.check("interrupted writer fails ("+ee.getCause()+")", ee.getCause() instanceof InterruptedIOException);
+		}
+		TestUtil.check("hashing thread released", waitForHashingThreads());
+
+		// pipelined hashing in the signer, the body hash and the verification are unchanged
+		KeyPair keyPair = TestUtil.generateKeyPair();
+		DKIMSigner signer = new DKIMSigner("example.com", "default", keyPair.getPrivate());
+		StringBuffer text = new StringBuffer();
+		for (int i = 0; i < 5000; i++) {
+			text.append("Line ").append(i).append(" of a body that is hashed  in chunks \r\n");
+		}
+		String bodyHash = TestUtil.getTag(TestUtil.sign(TestUtil.createMessage(signer, "Pipelined", text.toString())), "DKIM-Signature", "bh");
+		signer.setPipelinedHashingThreshold(0);
+		byte[] signed = TestUtil.sign(TestUtil.createMessage(signer, "Pipelined", text.toString()));
+		TestUtil.check("signer hashes the same body hash", bodyHash.equals(TestUtil.getTag(signed, "DKIM-Signature", "bh")));
+		VerificationResult result = TestUtil.createVerifier(keyPair).verify(signed);
+		TestUtil.check("pipelined signature verifies ("+result+")", result.isPassed());
+
+		System.out.println("PipelinedBodyHasher checks passed");
+	}
+
+	private static MessageDigest sha256() throws Exception {
+		return MessageDigest.getInstance("SHA-256");
+	}
+
+	// writes the body in random pieces
+	private static byte[] hash(BodyHasher bodyHasher, byte[] body) throws Exception {
+
+		int pos = 0;
+		while (pos < body.length) {
+			int len = Math.min(body.length - pos, random.nextInt(3 * CHUNKSIZE));
+			if (len == 1) {
+				bodyHasher.write(body[pos]);
+			} else {
+				bodyHasher.write(body, pos, len);
+			}
+			pos += len;
+		}
+		return bodyHasher.digest();
+	}
+
+	// whether no hashing thread is left in the loop of a hasher
+	private static boolean waitForHashingThreads() throws InterruptedException {
+
+		for (int i = 0; i < 50; i++) {
+			boolean hashing = false;
+			for (Map.Entry<Thread, StackTraceElement[]> thread : Thread.getAllStackTraces().entrySet()) {
+				for (StackTraceElement element : thread.getValue()) {
+					hashing |= element.getClassName().equals(PipelinedBodyHasher.class.getName()) && element.getMethodName().equals("hashChunks");
+				}
+			}
+			if (!hashing) {
+				return true;
+			}
+			Thread.sleep(100);
+		}
+		return false;
+	}
+}
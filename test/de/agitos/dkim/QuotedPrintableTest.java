@@ -0,0 +1,125 @@
+/*
+ * Copyright 2008 The Apache Software Foundation or its licensors, as
+ * applicable.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A licence was granted to the ASF by Florian Sager on 30 November 2008
+ */
+
+package de.agitos.dkim;
+
+import java.security.KeyPair;
+import java.util.Random;
+
+/*
+ * Checks DKIMUtil.appendQuotedPrintable(): ';', '=', '|', space, control characters and non-ASCII characters
+ * (as UTF-8) are encoded, an unpaired surrogate becomes '?', trim skips the surrounding whitespace, random
+ * strings equal a byte by byte reference encoding of their UTF-8 bytes, and the z= tag of a signed message
+ * carries the encoded headers. Exits with 1 on the first failed check.
+ *
+ * Usage: java de.agitos.dkim.QuotedPrintableTest
+ */
+
+public class QuotedPrintableTest {
+
+	private static String ALPHABET = "ab;=| \t\r\n~\u007f\u0080\u00e4\u00ff\u0100\u07ff\u0800\u20ac\uffff\ud83d\ude00\ud800\udc00";
+
+	public static void main(String args[]) throws Exception {
+
+		check("a;b", false, "a=3Bb");
+		check("a=b", false, "a=3Db");
+		check("a b", false, "a=20b");
+		check("a|b", false, "a=7Cb");
+		check("a\tb\r\n\tc", false, "a=09b=0D=0A=09c");
+		check("~\u007f", false, "~=7F");
+		check("\u00e4", false, "=C3=A4");
+		check("\u20ac", false, "=E2=82=AC");
+		check("\ud83d\ude00", false, "=F0=9F=98=80");
+		check("x\ud800y", false, "x?y");
+		check("Subject: Gr\u00fc\u00dfe; a=b", false, "Subject:=20Gr=C3=BC=C3=9Fe=3B=20a=3Db");
+		check("  x y \t", false, "=20=20x=20y=20=09");
+		check("  x y \t", true, "x=20y");
+		check(" \t ", true, "");
+		check("", false, "");
+
+		StringBuilder out = new StringBuilder("z=");
+		DKIMUtil.appendQuotedPrintable(out, "a;b", false);
+		TestUtil.check("appended to the builder", out.toString().equals("z=a=3Bb"));
+		TestUtil.check("QuotedPrintable() doesn't trim", DKIMUtil.QuotedPrintable(" a ").equals("=20a=20"));
+
+		// random strings against the encoding of their UTF-8 bytes
+		Random random = new Random(5050);
+		boolean passed = true;
+		for (int i = 0; i < 100000 && passed; i++) {
+			StringBuilder s = new StringBuilder();
+			for (int j = random.nextInt(20); j > 0; j--) {
+				s.append(random.nextInt(3) == 0 ? ALPHABET.charAt(random.nextInt(ALPHABET.length())) : (char) (0x20 + random.nextInt(0x5f)));
+			}
+			StringBuilder encoded = new StringBuilder();
+			DKIMUtil.appendQuotedPrintable(encoded, s.toString(), false);
+			if (!encoded.toString().equals(reference(s.toString()))) {
+				System.out.println("       \""+s+"\": "+encoded+" instead of "+reference(s.toString()));
+				passed = false;
+			}
+		}
+		TestUtil.check("random strings equal the reference encoding", passed);
+
+		// the z= tag of a signed message
+		KeyPair keyPair = TestUtil.generateKeyPair();
+		DKIMSigner signer = new DKIMSigner("example.com", "default", keyPair.getPrivate());
+		signer.setZParam(true);
+		byte[] signed = TestUtil.sign(TestUtil.createMessage(signer, "Newsletter; issue =42=", TestUtil.bodyText));
+		String zParam = TestUtil.getTag(signed, "DKIM-Signature", "z");
+		TestUtil.check("z= contains Subject:Newsletter=3B=20issue=20=3D42=3D", ("|"+zParam+"|").indexOf("|Subject:Newsletter=3B=20issue=20=3D42=3D|") >= 0);
+		VerificationResult result = TestUtil.createVerifier(keyPair).verify(signed);
+		TestUtil.check("message with z= verifies ("+result+")", result.isPassed());
+
+		System.out.println("QuotedPrintable checks passed");
+	}
+
+	private static void check(String s, boolean trim, String expected) {
+
+		StringBuilder encoded = new StringBuilder();
+		DKIMUtil.appendQuotedPrintable(encoded, s, trim);
+		TestUtil.check((trim ? "trimmed " : "")+"\""+escape(s)+"\" -> "+encoded, encoded.toString().equals(expected));
+	}
+
+	// every byte of the UTF-8 encoding outside of 0x21-0x7E and ';', '=', '|' is encoded
+	private static String reference(String s) throws Exception {
+
+		StringBuilder encoded = new StringBuilder();
+		for (byte b : s.getBytes("UTF-8")) {
+			int c = b & 0xff;
+			if (c > 0x20 && c < 0x7f && c != ';' && c != '=' && c != '|') {
+				encoded.append((char) c);
+			} else {
+				encoded.append(String.format("=%02X", c));
+			}
+		}
+		return encoded.toString();
+	}
+
+	private static String escape(String s) {
+
+		StringBuilder escaped = new StringBuilder();
+		for (char c : s.toCharArray()) {
+			if (c < 0x20 || c > 0x7e) {
+				escaped.append(String.format("\\u%04x", (int) c));
+			} else {
+				escaped.append(c);
+			}
+		}
+		return escaped.toString();
+	}
+}
@@ -0,0 +1,196 @@
+/* 
+ * Copyright 2008 The Apache Software Foundation or its licensors, as
+ * applicable.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A licence was granted to the ASF by Florian Sager on 30 November 2008
+ */
+
+package de.agitos.dkim;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.internet.MimeUtility;
+
+/*
+ * Verifies the first DKIM-Signature of a message for the tests. It is written directly along RFC 6376
+ * with plain String operations and shares no code with the canonicalizers, hashers and the DKIMVerifier
+ * of the library, so a bug common to the signer and DKIMVerifier doesn't go unnoticed.
+ *
+ * An empty body with relaxed canonicalization is the empty string as in RFC 6376, the library
+ * hashes a CRLF like RFC 4871, so such messages fail here.
+ */
+
+public class ReferenceVerifier {
+
+	private PublicKey publicKey;
+
+	public ReferenceVerifier(PublicKey publicKey) {
+		this.publicKey = publicKey;
+	}
+
+	// null if the signature is valid, the reason of the failure otherwise
+	public String verify(byte[] message) {
+
+		try {
+			return check(new String(message, "ISO-8859-1"));
+		} catch (Exception e) {
+			return "exception "+e;
+		}
+	}
+
+	private String check(String message) throws Exception {
+
+		// bare CR and LF are line breaks, as converted by the SMTP transport
+		message = message.replaceAll("\r\n|\r|\n", "\r\n");
+
+		int separator = message.indexOf("\r\n\r\n");
+		String head = separator < 0 ? message : message.substring(0, separator);
+		String body = separator < 0 ? "" : message.substring(separator + 4);
+
+		// unfold into one entry per header field, the line breaks are kept for the simple canonicalization
+		List<String> headers = new ArrayList<String>();
+		for (String line : head.split("\r\n")) {
+			if ((line.startsWith(" ") || line.startsWith("\t")) && !headers.isEmpty()) {
+				headers.set(headers.size() - 1, headers.get(headers.size() - 1)+"\r\n"+line);
+			} else {
+				headers.add(line);
+			}
+		}
+
+		String signatureHeader = null;
+		for (String header : headers) {
+			if (name(header).equals("dkim-signature")) {
+				signatureHeader = header;
+				break;
+			}
+		}
+		if (signatureHeader == null) {
+			return "no signature";
+		}
+
+		Map<String, String> tags = new HashMap<String, String>();
+		for (String tag : signatureHeader.substring(signatureHeader.indexOf(':') + 1).split(";")) {
+			int eq = tag.indexOf('=');
+			if (eq > 0) {
+				tags.put(tag.substring(0, eq).trim(), tag.substring(eq + 1).replaceAll("[ \t\r\n]", ""));
+			}
+		}
+
+		String digestAlgorithm;
+		String signatureAlgorithm;
+		if ("rsa-sha256".equals(tags.get("a"))) {
+			digestAlgorithm = "SHA-256";
+			signatureAlgorithm = "SHA256withRSA";
+		} else if ("rsa-sha1".equals(tags.get("a"))) {
+			digestAlgorithm = "SHA-1";
+			signatureAlgorithm = "SHA1withRSA";
+		} else {
+			return "unsupported algorithm "+tags.get("a");
+		}
+
+		String[] canonicalization = (tags.containsKey("c") ? tags.get("c") : "simple").split("/");
+		boolean relaxedHeaders = canonicalization[0].equals("relaxed");
+		boolean relaxedBody = canonicalization.length > 1 && canonicalization[1].equals("relaxed");
+
+		// body hash
+		String canonicalBody = canonicalizeBody(body, relaxedBody);
+		if (tags.containsKey("l")) {
+			int length = Integer.parseInt(tags.get("l"));
+			if (length > canonicalBody.length()) {
+				return "l= exceeds the body";
+			}
+			canonicalBody = canonicalBody.substring(0, length);
+		}
+		byte[] bodyHash = MessageDigest.getInstance(digestAlgorithm).digest(canonicalBody.getBytes("ISO-8859-1"));
+		if (!MessageDigest.isEqual(bodyHash, base64(tags.get("bh")))) {
+			return "body hash mismatch";
+		}
+
+		// the signed header fields are taken from the bottom, each instance once
+		StringBuilder signedHeaders = new StringBuilder();
+		Map<String, Integer> used = new HashMap<String, Integer>();
+		for (String name : tags.get("h").split(":")) {
+			name = name.trim().toLowerCase();
+			int skip = used.containsKey(name) ? used.get(name) : 0;
+			used.put(name, skip + 1);
+			for (int i = headers.size() - 1; i >= 0; i--) {
+				if (name(headers.get(i)).equals(name) && skip-- == 0) {
+					signedHeaders.append(canonicalizeHeader(headers.get(i), relaxedHeaders)).append("\r\n");
+					break;
+				}
+			}
+		}
+		String withoutSignature = signatureHeader.replaceFirst("([:;][ \t\r\n]*b[ \t\r\n]*=)[^;]*", "$1");
+		signedHeaders.append(canonicalizeHeader(withoutSignature, relaxedHeaders));
+
+		Signature signature = Signature.getInstance(signatureAlgorithm);
+		signature.initVerify(publicKey);
+		signature.update(signedHeaders.toString().getBytes("ISO-8859-1"));
+		return signature.verify(base64(tags.get("b"))) ? null : "signature mismatch";
+	}
+
+	private static String name(String header) {
+		int colon = header.indexOf(':');
+		return colon < 0 ? "" : header.substring(0, colon).trim().toLowerCase();
+	}
+
+	private static String canonicalizeHeader(String header, boolean relaxed) {
+
+		if (!relaxed) {
+			return header;
+		}
+		int colon = header.indexOf(':');
+		String value = header.substring(colon + 1).replaceAll("\r\n", "").replaceAll("[ \t]+", " ").trim();
+		return name(header)+":"+value;
+	}
+
+	private static String canonicalizeBody(String body, boolean relaxed) {
+
+		if (relaxed) {
+			body = body.replaceAll("[ \t]+\r\n", "\r\n").replaceAll("[ \t]+", " ");
+		}
+		if (body.length() > 0 && !body.endsWith("\r\n")) {
+			body += "\r\n";
+		}
+		while (body.endsWith("\r\n\r\n")) {
+			body = body.substring(0, body.length() - 2);
+		}
+		if (body.equals("\r\n") && relaxed) {
+			return "";
+		}
+		return body.length() == 0 && !relaxed ? "\r\n" : body;
+	}
+
+	private static byte[] base64(String s) throws Exception {
+
+		InputStream in = MimeUtility.decode(new ByteArrayInputStream(s.getBytes("US-ASCII")), "base64");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[1024];
+		int len;
+		while ((len = in.read(buf)) > 0) {
+			out.write(buf, 0, len);
+		}
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2008 The Apache Software Foundation or its licensors, as
+ * applicable.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A licence was granted to the ASF by Florian Sager on 30 November 2008
+ */
+
+package de.agitos.dkim;
+
+import java.net.InetAddress;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ * Round trip of RemoteSigningBackend and an in-process SigningDaemon: the remote signature equals the local one
+ * and verifies, a wrong secret or an unknown client is rejected by the challenge, a foreign domain is refused,
+ * and a request the daemon doesn't answer times out alone while another request in flight is answered over
+ * the new connection. Exits with 1 on the first failed check.
+ *
+ * Usage: java de.agitos.dkim.RemoteSigningTest
+ */
+
+public class RemoteSigningTest {
+
+	private static String SECRET = "0123456789abcdef-remote";
+
+	public static void main(String args[]) throws Exception {
+
+		KeyPair keyPair = TestUtil.generateKeyPair();
+		final CountDownLatch releaseStuck = new CountDownLatch(1);
+		final CountDownLatch releaseLate = new CountDownLatch(1);
+
+		SigningDaemon daemon = new SigningDaemon(InetAddress.getByName(null), 0);
+		daemon.addKey("example.com", "default", keyPair.getPrivate());
+		daemon.addSigningBackend("stuck.example", "default", blocking(keyPair, releaseStuck));
+		daemon.addSigningBackend("late.example", "default", blocking(keyPair, releaseLate));
+		daemon.addClient("sender", SECRET, new String[] {"example.com", "stuck.example", "late.example"});
+		daemon.addClient("other", SECRET+"-other", new String[] {"example.org"});
+		daemon.start();
+
+		ExecutorService threads = Executors.newCachedThreadPool();
+		try {
+			// the daemon signs the same PKCS #1 v1.5 signature as the local backend, and the message verifies
+			final RemoteSigningBackend backend = new RemoteSigningBackend("localhost", daemon.getPort(), "sender", SECRET);
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest("RemoteSigningTest".getBytes());
+			byte[] remote = backend.sign("example.com", "default", SigningAlgorithm.SHA256withRSA, hash);
+			byte[] local = new LocalSigningBackend(keyPair.getPrivate()).sign("example.com", "default", SigningAlgorithm.SHA256withRSA, hash);
+			TestUtil.check("remote signature equals the local one", Arrays.equals(remote, local));
+
+			DKIMSigner signer = new DKIMSigner("example.com", "default", backend);
+			byte[] signed = TestUtil.sign(TestUtil.createMessage(signer, "Remote  signing", TestUtil.bodyText));
+			VerificationResult result = TestUtil.createVerifier(keyPair).verify(signed);
+			TestUtil.check("remotely signed message verifies ("+result+")", result.isPassed());
+
+			// the challenge rejects a wrong secret and an unknown client before any request is read
+			TestUtil.check("wrong secret rejected", fails(new RemoteSigningBackend("localhost", daemon.getPort(), "sender", SECRET+"x"), "example.com", hash, "rejected"));
+			TestUtil.check("unknown client rejected", fails(new RemoteSigningBackend("localhost", daemon.getPort(), "nobody", SECRET), "example.com", hash, "rejected"));
+			TestUtil.check("domain of another client refused", fails(backend, "example.org", hash, "may not sign"));
+			TestUtil.check("client still signs after a refused request", backend.sign("example.com", "default", SigningAlgorithm.SHA256withRSA, hash) != null);
+
+			// a request that isn't answered fails alone, the request in flight beside it is resent
+			backend.setRequestTimeout(1000);
+			Future<Boolean> stuck = threads.submit(new Callable<Boolean>() {
+				public Boolean call() throws Exception {
+					return fails(backend, "stuck.example", new byte[32], "didn't answer");
+				}
+			});
+			Thread.sleep(500);
+			Future<byte[]> late = threads.submit(new Callable<byte[]>() {
+				public byte[] call() throws Exception {
+					return backend.sign("late.example", "default", SigningAlgorithm.SHA256withRSA, new byte[32]);
+				}
+			});
+			TestUtil.check("unanswered request timed out", stuck.get());
+			// the answer to the timed out request is dropped with its connection
+			releaseStuck.countDown();
+			releaseLate.countDown();
+			TestUtil.check("request in flight answered over the new connection", late.get() != null);
+			TestUtil.check("next request signed", Arrays.equals(backend.sign("example.com", "default", SigningAlgorithm.SHA256withRSA, hash), local));
+
+			backend.close();
+		} finally {
+			releaseStuck.countDown();
+			releaseLate.countDown();
+			threads.shutdown();
+			daemon.stop();
+		}
+		System.out.println("RemoteSigning checks passed");
+	}
+
+	// a stand-in for a slow key store, signs after the latch was released
+	private static SigningBackend blocking(KeyPair keyPair, final CountDownLatch release) {
+
+		final LocalSigningBackend local = new LocalSigningBackend(keyPair.getPrivate());
+		return new SigningBackend() {
+			public byte[] sign(String signingDomain, String selector, SigningAlgorithm signingAlgorithm, byte[] hash) throws DKIMSignerException {
+				try {
+					release.await();
+				} catch (InterruptedException ie) {
+					throw new DKIMSignerException("interrupted", ie);
+				}
+				return local.sign(signingDomain, selector, signingAlgorithm, hash);
+			}
+		};
+	}
+
+	private static boolean fails(RemoteSigningBackend backend, String signingDomain, byte[] hash, String error) {
+
+		try {
+			backend.sign(signingDomain, "default", SigningAlgorithm.SHA256withRSA, hash);
+			return false;
+		} catch (DKIMSignerException dse) {
+			System.out.println("       "+dse.getMessage());
+			return dse.getMessage().indexOf(error) >= 0;
+		}
+	}
+}
@@ -0,0 +1,190 @@
+/* 
+ * Copyright 2008 The Apache Software Foundation or its licensors, as
+ * applicable.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A licence was granted to the ASF by Florian Sager on 30 November 2008
+ */
+
+package de.agitos.dkim;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * A minimal SMTP server on the loopback interface that accepts every message, so the examples can be
+ * run without a mail server. The received messages are passed to a MessageHandler with the dot-stuffing
+ * removed and CRLF line terminators, before the DATA command is acknowledged.
+ */
+
+public class SMTPSink {
+
+	public interface MessageHandler {
+		public void messageReceived(byte[] message);
+	}
+
+	private MessageHandler handler;
+	private ServerSocket serverSocket;
+	private volatile boolean running = false;
+	private long responseDelay = 0;
+	private AtomicLong messages = new AtomicLong();
+
+	public SMTPSink(MessageHandler handler) {
+		this.handler = handler;
+	}
+
+	// binds to a free port, see getPort()
+	public synchronized void start() throws IOException {
+
+		serverSocket = new ServerSocket();
+		serverSocket.bind(new InetSocketAddress(InetAddress.getByName(null), 0));
+		running = true;
+
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				acceptConnections();
+			}
+		}, "SMTP sink");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	public synchronized void stop() {
+
+		running = false;
+		try {
+			serverSocket.close();
+		} catch (IOException ioe) {}
+	}
+
+	// simulates the processing time of a real server before a message is acknowledged
+	public void setResponseDelay(long responseDelay) {
+		this.responseDelay = responseDelay;
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	public long getMessageCount() {
+		return messages.get();
+	}
+
+	private void acceptConnections() {
+
+		while (running) {
+			try {
+				final Socket socket = serverSocket.accept();
+				socket.setTcpNoDelay(true);
+				Thread handler = new Thread(new Runnable() {
+					public void run() {
+						handleConnection(socket);
+					}
+				}, "SMTP sink connection "+socket.getRemoteSocketAddress());
+				handler.setDaemon(true);
+				handler.start();
+			} catch (IOException ioe) {
+				// the server socket was closed by stop()
+			}
+		}
+	}
+
+	private void handleConnection(Socket socket) {
+
+		try {
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+			ByteArrayOutputStream line = new ByteArrayOutputStream(1024);
+
+			reply(out, "220 localhost ESMTP sink");
+			while (readLine(in, line)) {
+				String command = line.toString("US-ASCII").toUpperCase();
+				if (command.startsWith("EHLO")) {
+					reply(out, "250-localhost\r\n250 8BITMIME");
+				} else if (command.startsWith("DATA")) {
+					reply(out, "354 End data with <CR><LF>.<CR><LF>");
+					ByteArrayOutputStream message = new ByteArrayOutputStream(64 * 1024);
+					while (readLine(in, line)) {
+						int size = line.size();
+						byte[] b = line.toByteArray();
+						if (size == 1 && b[0] == '.') {
+							break;
+						}
+						int off = size > 0 && b[0] == '.' ? 1 : 0;
+						message.write(b, off, size - off);
+						message.write('\r');
+						message.write('\n');
+					}
+					handler.messageReceived(message.toByteArray());
+					messages.incrementAndGet();
+					if (responseDelay > 0) {
+						try {
+							Thread.sleep(responseDelay);
+						} catch (InterruptedException ie) {
+							break;
+						}
+					}
+					reply(out, "250 OK");
+				} else if (command.startsWith("QUIT")) {
+					reply(out, "221 Bye");
+					break;
+				} else {
+					// HELO, MAIL, RCPT, RSET, NOOP
+					reply(out, "250 OK");
+				}
+			}
+		} catch (IOException ioe) {
+			// the client closed the connection
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException ioe) {}
+		}
+	}
+
+	private static void reply(OutputStream out, String reply) throws IOException {
+		out.write((reply+"\r\n").getBytes("US-ASCII"));
+		out.flush();
+	}
+
+	// reads a line without its terminator into line, false at the end of the stream
+	private static boolean readLine(InputStream in, ByteArrayOutputStream line) throws IOException {
+
+		line.reset();
+		boolean cr = false;
+		int c;
+		while ((c = in.read()) != -1) {
+			if (c == '\n') {
+				return true;
+			}
+			if (cr) {
+				line.write('\r');
+			}
+			cr = c == '\r';
+			if (!cr) {
+				line.write(c);
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,164 @@
+/* 
+ * Copyright 2008 The Apache Software Foundation or its licensors, as
+ * applicable.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A licence was granted to the ASF by Florian Sager on 30 November 2008
+ */
+
+package de.agitos.dkim;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.security.KeyPairGenerator;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+
+import javax.activation.DataHandler;
+import javax.activation.FileDataSource;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMultipart;
+
+/*
+ * Checks the order in which the SigningScheduler starts the work of its tenants: the deficit round robin
+ * shares the signing thread by weight and by cost, transactional work goes first within the bound of the
+ * priority lane, and the cost of a message is estimated before it is rendered. Exits with 1 on the first
+ * failed check.
+ *
+ * Usage: java de.agitos.dkim.SigningSchedulerTest
+ */
+
+public class SigningSchedulerTest {
+
+	public static void main(String args[]) throws Exception {
+
+		// weights: a tenant with weight 2 gets twice the quantum of a tenant with weight 1
+		SigningScheduler scheduler = new SigningScheduler(1);
+		scheduler.setWeight("a.example", 2);
+		StringBuffer order = new StringBuffer();
+		CountDownLatch release = block(scheduler);
+		submit(scheduler, order, "a.example", 'A', 12, 1, false);
+		submit(scheduler, order, "b.example", 'B', 12, 1, false);
+		TestUtil.check("weights 2:1 "+run(scheduler, release, order), order.toString().equals("AAAAAAAABBBBAAAABBBBBBBB"));
+
+		// costs: every tenant gets the same cost units per round, a large message waits for enough credit
+		scheduler = new SigningScheduler(1);
+		order = new StringBuffer();
+		release = block(scheduler);
+		submit(scheduler, order, "c.example", 'C', 3, 6, false);
+		submit(scheduler, order, "d.example", 'D', 12, 1, false);
+		TestUtil.check("costs "+run(scheduler, release, order), order.toString().equals("DDDDCDDDDCDDDDC"));
+
+		// transactional work goes first in the order of submission
+		scheduler = new SigningScheduler(1);
+		order = new StringBuffer();
+		release = block(scheduler);
+		submit(scheduler, order, "e.example", 'e', 3, 1, false);
+		submit(scheduler, order, "e.example", 'E', 2, 1, true);
+		submit(scheduler, order, "f.example", 'F', 1, 1, true);
+		TestUtil.check("priority lane "+run(scheduler, release, order), order.toString().equals("EEFeee"));
+
+		// a tenant's transactional work beyond the bound of the priority lane is queued with its other work
+		scheduler = new SigningScheduler(1);
+		scheduler.setMaxPriorityTasks(2);
+		order = new StringBuffer();
+		release = block(scheduler);
+		submit(scheduler, order, "g.example", 'G', 8, 1, true);
+		submit(scheduler, order, "h.example", 'H', 1, 1, false);
+		TestUtil.check("priority lane bounded per tenant "+run(scheduler, release, order), order.toString().equals("GGGGGGHGG"));
+
+		// the cost of a message is estimated from its content, getSize() is unknown before rendering
+		KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+		keyPairGenerator.initialize(1024);
+		DKIMSigner dkimSigner = new DKIMSigner("example.com", "default", keyPairGenerator.generateKeyPair().getPrivate());
+		Session session = Session.getInstance(new Properties());
+
+		SMTPDKIMMessage message = new SMTPDKIMMessage(session, dkimSigner);
+		message.setFrom(new InternetAddress("sender@example.com"));
+		message.setRecipients(javax.mail.Message.RecipientType.TO, "rcpt@example.org");
+		message.setSubject("SigningSchedulerTest");
+		StringBuilder text = new StringBuilder();
+		while (text.length() < 200000) {
+			text.append(TestUtil.bodyText);
+		}
+		message.setText(text.toString());
+		TestUtil.check("size unknown before rendering", message.getSize() == -1);
+		long estimate = SigningScheduler.estimateSize(message);
+		TestUtil.check("text estimated ("+estimate+")", estimate == text.length() && SigningScheduler.cost(estimate) == 1 + text.length() / 65536);
+
+		File attachment = File.createTempFile("attachment", ".bin");
+		try {
+			FileOutputStream out = new FileOutputStream(attachment);
+			out.write(new byte[300000]);
+			out.close();
+			MimeMultipart multipart = new MimeMultipart();
+			MimeBodyPart textPart = new MimeBodyPart();
+			textPart.setText(TestUtil.bodyText);
+			multipart.addBodyPart(textPart);
+			MimeBodyPart filePart = new MimeBodyPart();
+			filePart.setDataHandler(new DataHandler(new FileDataSource(attachment)));
+			multipart.addBodyPart(filePart);
+			message.setContent(multipart);
+			estimate = SigningScheduler.estimateSize(message);
+			TestUtil.check("multipart with attachment estimated ("+estimate+")", estimate == TestUtil.bodyText.length() + 400000);
+
+			scheduler = new SigningScheduler(1);
+			byte[] signed = scheduler.sign(message, false).get();
+			TestUtil.check("signed message rendered ("+signed.length+" bytes)", signed.length > 400000);
+			scheduler.shutdown();
+		} finally {
+			attachment.delete();
+		}
+		System.out.println("SigningScheduler checks passed");
+	}
+
+	// occupies the only signing thread, the work submitted meanwhile is queued
+	private static CountDownLatch block(SigningScheduler scheduler) throws Exception {
+
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		scheduler.submit("blocker.example", new Callable<Object>() {
+			public Object call() throws Exception {
+				started.countDown();
+				release.await();
+				return null;
+			}
+		}, 1, false);
+		started.await();
+		return release;
+	}
+
+	private static void submit(SigningScheduler scheduler, final StringBuffer order, String tenant, final char mark, int count, int cost, boolean transactional) {
+
+		for (int i = 0; i < count; i++) {
+			scheduler.submit(tenant, new Callable<Object>() {
+				public Object call() {
+					order.append(mark);
+					return null;
+				}
+			}, cost, transactional);
+		}
+	}
+
+	private static String run(SigningScheduler scheduler, CountDownLatch release, StringBuffer order) throws InterruptedException {
+
+		release.countDown();
+		scheduler.shutdown();
+		scheduler.awaitTermination();
+		return order.toString();
+	}
+}
@@ -19,14 +19,20 @@
 
 package de.agitos.dkim;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
 import java.util.Properties;
 
 import javax.activation.DataHandler;
 import javax.activation.FileDataSource;
+import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Multipart;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeBodyPart;
 
 /*
@@ -62,6 +68,70 @@ public class TestUtil {
 		System.exit(0);
 	}
 
+	// a fresh key for the checks that need no key file, see createVerifier()
+	public static KeyPair generateKeyPair() throws Exception {
+
+		KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+		keyPairGenerator.initialize(1024);
+		return keyPairGenerator.generateKeyPair();
+	}
+
+	// verifies the signatures of example.com with the selector default by the public key, without DNS lookups
+	public static DKIMVerifier createVerifier(KeyPair keyPair) {
+
+		DKIMVerifier verifier = new DKIMVerifier();
+		verifier.setDNSLookup(false);
+		verifier.addPublicKey("example.com", "default", keyPair.getPublic());
+		return verifier;
+	}
+
+	public static SMTPDKIMMessage createMessage(DKIMSigner signer, String subject, String text) throws MessagingException {
+
+		SMTPDKIMMessage message = new SMTPDKIMMessage(Session.getInstance(new Properties()), signer);
+		message.setFrom(new InternetAddress("sender@example.com"));
+		message.setRecipients(Message.RecipientType.TO, "rcpt@example.org");
+		message.setSubject(subject);
+		message.setText(text);
+		return message;
+	}
+
+	// the message as sent, signed by its signer
+	public static byte[] sign(SMTPDKIMMessage message) throws Exception {
+
+		ByteArrayOutputStream signed = new ByteArrayOutputStream();
+		message.writeTo(signed);
+		return signed.toByteArray();
+	}
+
+	// the value of a tag of the first header of that name in the message, whitespace removed, or null
+	public static String getTag(byte[] message, String header, String tag) throws Exception {
+
+		String headers = new String(message, "ISO-8859-1");
+		headers = headers.substring(0, Math.max(0, headers.indexOf("\r\n\r\n"))).replaceAll("\r\n[ \t]", " ");
+		for (String line : headers.split("\r\n")) {
+			if (!line.toLowerCase().startsWith(header.toLowerCase()+":")) {
+				continue;
+			}
+			for (String tagSpec : line.substring(header.length()+1).split(";")) {
+				String[] nameValue = tagSpec.split("=", 2);
+				if (nameValue.length == 2 && nameValue[0].trim().equals(tag)) {
+					return nameValue[1].replaceAll("[ \t]", "");
+				}
+			}
+			return null;
+		}
+		return null;
+	}
+
+	// prints the result of a check, the first failed check ends the test with exit code 1
+	public static void check(String name, boolean passed) {
+
+		System.out.println((passed ? "ok     " : "FAILED ")+name);
+		if (!passed) {
+			System.exit(1);
+		}
+	}
+
 	public static void addFileAttachment(Multipart mp, Object filename) throws MessagingException {
 
 		if (filename==null) return;
@@ -0,0 +1,275 @@
+/* 
+ * Copyright 2008 The Apache Software Foundation or its licensors, as
+ * applicable.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A licence was granted to the ASF by Florian Sager on 30 November 2008
+ */
+
+package de.agitos.dkim;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.activation.DataHandler;
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+
+/*
+ * Load test without a mail server: N threads send DKIM signed messages of mixed sizes through
+ * JavaMail's SMTP transport to an in-process SMTPSink, which verifies every received signature by
+ * the DKIMVerifier and by the independent ReferenceVerifier.
+ * Reports messages per second, the latency percentiles of a send and the heap usage; exits with 1
+ * if a signature doesn't verify or a message is lost.
+ *
+ * Usage: java de.agitos.dkim.ThroughputTest [<threads> [<messages per thread>]]
+ */
+
+public class ThroughputTest {
+
+	private static String SIGNINGDOMAIN = "example.com";
+	private static String SELECTOR = "loadtest";
+
+	// every 10th message carries an attachment, 3 of 10 have a medium sized text
+	private static int SMALLTEXTSIZE = 2 * 1024;
+	private static int MEDIUMTEXTSIZE = 40 * 1024;
+	private static int ATTACHMENTSIZE = 512 * 1024;
+
+	private static String smallText;
+	private static String mediumText;
+	private static byte[] attachment;
+
+	private static DKIMVerifier verifier = new DKIMVerifier();
+	private static ReferenceVerifier referenceVerifier;
+	private static ExecutorService verificationThreads;
+	private static AtomicLong passed = new AtomicLong();
+	private static AtomicLong failed = new AtomicLong();
+	private static ConcurrentLinkedQueue<String> failures = new ConcurrentLinkedQueue<String>();
+
+	public static void main(String args[]) throws Exception {
+
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		int messagesPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+
+		smallText = text(SMALLTEXTSIZE, 1);
+		mediumText = text(MEDIUMTEXTSIZE, 2);
+		attachment = new byte[ATTACHMENTSIZE];
+		new Random(3).nextBytes(attachment);
+
+		// a fresh key pair, the sink gets the public key instead of a DNS lookup
+		KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+		keyPairGenerator.initialize(2048);
+		KeyPair keyPair = keyPairGenerator.generateKeyPair();
+		verifier.setDNSLookup(false);
+		verifier.addPublicKey(SIGNINGDOMAIN, SELECTOR, keyPair.getPublic());
+		referenceVerifier = new ReferenceVerifier(keyPair.getPublic());
+
+		// the sink acknowledges a message before it is verified, so the verification isn't part of the latency
+		verificationThreads = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		SMTPSink sink = new SMTPSink(new SMTPSink.MessageHandler() {
+			public void messageReceived(final byte[] message) {
+				verificationThreads.execute(new Runnable() {
+					public void run() {
+						VerificationResult result = verifier.verify(message);
+						String referenceFailure = referenceVerifier.verify(message);
+						if (result.isPassed() && referenceFailure == null) {
+							passed.incrementAndGet();
+						} else {
+							failed.incrementAndGet();
+							failures.add(result+(referenceFailure != null ? ", reference verifier: "+referenceFailure : ""));
+						}
+					}
+				});
+			}
+		});
+		sink.start();
+
+		Properties props = new Properties();
+		props.put("mail.smtp.host", "localhost");
+		props.put("mail.smtp.port", String.valueOf(sink.getPort()));
+		Session session = Session.getInstance(props, null);
+
+		DKIMSigner dkimSigner = new DKIMSigner(SIGNINGDOMAIN, SELECTOR, keyPair.getPrivate());
+		dkimSigner.setIdentity("loadtest@"+SIGNINGDOMAIN);
+		dkimSigner.warmUp();
+
+		System.out.println("Warming up ...");
+		run(session, dkimSigner, threads, Math.max(1, messagesPerThread / 10));
+
+		List<MemoryPoolMXBean> heapPools = new ArrayList<MemoryPoolMXBean>();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				heapPools.add(pool);
+			}
+		}
+		System.gc();
+		long heapBefore = usedHeap();
+		for (MemoryPoolMXBean pool : heapPools) {
+			pool.resetPeakUsage();
+		}
+
+		System.out.println("Sending "+threads+" x "+messagesPerThread+" messages ...");
+		long start = System.nanoTime();
+		long[] latencies = run(session, dkimSigner, threads, messagesPerThread);
+		long elapsed = System.nanoTime() - start;
+
+		long heapPeak = 0;
+		for (MemoryPoolMXBean pool : heapPools) {
+			heapPeak += pool.getPeakUsage().getUsed();
+		}
+
+		verificationThreads.shutdown();
+		verificationThreads.awaitTermination(10, TimeUnit.MINUTES);
+		sink.stop();
+
+		Arrays.sort(latencies);
+		long sent = latencies.length;
+		System.out.println("messages sent:      "+sent);
+		System.out.printf("throughput:         %.1f messages/s%n", sent * 1e9 / elapsed);
+		System.out.printf("latency p50/p99/max: %.2f / %.2f / %.2f ms%n", percentile(latencies, 0.50) / 1e6, percentile(latencies, 0.99) / 1e6, latencies[latencies.length-1] / 1e6);
+		System.out.printf("heap used before:   %.1f MB, peak during the run %.1f MB (sum of the pool peaks)%n", heapBefore / 1048576.0, heapPeak / 1048576.0);
+
+		// the warm-up messages were verified too
+		long expected = sink.getMessageCount();
+		System.out.println("signatures passed:  "+passed.get()+" of "+expected+", failed: "+failed.get());
+		int shown = 0;
+		for (String failure : failures) {
+			if (shown++ == 10) {
+				break;
+			}
+			System.out.println("  "+failure);
+		}
+		if (failed.get() > 0 || passed.get() != expected || expected < sent) {
+			System.exit(1);
+		}
+	}
+
+	// sends the messages by several threads with a connection each, returns the latencies in ns
+	private static long[] run(final Session session, final DKIMSigner dkimSigner, int threads, final int messagesPerThread) throws Exception {
+
+		final long[][] latencies = new long[threads][messagesPerThread];
+		final Exception[] errors = new Exception[threads];
+		Thread[] senders = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int sender = t;
+			senders[t] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						Transport transport = session.getTransport("smtp");
+						transport.connect();
+						try {
+							for (int i = 0; i < messagesPerThread; i++) {
+								long start = System.nanoTime();
+								Message msg = createMessage(session, dkimSigner, sender, i);
+								msg.saveChanges();
+								transport.sendMessage(msg, msg.getAllRecipients());
+								latencies[sender][i] = System.nanoTime() - start;
+							}
+						} finally {
+							transport.close();
+						}
+					} catch (Exception e) {
+						errors[sender] = e;
+					}
+				}
+			}, "sender "+t);
+			senders[t].start();
+		}
+
+		long[] all = new long[threads * messagesPerThread];
+		for (int t = 0; t < threads; t++) {
+			senders[t].join();
+			if (errors[t] != null) {
+				throw errors[t];
+			}
+			System.arraycopy(latencies[t], 0, all, t * messagesPerThread, messagesPerThread);
+		}
+		return all;
+	}
+
+	private static Message createMessage(Session session, DKIMSigner dkimSigner, int sender, int i) throws Exception {
+
+		SMTPDKIMMessage msg = new SMTPDKIMMessage(session, dkimSigner);
+		msg.setFrom(new InternetAddress("loadtest@"+SIGNINGDOMAIN));
+		msg.setRecipients(Message.RecipientType.TO, InternetAddress.parse("rcpt"+sender+"-"+i+"@example.org", false));
+		msg.setSubject("DKIM for JavaMail: ThroughputTest message "+i+" of sender "+sender);
+		msg.setSentDate(new Date());
+
+		if (i % 10 == 0) {
+			MimeMultipart multipart = new MimeMultipart();
+			MimeBodyPart textPart = new MimeBodyPart();
+			textPart.setText(smallText);
+			multipart.addBodyPart(textPart);
+			MimeBodyPart attachmentPart = new MimeBodyPart();
+			attachmentPart.setDataHandler(new DataHandler(new ByteArrayDataSource(attachment, "application/octet-stream")));
+			attachmentPart.setFileName("attachment.bin");
+			multipart.addBodyPart(attachmentPart);
+			msg.setContent(multipart);
+		} else if (i % 10 <= 3) {
+			msg.setText(mediumText);
+		} else {
+			msg.setText(smallText);
+		}
+		return msg;
+	}
+
+	// lines of words with some runs of whitespace for the relaxed canonicalization
+	private static String text(int size, long seed) {
+
+		Random random = new Random(seed);
+		StringBuilder text = new StringBuilder(size + 100);
+		int lineLength = 0;
+		while (text.length() < size) {
+			int wordLength = 1 + random.nextInt(9);
+			for (int i = 0; i < wordLength; i++) {
+				text.append((char) ('a' + random.nextInt(26)));
+			}
+			lineLength += wordLength + 1;
+			if (lineLength > 70) {
+				text.append(random.nextInt(8) == 0 ? " \r\n" : "\r\n");
+				lineLength = 0;
+			} else {
+				text.append(random.nextInt(12) == 0 ? "  " : " ");
+			}
+		}
+		return text.append("\r\n").toString();
+	}
+
+	private static long percentile(long[] sorted, double p) {
+		return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+	}
+
+	private static long usedHeap() {
+		return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+	}
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2008 The Apache Software Foundation or its licensors, as
+ * applicable.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A licence was granted to the ASF by Florian Sager on 30 November 2008
+ */
+
+package de.agitos.dkim;
+
+import java.io.ByteArrayOutputStream;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.activation.DataHandler;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+
+/*
+ * Checks the trusted base64 spans: BodyCanonicalizer.writeTrusted() gives the same output as write() for base64
+ * lines between random content with trailing whitespace and empty lines, and base64 encoded messages and body
+ * parts, also encoded in parallel, are signed with trusted spans, the body hash of canonicalizeBody() and a
+ * signature that verifies. Exits with 1 on the first failed check.
+ *
+ * Usage: java de.agitos.dkim.TrustedBodySpanTest
+ */
+
+public class TrustedBodySpanTest {
+
+	private static Canonicalization[] CANONICALIZATIONS = new Canonicalization[] {Canonicalization.SIMPLE, Canonicalization.RELAXED};
+	private static byte[] ALPHABET = "ab=.  \t\t\r\n\r\n".getBytes();
+	private static byte[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+
+	private static Random random = new Random(3303);
+
+	public static void main(String args[]) throws Exception {
+
+		// writeTrusted() between random content equals write() of the same bytes
+		boolean passed = true;
+		for (int i = 0; i < 20000 && passed; i++) {
+			byte[] before = random(ALPHABET, random.nextInt(20));
+			byte[] span = base64Lines(1 + random.nextInt(4));
+			byte[] after = random(ALPHABET, random.nextInt(20));
+			passed &= compare(CANONICALIZATIONS[i % 2], before, span, after);
+		}
+		TestUtil.check("writeTrusted() equals write()", passed);
+
+		KeyPair keyPair = TestUtil.generateKeyPair();
+		DKIMVerifier verifier = TestUtil.createVerifier(keyPair);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			for (Canonicalization canonicalization : CANONICALIZATIONS) {
+				SpanCountingSigner signer = new SpanCountingSigner(keyPair);
+				signer.setBodyCanonicalization(canonicalization);
+
+				// a base64 encoded message is one trusted span
+				SMTPDKIMMessage message = TestUtil.createMessage(signer, "Base64", TestUtil.bodyText+"trailing  \r\n\r\n");
+				message.setHeader("Content-Transfer-Encoding", "base64");
+				check(canonicalization.getType()+" base64 message", signer, message, 1, verifier);
+
+				// the base64 encoded parts of a multipart, the text part is canonicalized regularly
+				check(canonicalization.getType()+" base64 body parts", signer, createMultipart(signer), 2, verifier);
+				signer.setPartEncodingExecutor(executor);
+				check(canonicalization.getType()+" base64 body parts encoded in parallel", signer, createMultipart(signer), 2, verifier);
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		System.out.println("TrustedBodySpan checks passed");
+	}
+
+	// records the trusted spans of the messages it signs
+	private static class SpanCountingSigner extends DKIMSigner {
+
+		private int spans;
+
+		private SpanCountingSigner(KeyPair keyPair) throws Exception {
+			super("example.com", "default", keyPair.getPrivate());
+		}
+
+		public String sign(SMTPDKIMMessage message) throws DKIMSignerException, MessagingException {
+			spans = message.getTrustedBodySpans().size();
+			return super.sign(message);
+		}
+	}
+
+	private static void check(String name, SpanCountingSigner signer, SMTPDKIMMessage message, int spans, DKIMVerifier verifier) throws Exception {
+
+		byte[] signed = TestUtil.sign(message);
+		TestUtil.check(name+": "+signer.spans+" trusted spans", signer.spans == spans);
+		TestUtil.check(name+": body hash of canonicalizeBody()", bodyHash(signed, signer.getBodyCanonicalization()).equals(TestUtil.getTag(signed, "DKIM-Signature", "bh")));
+		VerificationResult result = verifier.verify(signed);
+		TestUtil.check(name+": verifies ("+result+")", result.isPassed());
+	}
+
+	private static SMTPDKIMMessage createMultipart(DKIMSigner signer) throws Exception {
+
+		SMTPDKIMMessage message = TestUtil.createMessage(signer, "Base64 parts", "");
+		MimeMultipart multipart = new MimeMultipart();
+		MimeBodyPart text = new MimeBodyPart();
+		text.setText("Text  with\twhitespace  \r\n\r\n\r\n");
+		multipart.addBodyPart(text);
+		for (int i = 0; i < 2; i++) {
+			byte[] attachment = new byte[1000 + random.nextInt(5000)];
+			random.nextBytes(attachment);
+			MimeBodyPart part = new MimeBodyPart();
+			part.setDataHandler(new DataHandler(new ByteArrayDataSource(attachment, "application/octet-stream")));
+			part.setFileName("attachment"+i+".bin");
+			multipart.addBodyPart(part);
+		}
+		message.setContent(multipart);
+		return message;
+	}
+
+	// the body hash of the signed message by the String based canonicalization
+	private static String bodyHash(byte[] signed, Canonicalization canonicalization) throws Exception {
+
+		String message = new String(signed, "ISO-8859-1");
+		String body = canonicalization.canonicalizeBody(message.substring(message.indexOf("\r\n\r\n") + 4));
+		return DKIMUtil.base64Encode(MessageDigest.getInstance("SHA-256").digest(body.getBytes("ISO-8859-1"))).replaceAll("\\s", "");
+	}
+
+	private static boolean compare(Canonicalization canonicalization, byte[] before, byte[] span, byte[] after) throws Exception {
+
+		byte[] body = new byte[before.length + span.length + after.length];
+		System.arraycopy(before, 0, body, 0, before.length);
+		System.arraycopy(span, 0, body, before.length, span.length);
+		System.arraycopy(after, 0, body, before.length + span.length, after.length);
+
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		BodyCanonicalizer canonicalizer = new BodyCanonicalizer(expected, canonicalization == Canonicalization.RELAXED);
+		canonicalizer.write(body, 0, body.length);
+		canonicalizer.close();
+
+		ByteArrayOutputStream trusted = new ByteArrayOutputStream();
+		canonicalizer = new BodyCanonicalizer(trusted, canonicalization == Canonicalization.RELAXED);
+		canonicalizer.write(body, 0, before.length);
+		canonicalizer.writeTrusted(body, before.length, span.length);
+		canonicalizer.write(body, before.length + span.length, after.length);
+		canonicalizer.close();
+
+		return Arrays.equals(expected.toByteArray(), trusted.toByteArray());
+	}
+
+	// complete CRLF terminated lines of base64 characters, the last one shorter and padded
+	private static byte[] base64Lines(int lines) {
+
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		for (int i = 0; i < lines; i++) {
+			boolean last = i == lines - 1;
+			byte[] line = random(BASE64, last ? 1 + random.nextInt(74) : 76);
+			os.write(line, 0, line.length);
+			if (last) {
+				os.write('=');
+			}
+			os.write('\r');
+			os.write('\n');
+		}
+		return os.toByteArray();
+	}
+
+	private static byte[] random(byte[] alphabet, int length) {
+
+		byte[] b = new byte[length];
+		for (int i = 0; i < length; i++) {
+			b[i] = alphabet[random.nextInt(alphabet.length)];
+		}
+		return b;
+	}
+}
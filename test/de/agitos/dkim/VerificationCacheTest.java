@@ -0,0 +1,82 @@
+/*
+ * Copyright 2008 The Apache Software Foundation or its licensors, as
+ * applicable.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A licence was granted to the ASF by Florian Sager on 30 November 2008
+ */
+
+package de.agitos.dkim;
+
+import java.security.KeyPair;
+
+/*
+ * Checks the VerificationCache: a verified key hits until its TTL expires, the least recently used entry is
+ * evicted beyond the bound, and a DKIMVerifier with the cache confirms a duplicate without the key, still
+ * checks the body hash of every duplicate and notices a replaced key once the entry expired. Exits with 1
+ * on the first failed check.
+ *
+ * Usage: java de.agitos.dkim.VerificationCacheTest
+ */
+
+public class VerificationCacheTest {
+
+	private static long TTL = 500;
+
+	public static void main(String args[]) throws Exception {
+
+		// a hit within the TTL, a miss after it
+		VerificationCache cache = new VerificationCache(2, TTL);
+		TestUtil.check("unknown key misses", !cache.isVerified("a") && cache.getMissCount() == 1);
+		cache.addVerified("a");
+		TestUtil.check("verified key hits", cache.isVerified("a") && cache.getHitCount() == 1);
+		Thread.sleep(TTL + 100);
+		TestUtil.check("expired key misses", !cache.isVerified("a") && cache.getMissCount() == 2);
+		TestUtil.check("expired entry removed", cache.size() == 0);
+
+		// the least recently used entry is evicted
+		cache.addVerified("a");
+		cache.addVerified("b");
+		cache.isVerified("a");
+		cache.addVerified("c");
+		TestUtil.check("bound kept", cache.size() == 2);
+		TestUtil.check("least recently used entry evicted", cache.isVerified("a") && !cache.isVerified("b") && cache.isVerified("c"));
+
+		// a duplicate is confirmed by the cache, even after the key was replaced
+		KeyPair keyPair = TestUtil.generateKeyPair();
+		KeyPair replacedKeyPair = TestUtil.generateKeyPair();
+		DKIMVerifier verifier = TestUtil.createVerifier(keyPair);
+		cache = new VerificationCache(100, TTL);
+		verifier.setVerificationCache(cache);
+		byte[] signed = TestUtil.sign(TestUtil.createMessage(new DKIMSigner("example.com", "default", keyPair.getPrivate()), "Fan-out", TestUtil.bodyText));
+		VerificationResult result = verifier.verify(signed);
+		TestUtil.check("first message verified by the key ("+result+")", result.isPassed() && cache.getMissCount() == 1 && cache.size() == 1);
+		verifier.addPublicKey("example.com", "default", replacedKeyPair.getPublic());
+		result = verifier.verify(signed);
+		TestUtil.check("duplicate confirmed by the cache ("+result+")", result.isPassed() && cache.getHitCount() == 1);
+
+		// the body hash is checked for every duplicate, a changed header misses the cache
+		result = verifier.verify(new String(signed, "ISO-8859-1").replaceFirst("Hello,", "Hallo,").getBytes("ISO-8859-1"));
+		TestUtil.check("changed body of a duplicate fails ("+result+")", !result.isPassed() && cache.getHitCount() == 1);
+		result = verifier.verify(new String(signed, "ISO-8859-1").replaceFirst("Subject: Fan-out", "Subject: Fan-in").getBytes("ISO-8859-1"));
+		TestUtil.check("changed header misses and fails ("+result+")", !result.isPassed() && cache.getMissCount() == 2);
+
+		// the replaced key is noticed after the TTL
+		Thread.sleep(TTL + 100);
+		result = verifier.verify(signed);
+		TestUtil.check("expired entry verified by the replaced key ("+result+")", !result.isPassed() && cache.getMissCount() == 3);
+
+		System.out.println("VerificationCache checks passed");
+	}
+}
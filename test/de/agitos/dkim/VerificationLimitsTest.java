@@ -0,0 +1,124 @@
+/*
+ * Copyright 2008 The Apache Software Foundation or its licensors, as
+ * applicable.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * A licence was granted to the ASF by Florian Sager on 30 November 2008
+ */
+
+package de.agitos.dkim;
+
+import java.security.KeyPair;
+
+/*
+ * Checks the VerificationLimits: a message exactly at a limit verifies, one beyond it fails with the reason of
+ * the exceeded limit, for the size and the lines of the header block, the h= entries, the canonicalized header
+ * bytes and the key size; signatures beyond maxSignatures are ignored, and a negative value disables a limit.
+ * Exits with 1 on the first failed check.
+ *
+ * Usage: java de.agitos.dkim.VerificationLimitsTest
+ */
+
+public class VerificationLimitsTest {
+
+	public static void main(String args[]) throws Exception {
+
+		KeyPair keyPair = TestUtil.generateKeyPair();
+		DKIMVerifier verifier = TestUtil.createVerifier(keyPair);
+		DKIMSigner signer = new DKIMSigner("example.com", "default", keyPair.getPrivate());
+		SMTPDKIMMessage message = TestUtil.createMessage(signer, "Limits", TestUtil.bodyText);
+		for (int i = 0; i < 20; i++) {
+			message.addHeader("Received", "from relay"+i+".example.net by relay"+(i+1)+".example.net;\r\n\tMon, 1 Jan 2024 00:00:00 +0000");
+		}
+		byte[] signed = TestUtil.sign(message);
+		String text = new String(signed, "ISO-8859-1");
+		String headerBlock = text.substring(0, text.indexOf("\r\n\r\n") + 2);
+		VerificationResult result = verifier.verify(signed);
+		TestUtil.check("message verifies with the default limits ("+result+")", result.isPassed());
+
+		// the size of the header block up to the empty line
+		VerificationLimits limits = new VerificationLimits();
+		verifier.setVerificationLimits(limits);
+		limits.setMaxHeaderBlockBytes(headerBlock.length());
+		check("header block of "+headerBlock.length()+" bytes", verifier.verify(signed), null);
+		limits.setMaxHeaderBlockBytes(headerBlock.length() - 1);
+		check("header block beyond "+limits.getMaxHeaderBlockBytes()+" bytes", verifier.verify(signed), "The header block exceeds the limit of "+limits.getMaxHeaderBlockBytes()+" bytes");
+		check("header block without end", verifier.verify(headerBlock.replaceAll("\r\n", "\r\nX-Padding: x\r\n").getBytes("ISO-8859-1")), "The header block exceeds");
+		limits.setMaxHeaderBlockBytes(-1);
+
+		// the lines of the header block including the continuation lines
+		int lines = headerBlock.split("\r\n").length;
+		limits.setMaxHeaderLines(lines);
+		check("header block of "+lines+" lines", verifier.verify(signed), null);
+		limits.setMaxHeaderLines(lines - 1);
+		check("header block beyond "+(lines - 1)+" lines", verifier.verify(signed), "The header block exceeds the limit of "+(lines - 1)+" lines");
+		limits.setMaxHeaderLines(-1);
+
+		// the entries of h=
+		int signedHeaders = TestUtil.getTag(signed, "DKIM-Signature", "h").split(":").length;
+		limits.setMaxSignedHeaders(signedHeaders);
+		check(signedHeaders+" signed headers", verifier.verify(signed), null);
+		limits.setMaxSignedHeaders(signedHeaders - 1);
+		check("more than "+(signedHeaders - 1)+" signed headers", verifier.verify(signed), "The signature lists more than "+(signedHeaders - 1)+" headers");
+		limits.setMaxSignedHeaders(-1);
+
+		// the canonicalized header bytes of all signatures
+		limits.setMaxHeaderBytes(200);
+		check("more than 200 signed header bytes", verifier.verify(signed), "The signed headers exceed the limit of 200 bytes");
+		limits.setMaxHeaderBytes(-1);
+
+		// the size of the key
+		limits.setMaxKeyBits(1024);
+		check("1024 bit key", verifier.verify(signed), null);
+		limits.setMaxKeyBits(1023);
+		check("key beyond 1023 bits", verifier.verify(signed), "The public key is larger than 1023 bits");
+		limits.setMaxKeyBits(-1);
+
+		// a forged signature above the valid one, the valid one is only reached within maxSignatures
+		int signatureEnd = text.indexOf("\r\n");
+		while (text.charAt(signatureEnd + 2) == ' ' || text.charAt(signatureEnd + 2) == '\t') {
+			signatureEnd = text.indexOf("\r\n", signatureEnd + 2);
+		}
+		String forged = text.substring(0, signatureEnd).replaceFirst("s=default", "s=forged");
+		byte[] twoSignatures = (forged+"\r\n"+text).getBytes("ISO-8859-1");
+		limits.setMaxSignatures(2);
+		check("valid second signature", verifier.verify(twoSignatures), null);
+		limits.setMaxSignatures(1);
+		check("second signature beyond maxSignatures", verifier.verify(twoSignatures), "No public key");
+		limits.setMaxSignatures(0);
+		check("no signature within maxSignatures", verifier.verify(twoSignatures), "The message has no DKIM-Signature header");
+
+		// all limits disabled
+		verifier.setVerificationLimits(new VerificationLimits());
+		limits = verifier.getVerificationLimits();
+		limits.setMaxHeaderBlockBytes(-1);
+		limits.setMaxHeaderLines(-1);
+		limits.setMaxSignatures(-1);
+		limits.setMaxSignedHeaders(-1);
+		limits.setMaxHeaderBytes(-1);
+		limits.setMaxKeyBits(-1);
+		check("limits disabled", verifier.verify(twoSignatures), null);
+
+		System.out.println("VerificationLimits checks passed");
+	}
+
+	private static void check(String name, VerificationResult result, String failureReason) {
+
+		if (failureReason == null) {
+			TestUtil.check(name+" verifies ("+result+")", result.isPassed());
+		} else {
+			TestUtil.check(name+" fails ("+result+")", !result.isPassed() && result.getFailureReason().startsWith(failureReason));
+		}
+	}
+}